@@ -0,0 +1,59 @@
+package com.lucidworks.solr.fusion;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark data shaped like a product catalog: a few text fields and a lot of
+ * numeric and multi-valued fields.
+ */
+final class CatalogDocs {
+
+  private CatalogDocs() {
+  }
+
+  static List<SolrInputDocument> create(int count) {
+    Random random = new Random(42);
+    List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(count);
+    for (int i = 0; i < count; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", "SKU-" + i);
+      doc.addField("name_t", "Portable media player " + i + " with 64GB storage");
+      doc.addField("brand_s", "brand" + random.nextInt(50));
+      doc.addField("price_d", random.nextDouble() * 1000);
+      doc.addField("popularity_i", random.nextInt(10));
+      doc.addField("stock_l", (long) random.nextInt(100000));
+      doc.addField("inStock_b", random.nextBoolean());
+      doc.addField("updated_dt", new Date(1420070400000L + random.nextInt(1000000000)));
+      for (int j = 0; j < 8; j++) {
+        doc.addField("cat_ss", "category" + random.nextInt(200));
+      }
+      for (int j = 0; j < 16; j++) {
+        doc.addField("store_prices_fs", random.nextFloat() * 1000);
+      }
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  /**
+   * The params of a typical search request.
+   */
+  static ModifiableSolrParams searchParams() {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "ipod");
+    params.add("rows", "10");
+    params.add("start", "0");
+    params.add("fl", "id,name_t,price_d,score");
+    params.add("fq", "type:product", "inStock_b:true", "{!tag=brand}brand_s:brand1");
+    params.add("facet", "true");
+    params.add("facet.field", "{!ex=brand}brand_s", "cat_ss");
+    params.add("wt", "json");
+    return params;
+  }
+}
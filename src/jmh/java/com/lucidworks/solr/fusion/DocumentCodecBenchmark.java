@@ -0,0 +1,54 @@
+package com.lucidworks.solr.fusion;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a batch of documents in each of the index-pipeline wire formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DocumentCodecBenchmark {
+
+  @Param({"xml", "javabin", "json"})
+  public String format;
+
+  @Param({"1", "100"})
+  public int batchSize;
+
+  private FusionDocumentCodec codec;
+  private List<SolrInputDocument> docs;
+  private byte[] encoded;
+
+  @Setup
+  public void setUp() throws Exception {
+    codec = FusionDocumentCodec.forName(format);
+    docs = CatalogDocs.create(batchSize);
+    encoded = encode();
+  }
+
+  @Benchmark
+  public byte[] encode() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+    codec.write(docs, out);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public List<SolrInputDocument> decode() throws Exception {
+    return codec.read(new ByteArrayInputStream(encoded));
+  }
+}
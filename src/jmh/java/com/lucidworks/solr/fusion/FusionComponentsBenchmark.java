@@ -0,0 +1,139 @@
+package com.lucidworks.solr.fusion;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plugins end-to-end against an in-process {@link StubFusionServer} answering after
+ * 'latencyMs' milliseconds: a query through {@link FusionQPSearchComponent}, a search log
+ * through {@link LogToFusionComponent} and a batch of documents through {@link FusionUpdateProcessor}.
+ *
+ * Run with more threads (-t) to see how the plugins behave under concurrent requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FusionComponentsBenchmark {
+
+  @Param({"0", "5"})
+  public long latencyMs;
+
+  @Param({"0", "1000"})
+  public int cacheSize;
+
+  @Param({"xml", "javabin"})
+  public String wireFormat;
+
+  private static final int BATCH_SIZE = 100;
+
+  private StubFusionServer server;
+  private FusionQPSearchComponent queryComponent;
+  private LogToFusionComponent logComponent;
+  private FusionUpdateProcessorFactory processorFactory;
+  private List<SolrInputDocument> docs;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    server = new StubFusionServer(latencyMs).start();
+
+    NamedList queryArgs = baseArgs();
+    queryArgs.add(FusionQPSearchComponent.CACHE_SIZE_PARAM, cacheSize);
+    queryComponent = new FusionQPSearchComponent();
+    queryComponent.init(queryArgs);
+
+    logComponent = new LogToFusionComponent();
+    logComponent.init(baseArgs());
+
+    NamedList updateArgs = baseArgs();
+    updateArgs.add(FusionUpdateProcessor.BATCH_SIZE_PARAM, BATCH_SIZE);
+    updateArgs.add(FusionUpdateProcessor.WIRE_FORMAT_PARAM, wireFormat);
+    processorFactory = new FusionUpdateProcessorFactory();
+    processorFactory.init(updateArgs);
+
+    docs = CatalogDocs.create(BATCH_SIZE);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    // the search components are closed by the core, the forked JVM exits after the trial
+    processorFactory.close();
+    server.stop();
+  }
+
+  @Benchmark
+  public SolrQueryResponse queryPipeline() throws Exception {
+    ResponseBuilder rb = newResponseBuilder();
+    queryComponent.prepare(rb);
+    return rb.rsp;
+  }
+
+  @Benchmark
+  public SolrQueryResponse searchLog() throws Exception {
+    ResponseBuilder rb = newResponseBuilder();
+    rb.rsp.getToLog().add("hits", 1234);
+    logComponent.process(rb);
+    return rb.rsp;
+  }
+
+  @Benchmark
+  public int indexPipelineBatch() throws Exception {
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    CountingProcessor next = new CountingProcessor();
+    UpdateRequestProcessor processor = processorFactory.getInstance(req, null, next);
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    for (SolrInputDocument doc : docs) {
+      cmd.clear();
+      // the processor replaces the document, keep the benchmark data untouched
+      cmd.solrDoc = doc.deepCopy();
+      processor.processAdd(cmd);
+    }
+    processor.finish();
+    return next.count;
+  }
+
+  private ResponseBuilder newResponseBuilder() {
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, CatalogDocs.searchParams());
+    return new ResponseBuilder(req, new SolrQueryResponse(), new ArrayList<SearchComponent>());
+  }
+
+  private NamedList baseArgs() {
+    NamedList args = new NamedList();
+    args.add("fusion_base_url", server.getBaseUrl());
+    args.add("collection_name", StubFusionServer.COLLECTION);
+    return args;
+  }
+
+  static class CountingProcessor extends UpdateRequestProcessor {
+    int count = 0;
+
+    CountingProcessor() {
+      super(null);
+    }
+
+    @Override
+    public void processAdd(AddUpdateCommand cmd) {
+      count++;
+    }
+  }
+}
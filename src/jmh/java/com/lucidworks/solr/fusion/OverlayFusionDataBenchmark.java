@@ -0,0 +1,57 @@
+package com.lucidworks.solr.fusion;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying a query-pipeline response to a request: parsing it from JSON, and applying
+ * an already parsed (cached) result, as a copy or layered over the request params.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OverlayFusionDataBenchmark {
+
+  private FusionPipelineResult parsed;
+
+  @Setup
+  public void setUp() throws Exception {
+    parsed = FusionPipelineResult.parse(StubFusionServer.PIPELINE_RESPONSE);
+  }
+
+  @Benchmark
+  public SolrQueryResponse parseAndOverlay() throws Exception {
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, CatalogDocs.searchParams());
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    FusionQPSearchComponent.overlayFusionData(StubFusionServer.PIPELINE_RESPONSE, req, rsp);
+    return rsp;
+  }
+
+  @Benchmark
+  public SolrQueryResponse overlayCached() {
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    FusionQPSearchComponent.overlayFusionData(parsed, req, rsp);
+    return rsp;
+  }
+
+  @Benchmark
+  public String overlayCachedDelta() {
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, CatalogDocs.searchParams());
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    parsed.applyDelta(req, rsp);
+    // a view costs on reads rather than on creation
+    return req.getParams().get("q");
+  }
+}
@@ -0,0 +1,58 @@
+package com.lucidworks.solr.fusion;
+
+import org.apache.solr.common.params.SolrParams;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a search log event from the request params and serializing it to JSON,
+ * the work split between the request thread and the shipper threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SearchLogEventBenchmark {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private SolrParams params;
+  private Map<String, Object> event;
+
+  @Setup
+  public void setUp() {
+    params = CatalogDocs.searchParams();
+    event = newEvent();
+  }
+
+  @Benchmark
+  public Map<String, String[]> toMultiMap() {
+    return LogToFusionComponent.toMultiMap(params);
+  }
+
+  @Benchmark
+  public byte[] serializeEvent() throws Exception {
+    return objectMapper.writeValueAsBytes(event);
+  }
+
+  @Benchmark
+  public byte[] buildAndSerializeEvent() throws Exception {
+    return objectMapper.writeValueAsBytes(newEvent());
+  }
+
+  private Map<String, Object> newEvent() {
+    Map<String, Object> searchEvent = new HashMap<String, Object>();
+    searchEvent.put("numFound", 1234L);
+    searchEvent.put("QTime", 12L);
+    searchEvent.put("queryParams", LogToFusionComponent.toMultiMap(params));
+    return searchEvent;
+  }
+}
@@ -0,0 +1,125 @@
+package com.lucidworks.solr.fusion;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-process stand-in for Fusion, used by the end-to-end benchmarks. Every call is answered
+ * after 'latencyMs' milliseconds:
+ *
+ * - the query-pipeline answers with a fixed response,
+ * - the index-profile returns the documents it was sent with an extra field, in the format it was asked for,
+ * - the searchLogs endpoint discards the events.
+ */
+public class StubFusionServer {
+
+  static final String COLLECTION = "bench";
+
+  static final String PIPELINE_RESPONSE = "{\"responseHeader\": {\"status\": 0, \"QTime\": 1}, \"fusion\": {" +
+    "\"query-params\": {\"q\": [\"ipod\"], \"rows\": [\"10\"], \"fq\": [\"type:product\", \"inStock:true\"], " +
+    "\"qf\": [\"name^10 features^2 text\"], \"defType\": [\"edismax\"]}, " +
+    "\"landing-pages\": [\"http://www.lucidworks.com/ipod\"], " +
+    "\"rules\": {\"boosts\": [{\"field\": \"brand\", \"value\": \"apple\", \"weight\": 2.0}], \"filters\": []}}}";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMs;
+
+  public StubFusionServer(long latencyMs) throws IOException {
+    this.latencyMs = latencyMs;
+    // the JDK server writes the headers and the body separately, without this every response
+    // waits on Nagle's algorithm and a delayed ACK (~40ms) and the benchmarks only measure that
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+
+    server.createContext("/api/collections/" + COLLECTION + "/query-profiles/default/select", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        pause();
+        respond(exchange, "application/json", PIPELINE_RESPONSE.getBytes("UTF-8"));
+      }
+    });
+
+    server.createContext("/api/collections/" + COLLECTION + "/index-profiles/default/index", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        FusionDocumentCodec requestCodec =
+          FusionDocumentCodec.forContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+        FusionDocumentCodec responseCodec =
+          FusionDocumentCodec.forContentType(exchange.getRequestHeaders().getFirst("Accept").split(",")[0]);
+        List<SolrInputDocument> docs = requestCodec.read(exchange.getRequestBody());
+        for (SolrInputDocument doc : docs) {
+          doc.addField("enriched_b", Boolean.TRUE);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        responseCodec.write(docs, body);
+        pause();
+        respond(exchange, responseCodec.getContentType(), body.toByteArray());
+      }
+    });
+
+    server.createContext("/api/searchLogs/" + COLLECTION + "/searchlog", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        pause();
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    });
+  }
+
+  public StubFusionServer start() {
+    server.start();
+    return this;
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * The value of 'fusion_base_url' for the plugins.
+   */
+  public String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+  }
+
+  private void pause() {
+    if (latencyMs > 0) {
+      try {
+        Thread.sleep(latencyMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+    exchange.getResponseHeaders().add("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    byte[] buffer = new byte[8192];
+    while (in.read(buffer) != -1) {
+      // discard
+    }
+    in.close();
+  }
+}
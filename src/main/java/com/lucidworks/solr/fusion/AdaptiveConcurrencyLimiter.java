@@ -0,0 +1,164 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.util.NamedList;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class {@code AdaptiveConcurrencyLimiter} bounds the number of concurrent calls to Fusion with a
+ * limit that follows what Fusion can take (AIMD): the limit grows by one per round of successful calls
+ * that used it fully, and shrinks by 'backoffRatio' when a call fails or takes more than 'tolerance'
+ * times the no-load latency (the fastest call of the last {@value #PROBE_SAMPLES}). A call of a few documents is
+ * faster than a full batch, so the no-load latency is kept for each number of documents per call: the remainder
+ * of a batch does not make the full batches look slow.
+ *
+ * Callers wait for a permit with {@link #acquire}, report the call with {@link #onSuccess} or
+ * {@link #onFailure}, and give the permit back with {@link #release}.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  // the no-load latency is learnt again after this many calls, so that it follows Fusion
+  static final int PROBE_SAMPLES = 1000;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double tolerance;
+  private final double backoffRatio;
+
+  /**
+   * The no-load latency of the calls of one size.
+   */
+  private static final class Baseline {
+    long noLoadNanos = Long.MAX_VALUE;
+    long probeMinNanos = Long.MAX_VALUE;
+    int probeSamples = 0;
+  }
+
+  private double limit;
+  private int inFlight = 0;
+  // by the number of documents per call, at most the batch size of them
+  private final Map<Integer, Baseline> baselines = new HashMap<Integer, Baseline>();
+  // the no-load latency of the last successful call, the length of a round trip
+  private long roundTripNanos = Long.MAX_VALUE;
+  private int largestCall = 0;
+  private long lastDecreaseNanos = 0;
+
+  private long acquired = 0;
+  private long waited = 0;
+  private long timedOut = 0;
+  private long increases = 0;
+  private long decreases = 0;
+
+  public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance, double backoffRatio) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    this.tolerance = tolerance;
+    this.backoffRatio = backoffRatio;
+  }
+
+  /**
+   * Take a permit, waiting up to 'timeoutMs' for one. Returns false if none was free in time.
+   */
+  public synchronized boolean acquire(long timeoutMs) throws InterruptedException {
+    if (inFlight >= (int) limit) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      while (inFlight >= (int) limit) {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+          timedOut++;
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, left);
+      }
+      waited++;
+    }
+    inFlight++;
+    acquired++;
+    return true;
+  }
+
+  public synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * A call holding a permit succeeded after 'latencyNanos', with 'documents' documents.
+   */
+  public synchronized void onSuccess(long latencyNanos, int documents) {
+    Baseline baseline = baselines.get(documents);
+    if (baseline == null) {
+      baseline = new Baseline();
+      baselines.put(documents, baseline);
+      largestCall = Math.max(largestCall, documents);
+    }
+    baseline.probeMinNanos = Math.min(baseline.probeMinNanos, latencyNanos);
+    if (++baseline.probeSamples >= PROBE_SAMPLES) {
+      baseline.noLoadNanos = baseline.probeMinNanos;
+      baseline.probeMinNanos = Long.MAX_VALUE;
+      baseline.probeSamples = 0;
+    }
+    baseline.noLoadNanos = Math.min(baseline.noLoadNanos, latencyNanos);
+    roundTripNanos = baseline.noLoadNanos;
+
+    if (latencyNanos > baseline.noLoadNanos * tolerance) {
+      // Fusion is queueing the calls
+      decrease();
+    } else if (inFlight >= (int) limit && limit < maxLimit) {
+      // the limit is in use and Fusion keeps up: probe a bit higher
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+      increases++;
+      notifyAll();
+    }
+  }
+
+  /**
+   * A call holding a permit failed.
+   */
+  public synchronized void onFailure() {
+    decrease();
+  }
+
+  private void decrease() {
+    long now = System.nanoTime();
+    // the calls in flight bring the same news, back off once per round trip
+    if (roundTripNanos != Long.MAX_VALUE && now - lastDecreaseNanos < roundTripNanos) {
+      return;
+    }
+    lastDecreaseNanos = now;
+    if (limit > minLimit) {
+      limit = Math.max(minLimit, limit * backoffRatio);
+      decreases++;
+    }
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("limit", (int) limit);
+    stats.add("minLimit", minLimit);
+    stats.add("maxLimit", maxLimit);
+    stats.add("inFlight", inFlight);
+    // of the calls with the most documents, the full batches
+    Baseline full = baselines.get(largestCall);
+    stats.add("noLoadLatencyMs", full == null ? 0.0 : full.noLoadNanos / 1000000.0);
+    stats.add("noLoadDocuments", largestCall);
+    stats.add("acquired", acquired);
+    stats.add("waited", waited);
+    stats.add("timedOut", timedOut);
+    stats.add("increases", increases);
+    stats.add("decreases", decreases);
+    return stats;
+  }
+}
@@ -0,0 +1,62 @@
+package com.lucidworks.solr.fusion;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free count-min sketch: the estimated count of a key in a fixed 'depth' x 'width' table
+ * of counters. The estimate is never below the true count, and above it by at most
+ * e / width of the total count with probability 1 - exp(-depth).
+ */
+public class CountMinSketch {
+
+  private final int depth;
+  private final int width;
+  private final AtomicLongArray counters;
+
+  public CountMinSketch(int depth, int width) {
+    this.depth = depth;
+    this.width = width;
+    this.counters = new AtomicLongArray(depth * width);
+  }
+
+  public void add(String key, long count) {
+    long hash = hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int row = 0; row < depth; row++) {
+      counters.addAndGet(row * width + index(h1 + row * h2), count);
+    }
+  }
+
+  public long estimate(String key) {
+    long hash = hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    long min = Long.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      min = Math.min(min, counters.get(row * width + index(h1 + row * h2)));
+    }
+    return min;
+  }
+
+  private int index(int hash) {
+    return (hash & Integer.MAX_VALUE) % width;
+  }
+
+  /**
+   * 64 bit FNV-1a of the chars, with a final mix so both halves are usable as hashes
+   * (the rows use h1 + row * h2).
+   */
+  private static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,261 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.update.processor.DistributedUpdateProcessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the documents returned by the index-pipeline, so that documents sent again unchanged
+ * (nightly re-feeds of a catalog) are not sent to Fusion again.
+ *
+ * The key is a 128 bit hash of the incoming document, its fields in a stable canonical order, and of
+ * the 'version' of the index-profile: change the version when the pipeline changes, and the entries of
+ * the previous version are not used anymore. The '_version_' field, assigned anew to every update by the
+ * shard leader, is not part of the key. The value is the pipeline output in JavaBin.
+ *
+ * The entries live in a {@link Store}, on the heap or in a memory-mapped file ({@link MappedResultStore}).
+ */
+public class DocumentSkipCache {
+
+  /**
+   * Where the encoded pipeline output is kept, keyed by the 16 byte hash of the input document.
+   */
+  public interface Store {
+    byte[] get(byte[] key);
+
+    void put(byte[] key, byte[] value);
+
+    NamedList<Object> getStatistics();
+
+    void close();
+  }
+
+  private final String version;
+  private final Store store;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+
+  public DocumentSkipCache(String version, Store store) {
+    this.version = version;
+    this.store = store;
+  }
+
+  /**
+   * The pipeline output cached for this input document, or null.
+   */
+  public SolrInputDocument get(byte[] key) {
+    byte[] value = store.get(key);
+    if (value != null) {
+      try {
+        Object doc = new JavaBinCodec().unmarshal(new ByteArrayInputStream(value));
+        if (doc instanceof SolrInputDocument) {
+          hits.incrementAndGet();
+          return (SolrInputDocument) doc;
+        }
+      } catch (IOException e) {
+        // an entry we cannot read is a miss
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(byte[] key, SolrInputDocument fusionDoc) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    try {
+      new JavaBinCodec().marshal(fusionDoc, out);
+    } catch (IOException e) {
+      // documents with values JavaBin cannot encode are not cached
+      return;
+    }
+    store.put(key, out.toByteArray());
+    puts.incrementAndGet();
+  }
+
+  /**
+   * The hash of the document and the index-profile version: field names are sorted, values keep
+   * their order, and every value is hashed with its type.
+   */
+  public byte[] key(SolrInputDocument doc) {
+    MessageDigest digest;
+    try {
+      // not used for security, only as a wide and stable hash
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    update(digest, version);
+    update(digest, doc);
+    return digest.digest();
+  }
+
+  private static void update(MessageDigest digest, SolrInputDocument doc) {
+    List<String> names = new ArrayList<String>(doc.getFieldNames());
+    Collections.sort(names);
+    digest.update((byte) '{');
+    update(digest, Float.floatToIntBits(doc.getDocumentBoost()));
+    for (String name : names) {
+      if (DistributedUpdateProcessor.VERSION_FIELD.equals(name)) {
+        continue;
+      }
+      SolrInputField field = doc.getField(name);
+      update(digest, name);
+      update(digest, Float.floatToIntBits(field.getBoost()));
+      digest.update((byte) '[');
+      for (Object value : field) {
+        updateValue(digest, value);
+      }
+      digest.update((byte) ']');
+    }
+    if (doc.hasChildDocuments()) {
+      for (SolrInputDocument child : doc.getChildDocuments()) {
+        update(digest, child);
+      }
+    }
+    digest.update((byte) '}');
+  }
+
+  private static void updateValue(MessageDigest digest, Object value) {
+    if (value == null) {
+      digest.update((byte) 0);
+    } else if (value instanceof byte[]) {
+      digest.update((byte) 'b');
+      update(digest, ((byte[]) value).length);
+      digest.update((byte[]) value);
+    } else if (value instanceof Date) {
+      digest.update((byte) 'd');
+      update(digest, String.valueOf(((Date) value).getTime()));
+    } else if (value instanceof Map) {
+      // atomic updates, in a stable order
+      digest.update((byte) 'm');
+      List<String> keys = new ArrayList<String>();
+      for (Object key : ((Map) value).keySet()) {
+        keys.add(String.valueOf(key));
+      }
+      Collections.sort(keys);
+      for (String key : keys) {
+        update(digest, key);
+        updateValue(digest, ((Map) value).get(key));
+      }
+    } else if (value instanceof Collection) {
+      digest.update((byte) 'c');
+      for (Object item : (Collection) value) {
+        updateValue(digest, item);
+      }
+    } else if (value instanceof SolrInputDocument) {
+      update(digest, (SolrInputDocument) value);
+    } else {
+      // strings, numbers and booleans: the type matters, 1 and "1" are different values
+      update(digest, value.getClass().getName());
+      update(digest, value.toString());
+    }
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    byte[] bytes;
+    try {
+      bytes = value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+    update(digest, bytes.length);
+    digest.update(bytes);
+  }
+
+  private static void update(MessageDigest digest, int value) {
+    digest.update((byte) (value >>> 24));
+    digest.update((byte) (value >>> 16));
+    digest.update((byte) (value >>> 8));
+    digest.update((byte) value);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("version", version);
+    long lookups = hits.get() + misses.get();
+    stats.add("lookups", lookups);
+    stats.add("hits", hits.get());
+    stats.add("hitratio", lookups == 0 ? 0.0 : (double) hits.get() / lookups);
+    stats.add("misses", misses.get());
+    stats.add("puts", puts.get());
+    stats.add("store", store.getStatistics());
+    return stats;
+  }
+
+  public void close() {
+    store.close();
+  }
+
+  /**
+   * Keeps the entries on the heap, evicting the least recently used one past 'maxEntries'.
+   */
+  public static class HeapStore implements Store {
+    private final int maxEntries;
+    private long evictions = 0;
+    private final LinkedHashMap<ByteBuffer, byte[]> entries;
+
+    public HeapStore(final int maxEntries) {
+      this.maxEntries = maxEntries;
+      this.entries = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+          if (size() > HeapStore.this.maxEntries) {
+            evictions++;
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    public synchronized byte[] get(byte[] key) {
+      return entries.get(ByteBuffer.wrap(key));
+    }
+
+    public synchronized void put(byte[] key, byte[] value) {
+      entries.put(ByteBuffer.wrap(key.clone()), value);
+    }
+
+    public synchronized NamedList<Object> getStatistics() {
+      NamedList<Object> stats = new NamedList<Object>();
+      stats.add("type", "heap");
+      stats.add("size", entries.size());
+      stats.add("maxEntries", maxEntries);
+      stats.add("evictions", evictions);
+      return stats;
+    }
+
+    public synchronized void close() {
+      entries.clear();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.solr.common.params.SolrParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds the form-encoded (application/x-www-form-urlencoded, UTF-8) body of a query-pipeline request
+ * straight from the params, into a buffer reused by the thread: no name-value pairs nor encoded strings
+ * are created on the way.
+ *
+ * The entity shares the buffer of the thread, it must be sent before the thread builds another body. A
+ * hedged call, whose attempts outlive it on other threads, sends a copy.
+ */
+public class FormBody {
+
+  static final ContentType FORM_UTF8 = ContentType.create("application/x-www-form-urlencoded", "UTF-8");
+
+  // a buffer that grew past this is not kept by the thread, one huge request should not pin its memory
+  static final int MAX_RETAINED_BYTES = 256 * 1024;
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * A byte buffer that hands out its array instead of a copy.
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+    Buffer(int size) {
+      super(size);
+    }
+
+    ByteArrayEntity entity() {
+      return new ByteArrayEntity(buf, 0, count, FORM_UTF8);
+    }
+  }
+
+  private static final ThreadLocal<Buffer[]> buffers = new ThreadLocal<Buffer[]>() {
+    @Override
+    protected Buffer[] initialValue() {
+      return new Buffer[] {new Buffer(4096), new Buffer(4096)};
+    }
+  };
+
+  private FormBody() {
+  }
+
+  /**
+   * Encode the params the filter accepts (all if null), followed by the 'extra' name-value pairs.
+   *
+   * @param gzipMinBytes gzip the body when it is at least this long, -1 never to gzip it
+   */
+  public static ByteArrayEntity encode(SolrParams params, FusionParamFilter filter, int gzipMinBytes,
+                                       String... extra) throws IOException {
+    Buffer[] threadBuffers = buffers.get();
+    Buffer form = reset(threadBuffers, 0);
+    Iterator<String> names = params.getParameterNamesIterator();
+    while (names.hasNext()) {
+      String name = names.next();
+      if (filter != null && !filter.accept(name)) {
+        continue;
+      }
+      String[] values = params.getParams(name);
+      if (values == null) {
+        continue;
+      }
+      for (String value : values) {
+        append(form, name, value);
+      }
+    }
+    for (int i = 0; i + 1 < extra.length; i += 2) {
+      append(form, extra[i], extra[i + 1]);
+    }
+
+    if (gzipMinBytes < 0 || form.size() < gzipMinBytes) {
+      return form.entity();
+    }
+    Buffer gzipped = reset(threadBuffers, 1);
+    GZIPOutputStream gzip = new GZIPOutputStream(gzipped, 8192);
+    form.writeTo(gzip);
+    gzip.close();
+    ByteArrayEntity entity = gzipped.entity();
+    entity.setContentEncoding("gzip");
+    return entity;
+  }
+
+  private static Buffer reset(Buffer[] threadBuffers, int i) {
+    if (threadBuffers[i].size() > MAX_RETAINED_BYTES) {
+      threadBuffers[i] = new Buffer(4096);
+    }
+    threadBuffers[i].reset();
+    return threadBuffers[i];
+  }
+
+  private static void append(Buffer out, String name, String value) throws IOException {
+    if (out.size() > 0) {
+      out.write('&');
+    }
+    encode(name, out);
+    out.write('=');
+    encode(value, out);
+  }
+
+  /**
+   * Percent-encode the UTF-8 bytes of the string, as {@link java.net.URLEncoder} does.
+   */
+  static void encode(String s, OutputStream out) throws IOException {
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+        c == '.' || c == '-' || c == '*' || c == '_') {
+        out.write(c);
+      } else if (c == ' ') {
+        out.write('+');
+      } else if (c < 0x80) {
+        escape(c, out);
+      } else if (c < 0x800) {
+        escape(0xC0 | (c >> 6), out);
+        escape(0x80 | (c & 0x3F), out);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        escape(0xF0 | (codePoint >> 18), out);
+        escape(0x80 | ((codePoint >> 12) & 0x3F), out);
+        escape(0x80 | ((codePoint >> 6) & 0x3F), out);
+        escape(0x80 | (codePoint & 0x3F), out);
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // an unpaired surrogate cannot be encoded, the charset encoder replaces it the same way
+        escape('?', out);
+      } else {
+        escape(0xE0 | (c >> 12), out);
+        escape(0x80 | ((c >> 6) & 0x3F), out);
+        escape(0x80 | (c & 0x3F), out);
+      }
+    }
+  }
+
+  private static void escape(int b, OutputStream out) throws IOException {
+    out.write('%');
+    out.write(HEX[(b >> 4) & 0xF]);
+    out.write(HEX[b & 0xF]);
+  }
+}
@@ -0,0 +1,153 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.util.NamedList;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters and latency histograms of the calls made through a {@link FusionClient}.
+ *
+ * The latency of a call is split in three phases:
+ * - write: writing the request body to the connection; bodies are streamed, so this is encoding them and
+ *   sending them over the network together, TCP backpressure included,
+ * - network: connecting, sending the headers and waiting for the response headers,
+ * - parse: reading and parsing the response body in the response handler.
+ */
+public class FusionCallMetrics {
+
+  public enum Outcome {
+    SUCCESS, ERROR, TIMEOUT,
+    /** aborted because another call for the same request (a hedge) answered first */
+    CANCELLED
+  }
+
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong successes = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong cancelled = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  private final LatencyHistogram total = new LatencyHistogram();
+  private final LatencyHistogram write = new LatencyHistogram();
+  private final LatencyHistogram network = new LatencyHistogram();
+  private final LatencyHistogram parse = new LatencyHistogram();
+
+  /**
+   * A call was not made because the circuit breaker is open.
+   */
+  public void recordRejected() {
+    rejected.incrementAndGet();
+  }
+
+  public void callStarted() {
+    calls.incrementAndGet();
+    inFlight.incrementAndGet();
+  }
+
+  public void callFinished(Outcome outcome, long totalNanos, long writeNanos, long networkNanos, long parseNanos,
+                           long sent, long received) {
+    inFlight.decrementAndGet();
+    bytesSent.addAndGet(sent);
+    bytesReceived.addAndGet(received);
+    if (outcome == Outcome.CANCELLED) {
+      // cut short, the latency would skew the histograms low
+      cancelled.incrementAndGet();
+      return;
+    }
+    switch (outcome) {
+      case SUCCESS:
+        successes.incrementAndGet();
+        break;
+      case TIMEOUT:
+        timeouts.incrementAndGet();
+        break;
+      default:
+        errors.incrementAndGet();
+    }
+    total.record(totalNanos);
+    write.record(writeNanos);
+    network.record(networkNanos);
+    // calls that failed before the response arrived have nothing to parse
+    if (parseNanos >= 0) {
+      parse.record(parseNanos);
+    }
+  }
+
+  public long getCalls() {
+    return calls.get();
+  }
+
+  public long getSuccesses() {
+    return successes.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getCancelled() {
+    return cancelled.get();
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  public LatencyHistogram getTotal() {
+    return total;
+  }
+
+  public LatencyHistogram getWrite() {
+    return write;
+  }
+
+  public LatencyHistogram getNetwork() {
+    return network;
+  }
+
+  public LatencyHistogram getParse() {
+    return parse;
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("calls", getCalls());
+    stats.add("successes", getSuccesses());
+    stats.add("errors", getErrors());
+    stats.add("timeouts", getTimeouts());
+    stats.add("rejected", getRejected());
+    stats.add("cancelled", getCancelled());
+    stats.add("inFlight", getInFlight());
+    stats.add("bytesSent", getBytesSent());
+    stats.add("bytesReceived", getBytesReceived());
+    NamedList<Object> latency = new NamedList<Object>();
+    latency.add("total", total.getStatistics());
+    latency.add("write", write.getStatistics());
+    latency.add("network", network.getStatistics());
+    latency.add("parse", parse.getStatistics());
+    stats.add("latency", latency);
+    return stats;
+  }
+}
@@ -0,0 +1,203 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * The class {@code FusionCircuitBreaker} stops calling Fusion while it is failing or slow.
+ *
+ * While CLOSED, the outcome of the last 'breaker_window' calls is tracked; a call fails if it
+ * throws or takes longer than 'breaker_slow_call_ms'. Once at least 'breaker_min_calls' calls
+ * were made and the share of failed calls reaches 'breaker_failure_rate', the breaker OPENs and
+ * callers fall back immediately. After 'breaker_open_ms' the breaker is HALF_OPEN and lets
+ * 'breaker_half_open_probes' calls through: if they all succeed the breaker closes, if any of
+ * them fails it opens again.
+ *
+ * An outcome only counts in the state its call was admitted in: the late answers of calls made while
+ * CLOSED neither close a HALF_OPEN breaker nor open it again.
+ */
+public class FusionCircuitBreaker {
+
+  protected static Logger log = LoggerFactory.getLogger(FusionCircuitBreaker.class);
+
+  public static final String BREAKER_ENABLED_PARAM = "breaker_enabled";
+  public static final String BREAKER_FAILURE_RATE_PARAM = "breaker_failure_rate";
+  public static final String BREAKER_SLOW_CALL_MS_PARAM = "breaker_slow_call_ms";
+  public static final String BREAKER_WINDOW_PARAM = "breaker_window";
+  public static final String BREAKER_MIN_CALLS_PARAM = "breaker_min_calls";
+  public static final String BREAKER_OPEN_MS_PARAM = "breaker_open_ms";
+  public static final String BREAKER_HALF_OPEN_PROBES_PARAM = "breaker_half_open_probes";
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  /**
+   * Thrown instead of calling Fusion while the breaker is open.
+   */
+  public static class CircuitBreakerOpenException extends IOException {
+    public CircuitBreakerOpenException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Given to a call admitted by {@link #allowRequest}, and back with its outcome to {@link #record}. A new
+   * one is handed out after every transition, so an outcome is matched with the state the call was admitted in.
+   */
+  public static final class Permit {
+    private Permit() {
+    }
+  }
+
+  private final String name;
+  private final double failureRate;
+  private final long slowCallMs;
+  private final int minCalls;
+  private final long openMs;
+  private final int halfOpenProbes;
+
+  // ring buffer of the outcome of the last calls, true for a failure
+  private final boolean[] window;
+  private int windowPos = 0;
+  private int windowCount = 0;
+  private int windowFailures = 0;
+
+  private State state = State.CLOSED;
+  // handed to the calls admitted since the last transition
+  private Permit permit = new Permit();
+  private long openedAt = 0;
+  private int probesStarted = 0;
+  private int probesSucceeded = 0;
+
+  private long timesOpened = 0;
+  private long rejected = 0;
+
+  public FusionCircuitBreaker(String name, double failureRate, long slowCallMs, int windowSize,
+                              int minCalls, long openMs, int halfOpenProbes) {
+    this.name = name;
+    this.failureRate = failureRate;
+    this.slowCallMs = slowCallMs;
+    this.window = new boolean[Math.max(1, windowSize)];
+    this.minCalls = Math.min(Math.max(1, minCalls), window.length);
+    this.openMs = openMs;
+    this.halfOpenProbes = Math.max(1, halfOpenProbes);
+  }
+
+  /**
+   * Create a breaker from the 'breaker_*' params, or return null if 'breaker_enabled' is false.
+   */
+  public static FusionCircuitBreaker create(String name, SolrParams params, long defaultSlowCallMs) {
+    if (!params.getBool(BREAKER_ENABLED_PARAM, true)) {
+      return null;
+    }
+    return new FusionCircuitBreaker(name,
+      params.getDouble(BREAKER_FAILURE_RATE_PARAM, 0.5),
+      params.getLong(BREAKER_SLOW_CALL_MS_PARAM, defaultSlowCallMs),
+      params.getInt(BREAKER_WINDOW_PARAM, 20),
+      params.getInt(BREAKER_MIN_CALLS_PARAM, 10),
+      params.getLong(BREAKER_OPEN_MS_PARAM, 5000),
+      params.getInt(BREAKER_HALF_OPEN_PROBES_PARAM, 3));
+  }
+
+  /**
+   * Returns a permit if a call to Fusion may be made now, null otherwise. Every permitted call must be
+   * followed by a call to {@link #record} with its permit.
+   */
+  public synchronized Permit allowRequest() {
+    if (state == State.OPEN) {
+      if (System.currentTimeMillis() - openedAt < openMs) {
+        rejected++;
+        return null;
+      }
+      transition(State.HALF_OPEN);
+      probesStarted = 0;
+      probesSucceeded = 0;
+    }
+
+    if (state == State.HALF_OPEN) {
+      if (probesStarted >= halfOpenProbes) {
+        rejected++;
+        return null;
+      }
+      probesStarted++;
+    }
+    return permit;
+  }
+
+  /**
+   * Record the outcome of a permitted call.
+   */
+  public synchronized void record(Permit callPermit, boolean succeeded, long latencyMs) {
+    if (callPermit != permit) {
+      // a late outcome of a call admitted before the last transition
+      return;
+    }
+    boolean failure = !succeeded || (slowCallMs > 0 && latencyMs >= slowCallMs);
+
+    if (state == State.HALF_OPEN) {
+      if (failure) {
+        open();
+      } else if (++probesSucceeded >= halfOpenProbes) {
+        resetWindow();
+        transition(State.CLOSED);
+      }
+      return;
+    }
+
+    if (windowCount == window.length) {
+      if (window[windowPos]) {
+        windowFailures--;
+      }
+    } else {
+      windowCount++;
+    }
+    window[windowPos] = failure;
+    if (failure) {
+      windowFailures++;
+    }
+    windowPos = (windowPos + 1) % window.length;
+
+    if (windowCount >= minCalls && windowFailures >= failureRate * windowCount) {
+      open();
+    }
+  }
+
+  private void open() {
+    openedAt = System.currentTimeMillis();
+    timesOpened++;
+    resetWindow();
+    transition(State.OPEN);
+  }
+
+  private void resetWindow() {
+    windowPos = 0;
+    windowCount = 0;
+    windowFailures = 0;
+  }
+
+  private void transition(State newState) {
+    if (state != newState) {
+      log.warn("Circuit breaker for " + name + " changed from " + state + " to " + newState);
+      state = newState;
+      permit = new Permit();
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("state", state.toString());
+    stats.add("windowCalls", windowCount);
+    stats.add("windowFailures", windowFailures);
+    stats.add("timesOpened", timesOpened);
+    stats.add("rejected", rejected);
+    return stats;
+  }
+}
@@ -0,0 +1,685 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class {@code FusionClient} is the single path used by the components to call Fusion.
+ *
+ * Every call is guarded by an optional {@link FusionCircuitBreaker} and bounded by a deadline:
+ * when the deadline passes, the request is aborted, whatever stage it is in, and a
+ * {@link SocketTimeoutException} is thrown.
+ *
+ * Every call is also measured, see {@link FusionCallMetrics}.
+ *
+ * With {@link FusionEndpoints}, the calls addressed to 'fusion_base_url' are spread over the Fusion
+ * API nodes, and a call that could not connect is retried once on another node. With hedging enabled,
+ * a second call is sent to another node when the first has not answered within the observed p95
+ * (or 'hedge_delay_ms'), for at most 'hedge_budget' of the requests; the first answer wins and the
+ * other call is aborted.
+ */
+public class FusionClient {
+
+  public static final String SO_TIMEOUT_PARAM = "so_timeout";
+  public static final String CONNECTION_TIMEOUT_PARAM = "connection_timeout";
+  public static final String DEADLINE_MS_PARAM = "deadline_ms";
+  public static final String HEDGE_PARAM = "hedge";
+  public static final String HEDGE_DELAY_MS_PARAM = "hedge_delay_ms";
+  public static final String HEDGE_BUDGET_PARAM = "hedge_budget";
+
+  // the observed p95 is not used to hedge before this many calls
+  static final int MIN_HEDGE_SAMPLES = 100;
+
+  // a single daemon thread aborts the requests that run past their deadline
+  private static final ScheduledThreadPoolExecutor deadlineTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "fusion-deadline-timer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  static {
+    deadlineTimer.setRemoveOnCancelPolicy(true);
+  }
+
+  private final HttpClient httpClient;
+  private final FusionCircuitBreaker breaker;
+  private final long deadlineMs;
+  private final FusionCallMetrics metrics = new FusionCallMetrics();
+  private final FusionEndpoints endpoints;
+
+  private ExecutorService hedgeExecutor;
+  private long hedgeDelayMs;
+  private double hedgeBudget;
+  private final AtomicLong hedgeable = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+
+  public FusionClient(HttpClient httpClient, FusionCircuitBreaker breaker, long deadlineMs) {
+    this(httpClient, breaker, deadlineMs, null);
+  }
+
+  public FusionClient(HttpClient httpClient, FusionCircuitBreaker breaker, long deadlineMs, FusionEndpoints endpoints) {
+    this.httpClient = httpClient;
+    this.breaker = breaker;
+    this.deadlineMs = deadlineMs;
+    this.endpoints = endpoints;
+  }
+
+  /**
+   * Hedge the calls to the endpoints: a second call goes to another node after 'delayMs', or after the
+   * observed p95 if 0, for at most a 'budget' share of the requests.
+   */
+  public void enableHedging(long delayMs, double budget, int maxThreads) {
+    this.hedgeDelayMs = delayMs;
+    this.hedgeBudget = budget;
+    this.hedgeExecutor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "fusion-hedge-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public static HttpClient createHttpClient(int maxConnections, int maxConnectionsPerHost,
+                                            int soTimeout, int connectionTimeout) {
+    ModifiableSolrParams clientParams = new ModifiableSolrParams();
+    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS, maxConnections);
+    clientParams.set(HttpClientUtil.PROP_SO_TIMEOUT, soTimeout);
+    clientParams.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectionTimeout);
+    clientParams.set(HttpClientUtil.PROP_USE_RETRY, false);
+    return HttpClientUtil.createClient(clientParams);
+  }
+
+  public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+    return execute(request, handler, deadlineMs);
+  }
+
+  /**
+   * Execute the request, failing fast while the breaker is open.
+   *
+   * @param timeoutMs the time left for the whole call, including reading the response; 0 for no limit
+   */
+  public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler, long timeoutMs) throws IOException {
+    String suffix = endpoints != null && request instanceof HttpRequestBase ? endpoints.suffix(request.getURI()) : null;
+    if (suffix == null) {
+      return executeOnce(request, handler, timeoutMs, null);
+    }
+    if (hedgeExecutor != null) {
+      return executeHedged((HttpRequestBase) request, suffix, handler, timeoutMs);
+    }
+    long start = System.currentTimeMillis();
+    FusionEndpoints.Endpoint endpoint = endpoints.select(null);
+    try {
+      return executeOn(endpoint, (HttpRequestBase) request, suffix, handler, timeoutMs, null);
+    } catch (ConnectException e) {
+      return retry(endpoint, (HttpRequestBase) request, suffix, handler, timeoutMs, start, e);
+    }
+  }
+
+  /**
+   * Send a request that could not connect to another node: it was not sent, so it is safe to retry.
+   */
+  private <T> T retry(FusionEndpoints.Endpoint failed, HttpRequestBase request, String suffix,
+                      ResponseHandler<? extends T> handler, long timeoutMs, long start, ConnectException e) throws IOException {
+    FusionEndpoints.Endpoint other = endpoints.select(failed);
+    if (other == null) {
+      throw e;
+    }
+    retries.incrementAndGet();
+    request.reset();
+    return executeOn(other, request, suffix, handler, remaining(timeoutMs, start), null);
+  }
+
+  private static long remaining(long timeoutMs, long start) {
+    return timeoutMs > 0 ? Math.max(1, timeoutMs - (System.currentTimeMillis() - start)) : 0;
+  }
+
+  /**
+   * Execute the request on a node; the uri is addressed to it for the duration of the call.
+   */
+  private <T> T executeOn(FusionEndpoints.Endpoint endpoint, HttpRequestBase request, String suffix,
+                          ResponseHandler<? extends T> handler, long timeoutMs, CallAbort abort) throws IOException {
+    URI uri = request.getURI();
+    request.setURI(URI.create(endpoint.getBaseUrl() + suffix));
+    endpoints.callStarted(endpoint);
+    boolean succeeded = false;
+    try {
+      T result = executeOnce(request, handler, timeoutMs, abort);
+      succeeded = true;
+      return result;
+    } catch (FusionCircuitBreaker.CircuitBreakerOpenException e) {
+      // not a failure of the node
+      succeeded = true;
+      throw e;
+    } finally {
+      if (abort != null && abort.cancelled) {
+        endpoints.callCancelled(endpoint);
+      } else {
+        endpoints.callFinished(endpoint, succeeded);
+      }
+      request.setURI(uri);
+    }
+  }
+
+  /**
+   * Give the request a body of its own. The attempts run on the hedging threads, and the one that lost may still
+   * be writing its body after this call returned, while the caller reuses its buffer (see {@link FormBody}).
+   */
+  private static void detachBody(HttpRequestBase request) throws IOException {
+    if (!(request instanceof HttpEntityEnclosingRequest)) {
+      return;
+    }
+    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    if (entity instanceof ByteArrayEntity) {
+      ByteArrayEntity copy = new ByteArrayEntity(EntityUtils.toByteArray(entity));
+      copy.setContentType(entity.getContentType());
+      copy.setContentEncoding(entity.getContentEncoding());
+      ((HttpEntityEnclosingRequest) request).setEntity(copy);
+    }
+  }
+
+  /**
+   * Send the request to a node, and a copy to another one if the first has not answered after the hedge delay.
+   */
+  private <T> T executeHedged(HttpRequestBase request, final String suffix, final ResponseHandler<? extends T> handler,
+                              final long timeoutMs) throws IOException {
+    final long start = System.currentTimeMillis();
+    hedgeable.incrementAndGet();
+    detachBody(request);
+    // copied before the call wraps the entity of the request
+    HttpRequestBase copy = null;
+    try {
+      copy = (HttpRequestBase) request.clone();
+    } catch (CloneNotSupportedException e) {
+      // an entity that cannot be copied is not hedged
+    }
+
+    CompletionService<T> completion = new ExecutorCompletionService<T>(hedgeExecutor);
+    List<Attempt<T>> attempts = new ArrayList<Attempt<T>>(2);
+    Attempt<T> primary = new Attempt<T>(request, endpoints.select(null));
+    try {
+      try {
+        primary.submit(completion, suffix, handler, timeoutMs, start);
+      } catch (RejectedExecutionException e) {
+        // all the hedging threads are busy
+        return executeOn(primary.endpoint, request, suffix, handler, timeoutMs, null);
+      }
+      attempts.add(primary);
+
+      Attempt<T> hedge = null;
+      long delay = hedgeDelay();
+      Future<T> done = delay >= 0 ? completion.poll(delay, TimeUnit.MILLISECONDS) : completion.take();
+      if (done == null) {
+        FusionEndpoints.Endpoint other = endpoints.select(primary.endpoint);
+        if (copy != null && other != null && hedges.get() < hedgeBudget * hedgeable.get()) {
+          hedge = new Attempt<T>(copy, other);
+          try {
+            hedge.submit(completion, suffix, handler, timeoutMs, start);
+            attempts.add(hedge);
+            hedges.incrementAndGet();
+          } catch (RejectedExecutionException e) {
+            hedge = null;
+          }
+        }
+        done = completion.take();
+      }
+
+      int pending = attempts.size();
+      while (true) {
+        pending--;
+        try {
+          T result = done.get();
+          if (hedge != null && done == hedge.future) {
+            hedgeWins.incrementAndGet();
+          }
+          return result;
+        } catch (ExecutionException e) {
+          if (pending == 0) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectException && hedge == null) {
+              return retry(primary.endpoint, copy != null ? copy : request, suffix, handler, timeoutMs, start,
+                (ConnectException) cause);
+            }
+            if (cause instanceof IOException) {
+              throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+              throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+              throw (Error) cause;
+            }
+            throw new IOException(cause);
+          }
+        }
+        done = completion.take();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while calling Fusion at " + request.getURI());
+    } finally {
+      // abort the call that lost
+      for (Attempt<T> attempt : attempts) {
+        if (!attempt.future.isDone()) {
+          attempt.abort.cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * How long to wait for the first call before hedging, or -1 not to hedge.
+   */
+  private long hedgeDelay() {
+    if (hedgeDelayMs > 0) {
+      return hedgeDelayMs;
+    }
+    LatencyHistogram total = metrics.getTotal();
+    if (total.getCount() < MIN_HEDGE_SAMPLES) {
+      return -1;
+    }
+    return Math.max(1, (long) Math.ceil(total.getPercentile(95)));
+  }
+
+  /**
+   * One of the calls of a hedged request.
+   */
+  private class Attempt<T> {
+    final HttpRequestBase request;
+    final FusionEndpoints.Endpoint endpoint;
+    final CallAbort abort;
+    Future<T> future;
+
+    Attempt(HttpRequestBase request, FusionEndpoints.Endpoint endpoint) {
+      this.request = request;
+      this.endpoint = endpoint;
+      this.abort = new CallAbort(request);
+    }
+
+    void submit(CompletionService<T> completion, final String suffix, final ResponseHandler<? extends T> handler,
+                final long timeoutMs, final long start) {
+      future = completion.submit(new Callable<T>() {
+        public T call() throws Exception {
+          return executeOn(endpoint, request, suffix, handler, remaining(timeoutMs, start), abort);
+        }
+      });
+    }
+  }
+
+  /**
+   * Aborts a call whatever stage it is in. The pre-4.3 client used by Solr loses an abort that comes
+   * before, or while, it leases a connection; so the leased connection is also shut down, and the abort
+   * is repeated until the call returns.
+   */
+  private static class CallAbort implements Runnable {
+    // how often a call that survived its abort is aborted again
+    static final long REPEAT_MS = 50;
+
+    final HttpUriRequest request;
+    final HttpContext context = new BasicHttpContext();
+    volatile boolean expired = false;
+    volatile boolean cancelled = false;
+    volatile boolean finished = false;
+    volatile ScheduledFuture<?> scheduled;
+
+    CallAbort(HttpUriRequest request) {
+      this.request = request;
+    }
+
+    /**
+     * The deadline passed.
+     */
+    void expire() {
+      expired = true;
+      run();
+    }
+
+    /**
+     * The call lost to its hedge.
+     */
+    void cancel() {
+      cancelled = true;
+      run();
+    }
+
+    public void run() {
+      if (finished) {
+        return;
+      }
+      request.abort();
+      Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+      if (connection instanceof HttpConnection) {
+        try {
+          ((HttpConnection) connection).shutdown();
+        } catch (IOException e) {
+          // closing it is all we want
+        }
+      }
+      scheduled = deadlineTimer.schedule(this, REPEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void finish() {
+      finished = true;
+      ScheduledFuture<?> repeat = scheduled;
+      if (repeat != null) {
+        repeat.cancel(false);
+      }
+    }
+  }
+
+  private <T> T executeOnce(HttpUriRequest request, ResponseHandler<? extends T> handler, long timeoutMs,
+                            CallAbort callAbort) throws IOException {
+    final CallAbort abort = callAbort != null ? callAbort : new CallAbort(request);
+    final FusionCircuitBreaker.Permit permit = breaker != null ? breaker.allowRequest() : null;
+    if (breaker != null && permit == null) {
+      abort.finish();
+      metrics.recordRejected();
+      throw new FusionCircuitBreaker.CircuitBreakerOpenException(
+        "Circuit breaker is open, not calling Fusion at " + request.getURI());
+    }
+
+    ScheduledFuture<?> deadline = null;
+    if (timeoutMs > 0) {
+      deadline = deadlineTimer.schedule(new Runnable() {
+        public void run() {
+          abort.expire();
+        }
+      }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    // measure the request body as it is written, and the response as it is read and parsed
+    HttpEntity requestEntity = null;
+    MeteredEntity sent = null;
+    if (request instanceof HttpEntityEnclosingRequest) {
+      requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+      if (requestEntity != null) {
+        sent = new MeteredEntity(requestEntity);
+        ((HttpEntityEnclosingRequest) request).setEntity(sent);
+      }
+    }
+    MeteredResponseHandler<T> meteredHandler = new MeteredResponseHandler<T>(handler);
+
+    metrics.callStarted();
+    long start = System.nanoTime();
+    FusionCallMetrics.Outcome outcome = FusionCallMetrics.Outcome.ERROR;
+    try {
+      if (request.isAborted()) {
+        throw new RequestAbortedException("Request aborted before it was sent");
+      }
+      T result;
+      try {
+        result = httpClient.execute(request, meteredHandler, abort.context);
+      } catch (RuntimeException e) {
+        if (!abort.expired && !abort.cancelled) {
+          throw e;
+        }
+        // the client can trip over the connection that the abort took away from it
+        throw new RequestAbortedException("Request aborted", e);
+      }
+      outcome = abort.expired ? FusionCallMetrics.Outcome.TIMEOUT : FusionCallMetrics.Outcome.SUCCESS;
+      return result;
+    } catch (IOException e) {
+      if (abort.cancelled && !abort.expired) {
+        outcome = FusionCallMetrics.Outcome.CANCELLED;
+        throw e;
+      }
+      if (abort.expired) {
+        outcome = FusionCallMetrics.Outcome.TIMEOUT;
+        SocketTimeoutException timeout = new SocketTimeoutException(
+          "Call to Fusion at " + request.getURI() + " exceeded its deadline of " + timeoutMs + "ms");
+        timeout.initCause(e);
+        throw timeout;
+      }
+      if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+        outcome = FusionCallMetrics.Outcome.TIMEOUT;
+      }
+      throw e;
+    } finally {
+      long end = System.nanoTime();
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+      abort.finish();
+      if (sent != null) {
+        ((HttpEntityEnclosingRequest) request).setEntity(requestEntity);
+      }
+      if (breaker != null) {
+        // a call that lost to its hedge did not fail
+        breaker.record(permit, outcome == FusionCallMetrics.Outcome.SUCCESS || outcome == FusionCallMetrics.Outcome.CANCELLED,
+          TimeUnit.NANOSECONDS.toMillis(end - start));
+      }
+
+      long writeNanos = sent != null ? sent.writeNanos : 0;
+      long responseStart = meteredHandler.startNanos != 0 ? meteredHandler.startNanos : end;
+      long parseNanos = meteredHandler.startNanos != 0 ? meteredHandler.endNanos - meteredHandler.startNanos : -1;
+      metrics.callFinished(outcome, end - start, writeNanos, responseStart - start - writeNanos,
+        parseNanos, sent != null ? sent.bytes : 0, meteredHandler.received != null ? meteredHandler.received.bytes : 0);
+    }
+  }
+
+  public HttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  public FusionCircuitBreaker getBreaker() {
+    return breaker;
+  }
+
+  public long getDeadlineMs() {
+    return deadlineMs;
+  }
+
+  public FusionCallMetrics getMetrics() {
+    return metrics;
+  }
+
+  public FusionEndpoints getEndpoints() {
+    return endpoints;
+  }
+
+  public long getHedges() {
+    return hedges.get();
+  }
+
+  public long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  public long getRetries() {
+    return retries.get();
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("deadlineMs", deadlineMs);
+    stats.addAll(metrics.getStatistics());
+    NamedList<Object> pool = getPoolStatistics();
+    if (pool != null) {
+      stats.add("pool", pool);
+    }
+    if (breaker != null) {
+      stats.add("breaker", breaker.getStatistics());
+    }
+    if (endpoints != null) {
+      stats.add("endpoints", endpoints.getStatistics());
+      stats.add("retries", retries.get());
+    }
+    if (hedgeExecutor != null) {
+      NamedList<Object> hedging = new NamedList<Object>();
+      hedging.add("requests", hedgeable.get());
+      hedging.add("hedges", hedges.get());
+      hedging.add("wins", hedgeWins.get());
+      hedging.add("delayMs", hedgeDelay());
+      stats.add("hedging", hedging);
+    }
+    return stats;
+  }
+
+  /**
+   * The connections of the pool; 'pending' is the number of calls waiting for a connection.
+   */
+  @SuppressWarnings("deprecation")
+  private NamedList<Object> getPoolStatistics() {
+    ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+    if (!(connectionManager instanceof PoolingClientConnectionManager)) {
+      return null;
+    }
+    PoolStats poolStats = ((PoolingClientConnectionManager) connectionManager).getTotalStats();
+    NamedList<Object> pool = new NamedList<Object>();
+    pool.add("leased", poolStats.getLeased());
+    pool.add("pending", poolStats.getPending());
+    pool.add("available", poolStats.getAvailable());
+    pool.add("max", poolStats.getMax());
+    return pool;
+  }
+
+  public void close() {
+    if (endpoints != null) {
+      endpoints.close();
+    }
+    if (hedgeExecutor != null) {
+      hedgeExecutor.shutdownNow();
+    }
+    HttpClientUtil.close(httpClient);
+  }
+
+  /**
+   * Counts the bytes of an entity, and the time spent writing it.
+   */
+  private static class MeteredEntity extends HttpEntityWrapper {
+    volatile long bytes = 0;
+    volatile long writeNanos = 0;
+
+    MeteredEntity(HttpEntity entity) {
+      super(entity);
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      long start = System.nanoTime();
+      try {
+        super.writeTo(new FilterOutputStream(outstream) {
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+          }
+        });
+      } finally {
+        writeNanos += System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(super.getContent()) {
+        @Override
+        public int read() throws IOException {
+          int b = in.read();
+          if (b != -1) {
+            bytes++;
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int n = in.read(b, off, len);
+          if (n > 0) {
+            bytes += n;
+          }
+          return n;
+        }
+      };
+    }
+  }
+
+  /**
+   * Times the response handler and counts the bytes it reads.
+   */
+  private static class MeteredResponseHandler<T> implements ResponseHandler<T> {
+    private final ResponseHandler<? extends T> handler;
+    volatile long startNanos = 0;
+    volatile long endNanos = 0;
+    volatile MeteredEntity received;
+
+    MeteredResponseHandler(ResponseHandler<? extends T> handler) {
+      this.handler = handler;
+    }
+
+    public T handleResponse(HttpResponse response) throws IOException {
+      startNanos = System.nanoTime();
+      try {
+        if (response.getEntity() != null) {
+          received = new MeteredEntity(response.getEntity());
+          response.setEntity(received);
+        }
+        return handler.handleResponse(response);
+      } finally {
+        endNanos = System.nanoTime();
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The wire format used to send documents to a Fusion index-profile and read them back.
+ *
+ * A single document is encoded on its own, several documents are encoded as a list.
+ * Decoding accepts both forms.
+ */
+public abstract class FusionDocumentCodec {
+
+  public static final String XML = "xml";
+  public static final String JAVABIN = "javabin";
+  public static final String JSON = "json";
+
+  private static final FusionDocumentCodec XML_CODEC = new XmlDocumentCodec();
+  private static final FusionDocumentCodec JAVABIN_CODEC = new JavaBinDocumentCodec();
+  private static final FusionDocumentCodec JSON_CODEC = new JsonDocumentCodec();
+
+  /**
+   * The codec configured by the 'wire_format' param: xml, javabin or json.
+   */
+  public static FusionDocumentCodec forName(String name) {
+    String format = name.toLowerCase(Locale.ROOT);
+    if (XML.equals(format)) {
+      return XML_CODEC;
+    }
+    if (JAVABIN.equals(format)) {
+      return JAVABIN_CODEC;
+    }
+    if (JSON.equals(format)) {
+      return JSON_CODEC;
+    }
+    throw new IllegalArgumentException("Unknown wire format '" + name + "', expected one of xml, javabin or json");
+  }
+
+  /**
+   * The codec for the Content-Type of a response, or null if it is not one of ours.
+   */
+  public static FusionDocumentCodec forContentType(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    String mimeType = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+    if (XML_CODEC.getContentType().equals(mimeType) || "application/xml".equals(mimeType) || "text/xml".equals(mimeType)) {
+      return XML_CODEC;
+    }
+    if (JAVABIN_CODEC.getContentType().equals(mimeType)) {
+      return JAVABIN_CODEC;
+    }
+    if (JSON_CODEC.getContentType().equals(mimeType)) {
+      return JSON_CODEC;
+    }
+    return null;
+  }
+
+  public abstract String getName();
+
+  public abstract String getContentType();
+
+  /**
+   * The Accept header sent with the request: this codec's content type first,
+   * then the formats it falls back to.
+   */
+  public abstract String getAccept();
+
+  public abstract void write(List<SolrInputDocument> docs, OutputStream out) throws IOException;
+
+  public abstract List<SolrInputDocument> read(InputStream in) throws IOException;
+}
@@ -0,0 +1,294 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Fusion API nodes that serve the requests addressed to 'fusion_base_url', listed in 'fusion_endpoints'.
+ *
+ * Each call goes to the healthy node with the least outstanding requests. A node is ejected for
+ * 'eject_ms' after 'eject_failures' consecutive failed calls, and is marked down while its health
+ * check ('health_check_path', every 'health_check_interval_ms') fails. When no node is available, all
+ * of them are tried rather than none.
+ */
+public class FusionEndpoints {
+
+  protected static Logger log = LoggerFactory.getLogger(FusionEndpoints.class);
+
+  public static final String FUSION_ENDPOINTS_PARAM = "fusion_endpoints";
+  public static final String HEALTH_CHECK_PATH_PARAM = "health_check_path";
+  public static final String HEALTH_CHECK_INTERVAL_MS_PARAM = "health_check_interval_ms";
+  public static final String HEALTH_CHECK_TIMEOUT_MS_PARAM = "health_check_timeout_ms";
+  public static final String EJECT_FAILURES_PARAM = "eject_failures";
+  public static final String EJECT_MS_PARAM = "eject_ms";
+
+  /**
+   * A Fusion API node.
+   */
+  public static class Endpoint {
+    final String baseUrl;
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong ejections = new AtomicLong();
+    volatile boolean healthy = true;
+    volatile long ejectedUntil = 0;
+
+    Endpoint(String baseUrl) {
+      this.baseUrl = baseUrl;
+    }
+
+    public String getBaseUrl() {
+      return baseUrl;
+    }
+
+    boolean isAvailable(long now) {
+      return healthy && ejectedUntil <= now;
+    }
+
+    NamedList<Object> getStatistics(long now) {
+      NamedList<Object> stats = new NamedList<Object>();
+      stats.add("healthy", healthy);
+      stats.add("ejected", ejectedUntil > now);
+      stats.add("inFlight", inFlight.get());
+      stats.add("calls", calls.get());
+      stats.add("failures", failures.get());
+      stats.add("ejections", ejections.get());
+      return stats;
+    }
+  }
+
+  private final String name;
+  private final String fusionBaseUrl;
+  private final List<Endpoint> endpoints;
+  private final int ejectFailures;
+  private final long ejectMs;
+  private final String healthCheckPath;
+  private final int healthCheckTimeoutMs;
+  private final AtomicInteger next = new AtomicInteger();
+  private ScheduledExecutorService healthChecker;
+
+  public FusionEndpoints(String name, String fusionBaseUrl, List<String> baseUrls, int ejectFailures, long ejectMs,
+                         String healthCheckPath, int healthCheckTimeoutMs) {
+    this.name = name;
+    this.fusionBaseUrl = trimSlash(fusionBaseUrl);
+    this.endpoints = new ArrayList<Endpoint>(baseUrls.size());
+    for (String baseUrl : baseUrls) {
+      endpoints.add(new Endpoint(trimSlash(baseUrl)));
+    }
+    this.ejectFailures = Math.max(1, ejectFailures);
+    this.ejectMs = ejectMs;
+    this.healthCheckPath = healthCheckPath;
+    this.healthCheckTimeoutMs = healthCheckTimeoutMs;
+  }
+
+  /**
+   * Create the endpoints from the 'fusion_endpoints' param, and start their health checks with the
+   * given client. Returns null if the param is not set, the calls then all go to 'fusion_base_url'.
+   */
+  public static FusionEndpoints create(String name, SolrParams params, String fusionBaseUrl, HttpClient httpClient) {
+    String list = params.get(FUSION_ENDPOINTS_PARAM);
+    List<String> baseUrls = new ArrayList<String>();
+    if (list != null) {
+      for (String baseUrl : StrUtils.splitSmart(list, ",", true)) {
+        if (baseUrl.trim().length() > 0) {
+          baseUrls.add(baseUrl.trim());
+        }
+      }
+    }
+    if (baseUrls.isEmpty()) {
+      return null;
+    }
+    if (fusionBaseUrl == null) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+        "config '" + FUSION_ENDPOINTS_PARAM + "' needs 'fusion_base_url', the url the requests are addressed to");
+    }
+    FusionEndpoints endpoints = new FusionEndpoints(name, fusionBaseUrl, baseUrls,
+      params.getInt(EJECT_FAILURES_PARAM, 5),
+      params.getLong(EJECT_MS_PARAM, 30000),
+      params.get(HEALTH_CHECK_PATH_PARAM, "/system/ping"),
+      params.getInt(HEALTH_CHECK_TIMEOUT_MS_PARAM, 1000));
+    long interval = params.getLong(HEALTH_CHECK_INTERVAL_MS_PARAM, 5000);
+    if (interval > 0) {
+      endpoints.startHealthChecks(httpClient, interval);
+    }
+    return endpoints;
+  }
+
+  private static String trimSlash(String url) {
+    url = url.trim();
+    return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+  }
+
+  /**
+   * The part of the uri after 'fusion_base_url', or null if the request is not addressed to it.
+   */
+  public String suffix(URI uri) {
+    String url = uri.toString();
+    if (url.startsWith(fusionBaseUrl) && (url.length() == fusionBaseUrl.length() ||
+      "/?".indexOf(url.charAt(fusionBaseUrl.length())) >= 0)) {
+      return url.substring(fusionBaseUrl.length());
+    }
+    return null;
+  }
+
+  /**
+   * The available node with the least outstanding requests, other than 'exclude'.
+   * Returns null only if there is no other node than 'exclude'.
+   */
+  public Endpoint select(Endpoint exclude) {
+    long now = System.currentTimeMillis();
+    Endpoint best = select(exclude, now, true);
+    // nothing is available: better try a node that may be down than fail without trying
+    return best != null ? best : select(exclude, now, false);
+  }
+
+  private Endpoint select(Endpoint exclude, long now, boolean availableOnly) {
+    int size = endpoints.size();
+    // start the scan at a rotating position, so that ties are spread
+    int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+    Endpoint best = null;
+    int bestInFlight = Integer.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      Endpoint endpoint = endpoints.get((start + i) % size);
+      if (endpoint == exclude || (availableOnly && !endpoint.isAvailable(now))) {
+        continue;
+      }
+      int inFlight = endpoint.inFlight.get();
+      if (inFlight < bestInFlight) {
+        best = endpoint;
+        bestInFlight = inFlight;
+      }
+    }
+    return best;
+  }
+
+  public void callStarted(Endpoint endpoint) {
+    endpoint.inFlight.incrementAndGet();
+    endpoint.calls.incrementAndGet();
+  }
+
+  public void callFinished(Endpoint endpoint, boolean succeeded) {
+    endpoint.inFlight.decrementAndGet();
+    if (succeeded) {
+      endpoint.consecutiveFailures.set(0);
+      return;
+    }
+    endpoint.failures.incrementAndGet();
+    if (endpoint.consecutiveFailures.incrementAndGet() >= ejectFailures) {
+      endpoint.consecutiveFailures.set(0);
+      endpoint.ejectedUntil = System.currentTimeMillis() + ejectMs;
+      endpoint.ejections.incrementAndGet();
+      log.warn("Ejected the Fusion endpoint " + endpoint.baseUrl + " of " + name + " for " + ejectMs +
+        "ms after " + ejectFailures + " consecutive failures");
+    }
+  }
+
+  /**
+   * The call was aborted because its hedge answered first: neither a success nor a failure of the node.
+   */
+  public void callCancelled(Endpoint endpoint) {
+    endpoint.inFlight.decrementAndGet();
+  }
+
+  private void startHealthChecks(final HttpClient httpClient, long intervalMs) {
+    healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "fusion-health-check-" + name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    healthChecker.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        for (Endpoint endpoint : endpoints) {
+          // an exception escaping the task would cancel the checks for good
+          try {
+            checkHealth(httpClient, endpoint);
+          } catch (Throwable t) {
+            log.warn("Unexpected error while checking the health of the Fusion endpoint " + endpoint.baseUrl +
+              " of " + name, t);
+          }
+        }
+      }
+    }, 0, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  void checkHealth(HttpClient httpClient, Endpoint endpoint) {
+    boolean healthy;
+    try {
+      healthy = ping(httpClient, endpoint);
+    } catch (IOException e) {
+      // the pooled connection may have been closed by the node, the client does not retry
+      try {
+        healthy = ping(httpClient, endpoint);
+      } catch (IOException again) {
+        healthy = false;
+      }
+    }
+
+    if (healthy && !endpoint.healthy) {
+      log.info("The Fusion endpoint " + endpoint.baseUrl + " of " + name + " is healthy again");
+    } else if (!healthy && endpoint.healthy) {
+      log.warn("The Fusion endpoint " + endpoint.baseUrl + " of " + name + " failed its health check");
+    }
+    // an ejection runs its course: a node can answer its health check and still fail the real calls
+    endpoint.healthy = healthy;
+  }
+
+  @SuppressWarnings("deprecation")
+  private boolean ping(HttpClient httpClient, Endpoint endpoint) throws IOException {
+    HttpGet httpGet = new HttpGet(endpoint.baseUrl + healthCheckPath);
+    httpGet.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, healthCheckTimeoutMs);
+    httpGet.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, healthCheckTimeoutMs);
+    try {
+      HttpResponse response = httpClient.execute(httpGet);
+      int status = response.getStatusLine().getStatusCode();
+      EntityUtils.consume(response.getEntity());
+      return status >= 200 && status < 300;
+    } finally {
+      httpGet.releaseConnection();
+    }
+  }
+
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  public NamedList<Object> getStatistics() {
+    long now = System.currentTimeMillis();
+    NamedList<Object> stats = new NamedList<Object>();
+    for (Endpoint endpoint : endpoints) {
+      stats.add(endpoint.baseUrl, endpoint.getStatistics(now));
+    }
+    return stats;
+  }
+
+  public void close() {
+    if (healthChecker != null) {
+      healthChecker.shutdownNow();
+    }
+  }
+}
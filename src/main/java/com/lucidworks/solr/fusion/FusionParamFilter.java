@@ -0,0 +1,71 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.util.StrUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects the request params sent to the query-pipeline, or the document fields sent to the index-pipeline:
+ * those of the include list (all if it is empty) and not in the exclude list. An entry ending with '*' matches
+ * every name starting with the rest.
+ */
+public class FusionParamFilter {
+
+  private final Set<String> includedNames = new HashSet<String>();
+  private final List<String> includedPrefixes = new ArrayList<String>();
+  private final Set<String> excludedNames = new HashSet<String>();
+  private final List<String> excludedPrefixes = new ArrayList<String>();
+  private final boolean includeAll;
+
+  /**
+   * @param include comma-separated params, null or empty for all
+   * @param exclude comma-separated params, may be null
+   */
+  public FusionParamFilter(String include, String exclude) {
+    split(include, includedNames, includedPrefixes);
+    split(exclude, excludedNames, excludedPrefixes);
+    includeAll = includedNames.isEmpty() && includedPrefixes.isEmpty();
+  }
+
+  private static void split(String list, Set<String> names, List<String> prefixes) {
+    if (list == null) {
+      return;
+    }
+    for (String entry : StrUtils.splitSmart(list, ",", true)) {
+      entry = entry.trim();
+      if (entry.endsWith("*")) {
+        prefixes.add(entry.substring(0, entry.length() - 1));
+      } else if (entry.length() > 0) {
+        names.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Whether the filter lets every param through.
+   */
+  public boolean isEmpty() {
+    return includeAll && excludedNames.isEmpty() && excludedPrefixes.isEmpty();
+  }
+
+  public boolean accept(String name) {
+    return (includeAll || matches(name, includedNames, includedPrefixes)) &&
+      !matches(name, excludedNames, excludedPrefixes);
+  }
+
+  private static boolean matches(String name, Set<String> names, List<String> prefixes) {
+    if (names.contains(name)) {
+      return true;
+    }
+    for (int i = 0; i < prefixes.size(); i++) {
+      if (name.startsWith(prefixes.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
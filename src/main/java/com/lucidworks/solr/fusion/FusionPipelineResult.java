@@ -0,0 +1,227 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.codehaus.jackson.JsonLocation;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The parsed response of a Fusion query-pipeline: the 'query-params' to run the query with
+ * and everything else returned under 'fusion', which is passed through to the Solr response.
+ *
+ * The pipeline can also return a delta to merge with the request params (see {@link #applyDelta}):
+ * 'add-params', whose values are added to those of the request, and 'remove-params', the names of
+ * the request params to drop. A response without 'query-params' is always a delta.
+ *
+ * Instances are never modified once parsed, so they can be cached and applied to any
+ * number of requests.
+ */
+public class FusionPipelineResult {
+
+  // thread-safe once configured, shared by all the parses
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final SolrParams queryParams;
+  private final SolrParams addParams;
+  private final Set<String> removeParams;
+  private final NamedList fusionData;
+  private final long weight;
+
+  public FusionPipelineResult(SolrParams queryParams, NamedList fusionData, long weight) {
+    this(queryParams, null, null, fusionData, weight);
+  }
+
+  /**
+   * @param queryParams null if the pipeline only returned a delta
+   */
+  public FusionPipelineResult(SolrParams queryParams, SolrParams addParams, Set<String> removeParams,
+                              NamedList fusionData, long weight) {
+    this.queryParams = queryParams;
+    this.addParams = addParams;
+    this.removeParams = removeParams != null ? removeParams : Collections.<String>emptySet();
+    this.fusionData = fusionData;
+    this.weight = weight;
+  }
+
+  public static FusionPipelineResult parse(String fusionJSON) throws IOException {
+    return parse(objectMapper.getJsonFactory().createJsonParser(fusionJSON));
+  }
+
+  /**
+   * Parse a pipeline response straight from the HTTP response stream.
+   */
+  public static FusionPipelineResult parse(InputStream fusionJSON) throws IOException {
+    return parse(objectMapper.getJsonFactory().createJsonParser(fusionJSON));
+  }
+
+  /**
+   * Read the response in a single pass: the 'query-params' are added to the params as they
+   * are read, and every other entry under 'fusion' is bound and added to the fusion data.
+   */
+  private static FusionPipelineResult parse(JsonParser parser) throws IOException {
+    try {
+      ModifiableSolrParams newParams = null;
+      ModifiableSolrParams addParams = null;
+      Set<String> removeParams = null;
+      NamedList fusionResponseData = null;
+
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (!"fusion".equals(field)) {
+          parser.skipChildren();
+          continue;
+        }
+
+        expect(parser, token, JsonToken.START_OBJECT);
+        fusionResponseData = new NamedList();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String key = parser.getCurrentName();
+          parser.nextToken();
+          if ("query-params".equals(key)) {
+            newParams = readQueryParams(parser);
+          } else if ("add-params".equals(key)) {
+            addParams = readQueryParams(parser);
+          } else if ("remove-params".equals(key)) {
+            removeParams = readNames(parser);
+          } else {
+            fusionResponseData.add(key, objectMapper.readValue(parser, Object.class));
+          }
+        }
+      }
+
+      if (newParams == null && addParams == null && removeParams == null) {
+        throw new JsonParseException("The Fusion response has no 'fusion.query-params'", parser.getCurrentLocation());
+      }
+      // the parser stopped at the closing brace of the response
+      JsonLocation end = parser.getCurrentLocation();
+      long weight = (end.getByteOffset() >= 0 ? end.getByteOffset() : end.getCharOffset()) + 1;
+      return new FusionPipelineResult(newParams, addParams, removeParams, fusionResponseData, weight);
+    } finally {
+      parser.close();
+    }
+  }
+
+  private static ModifiableSolrParams readQueryParams(JsonParser parser) throws IOException {
+    expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_ARRAY) {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          params.add(name, parser.getText());
+        }
+      } else {
+        params.add(name, parser.getText());
+      }
+    }
+    return params;
+  }
+
+  private static Set<String> readNames(JsonParser parser) throws IOException {
+    Set<String> names = new HashSet<String>();
+    if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        names.add(parser.getText());
+      }
+    } else {
+      names.add(parser.getText());
+    }
+    return names;
+  }
+
+  private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+    if (actual != expected) {
+      throw new JsonParseException("Expected " + expected + " but got " + actual + " in the Fusion response",
+        parser.getCurrentLocation());
+    }
+  }
+
+  /**
+   * Replace the request params with the pipeline's query-params and add the
+   * rest of the pipeline data to the response.
+   */
+  public void apply(SolrQueryRequest req, SolrQueryResponse rsp) {
+    if (queryParams == null) {
+      applyDelta(req, rsp);
+      return;
+    }
+    // hand out copies, the request and response may be modified further down the line
+    req.setParams(new ModifiableSolrParams(queryParams));
+    rsp.add("fusion", fusionData.clone());
+  }
+
+  /**
+   * Like {@link #apply(SolrQueryRequest, SolrQueryResponse)}, keeping the request params that the filter did
+   * not send to the pipeline, which could not return them.
+   */
+  public void apply(SolrQueryRequest req, SolrQueryResponse rsp, FusionParamFilter filter) {
+    if (filter == null || queryParams == null) {
+      apply(req, rsp);
+      return;
+    }
+    ModifiableSolrParams params = new ModifiableSolrParams(queryParams);
+    SolrParams original = req.getParams();
+    Iterator<String> names = original.getParameterNamesIterator();
+    while (names.hasNext()) {
+      String name = names.next();
+      if (!filter.accept(name) && params.getParams(name) == null) {
+        params.set(name, original.getParams(name));
+      }
+    }
+    req.setParams(params);
+    rsp.add("fusion", fusionData.clone());
+  }
+
+  /**
+   * Merge the pipeline's params with the request params instead of replacing them: the 'query-params'
+   * replace the request params of the same name, the 'add-params' are added and the 'remove-params'
+   * removed. The request gets a read-only view over both, nothing is copied.
+   */
+  public void applyDelta(SolrQueryRequest req, SolrQueryResponse rsp) {
+    req.setParams(new LayeredSolrParams(req.getParams(), queryParams, addParams, removeParams));
+    rsp.add("fusion", fusionData.clone());
+  }
+
+  public SolrParams getQueryParams() {
+    return queryParams;
+  }
+
+  /**
+   * @return null if the pipeline did not add any
+   */
+  public SolrParams getAddParams() {
+    return addParams;
+  }
+
+  public Set<String> getRemoveParams() {
+    return removeParams;
+  }
+
+  public NamedList getFusionData() {
+    return fusionData;
+  }
+
+  /**
+   * The approximate size of the result, used to bound the memory held by the cache.
+   */
+  public long getWeight() {
+    return weight;
+  }
+}
@@ -0,0 +1,417 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The named configurations ('profiles') of a Fusion component. Each one is built into its own immutable object,
+ * with its own connection pool, deadline and caches, so that a slow profile cannot take the connections of another.
+ *
+ * The 'default' profile is the configuration of the component itself. The others are the lists of 'profiles',
+ * holding the params that differ from the component's:
+ * <pre>
+ *   &lt;lst name="profiles"&gt;
+ *     &lt;lst name="experimental"&gt;
+ *       &lt;str name="query_profile"&gt;experimental&lt;/str&gt;
+ *       &lt;long name="deadline_ms"&gt;500&lt;/long&gt;
+ *     &lt;/lst&gt;
+ *   &lt;/lst&gt;
+ * </pre>
+ * A request picks its profile with the 'fusion.profile' param, which a request handler can set in its defaults or
+ * invariants. It holds a {@link Lease} on the profile until it is done with it.
+ *
+ * With 'profiles_file', the params of that properties file ('name.param=value', relative to the instance directory
+ * of the core) are laid over the configured ones, and the file is checked for changes every 'profiles_reload_ms'.
+ * A profile whose params changed is built again and serves the next requests; the old one is closed once the
+ * last lease on it is released. A file that cannot be read, or builds an invalid profile, is logged and the
+ * current profiles are kept.
+ */
+public class FusionProfiles<T extends FusionProfiles.Profile> {
+
+  protected static Logger log = LoggerFactory.getLogger(FusionProfiles.class);
+
+  public static final String PROFILE_PARAM = "fusion.profile";
+  public static final String PROFILES_PARAM = "profiles";
+  public static final String PROFILES_FILE_PARAM = "profiles_file";
+  public static final String PROFILES_RELOAD_MS_PARAM = "profiles_reload_ms";
+  public static final String DEFAULT_PROFILE = "default";
+
+  /**
+   * The resources of a profile, released when it is replaced or the core closes.
+   */
+  public interface Profile {
+    void close();
+  }
+
+  /**
+   * Builds a profile from its params, throwing a {@link SolrException} if they are invalid.
+   */
+  public interface Builder<T> {
+    T build(String name, SolrParams params);
+  }
+
+  /**
+   * A profile in use: each {@link #acquire} or {@link #select} takes a reference on it, to {@link #release}
+   * exactly once when the request is done with the profile. The profiles hold one more while it is current.
+   */
+  public static final class Lease<T extends Profile> {
+    private final T profile;
+    // the params the profile was built from, to tell whether a reload changes it
+    private final String config;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    Lease(T profile, String config) {
+      this.profile = profile;
+      this.config = config;
+    }
+
+    public T get() {
+      return profile;
+    }
+
+    /**
+     * Take a reference, unless the last one was released and the profile closed.
+     */
+    boolean retain() {
+      while (true) {
+        int count = refs.get();
+        if (count <= 0) {
+          return false;
+        }
+        if (refs.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+    public void release() {
+      if (refs.decrementAndGet() == 0) {
+        close();
+      }
+    }
+
+    private void close() {
+      if (closed.compareAndSet(false, true)) {
+        profile.close();
+      }
+    }
+
+    boolean isClosed() {
+      return closed.get();
+    }
+  }
+
+  private final String component;
+  private final NamedList<Object> baseArgs;
+  private final Map<String, NamedList<Object>> configured = new LinkedHashMap<String, NamedList<Object>>();
+  private final Builder<T> builder;
+  // replaced, and still leased by the requests that picked them before
+  private final List<Lease<T>> retired = new ArrayList<Lease<T>>();
+
+  private volatile Map<String, Lease<T>> profiles;
+  private File file;
+  private long fileModified = 0;
+  // started by watch() only if the file is reloaded
+  private ScheduledThreadPoolExecutor timer;
+
+  /**
+   * Build the profiles configured in 'args', throwing a {@link SolrException} if one is invalid.
+   */
+  @SuppressWarnings("unchecked")
+  public FusionProfiles(final String component, NamedList args, Builder<T> builder) {
+    this.component = component;
+    this.builder = builder;
+    this.baseArgs = args != null ? ((NamedList<Object>) args).clone() : new NamedList<Object>();
+    Object lists = baseArgs.remove(PROFILES_PARAM);
+    if (lists instanceof NamedList) {
+      NamedList<Object> named = (NamedList<Object>) lists;
+      for (int i = 0; i < named.size(); i++) {
+        if (!(named.getVal(i) instanceof NamedList) || named.getName(i).indexOf('.') >= 0) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+            "config '" + PROFILES_PARAM + "' must hold a list of params per profile, named without '.'");
+        }
+        configured.put(named.getName(i), (NamedList<Object>) named.getVal(i));
+      }
+    }
+    this.profiles = build(Collections.<String, Map<String, String>>emptyMap(), null);
+  }
+
+  /**
+   * Lay the params of 'file' over the configured ones, and check it for changes every 'reloadMs' (not if 0).
+   */
+  public void watch(File file, long reloadMs) {
+    synchronized (this) {
+      this.file = file;
+    }
+    checkFile();
+    if (reloadMs > 0) {
+      ScheduledThreadPoolExecutor timer;
+      synchronized (this) {
+        if (this.timer == null) {
+          this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "fusion-profiles-" + component);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+        }
+        timer = this.timer;
+      }
+      timer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          checkFile();
+        }
+      }, reloadMs, reloadMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void checkFile() {
+    long modified = file.lastModified();
+    if (modified != fileModified) {
+      fileModified = modified;
+      reload();
+    }
+  }
+
+  /**
+   * Build the profiles again from the configuration and the file. The profiles whose params did not
+   * change are kept as they are. Returns false if the current profiles were kept because of an error.
+   */
+  public synchronized boolean reload() {
+    Map<String, Map<String, String>> overrides;
+    try {
+      overrides = readFile();
+    } catch (IOException e) {
+      log.warn("Cannot read the Fusion profiles of " + component + " from " + file + ", keeping the current ones", e);
+      return false;
+    }
+    Map<String, Lease<T>> current = profiles;
+    Map<String, Lease<T>> next;
+    try {
+      next = build(overrides, current);
+    } catch (SolrException e) {
+      log.warn("Invalid Fusion profiles for " + component + " in " + file + ", keeping the current ones", e);
+      return false;
+    }
+    profiles = next;
+
+    for (Map.Entry<String, Lease<T>> entry : current.entrySet()) {
+      if (next.get(entry.getKey()) != entry.getValue()) {
+        log.info("Replaced the Fusion profile '" + entry.getKey() + "' of " + component);
+        retire(entry.getValue());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Build the profiles that are not in 'current' with the same params, closing them all if one is invalid.
+   */
+  private Map<String, Lease<T>> build(Map<String, Map<String, String>> overrides, Map<String, Lease<T>> current) {
+    List<String> names = new ArrayList<String>();
+    names.add(DEFAULT_PROFILE);
+    for (String name : configured.keySet()) {
+      if (!names.contains(name)) {
+        names.add(name);
+      }
+    }
+    for (String name : overrides.keySet()) {
+      if (!names.contains(name)) {
+        names.add(name);
+      }
+    }
+
+    Map<String, Lease<T>> built = new LinkedHashMap<String, Lease<T>>();
+    List<T> created = new ArrayList<T>();
+    try {
+      for (String name : names) {
+        SolrParams params = params(configured.get(name), overrides.get(name));
+        String config = describe(params);
+        Lease<T> entry = current != null ? current.get(name) : null;
+        if (entry == null || !entry.config.equals(config)) {
+          T profile = builder.build(name, params);
+          created.add(profile);
+          entry = new Lease<T>(profile, config);
+        }
+        built.put(name, entry);
+      }
+    } catch (RuntimeException e) {
+      for (T profile : created) {
+        profile.close();
+      }
+      throw e;
+    }
+    return Collections.unmodifiableMap(built);
+  }
+
+  private SolrParams params(NamedList<Object> configuredArgs, Map<String, String> fileArgs) {
+    NamedList<Object> args = baseArgs.clone();
+    if (configuredArgs != null) {
+      for (int i = 0; i < configuredArgs.size(); i++) {
+        args.remove(configuredArgs.getName(i));
+      }
+      args.addAll(configuredArgs);
+    }
+    if (fileArgs != null) {
+      for (Map.Entry<String, String> arg : fileArgs.entrySet()) {
+        args.remove(arg.getKey());
+        args.add(arg.getKey(), arg.getValue());
+      }
+    }
+    return SolrParams.toSolrParams(args);
+  }
+
+  private static String describe(SolrParams params) {
+    Map<String, String> sorted = new TreeMap<String, String>();
+    Iterator<String> names = params.getParameterNamesIterator();
+    while (names.hasNext()) {
+      String name = names.next();
+      sorted.put(name, Arrays.toString(params.getParams(name)));
+    }
+    return sorted.toString();
+  }
+
+  /**
+   * The params of the file by profile; none if there is no file.
+   */
+  private Map<String, Map<String, String>> readFile() throws IOException {
+    Map<String, Map<String, String>> overrides = new LinkedHashMap<String, Map<String, String>>();
+    if (file == null || !file.exists()) {
+      return overrides;
+    }
+    Properties properties = new Properties();
+    Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      properties.load(reader);
+    } finally {
+      reader.close();
+    }
+    for (String key : new TreeSet<String>(properties.stringPropertyNames())) {
+      int dot = key.indexOf('.');
+      if (dot <= 0 || dot == key.length() - 1) {
+        throw new IOException("'" + key + "' is not of the form profile.param");
+      }
+      String name = key.substring(0, dot);
+      Map<String, String> args = overrides.get(name);
+      if (args == null) {
+        args = new LinkedHashMap<String, String>();
+        overrides.put(name, args);
+      }
+      args.put(key.substring(dot + 1), properties.getProperty(key).trim());
+    }
+    return overrides;
+  }
+
+  /**
+   * Drop the reference of the profiles, the lease is closed with the last request holding it.
+   */
+  private void retire(Lease<T> lease) {
+    synchronized (retired) {
+      for (Iterator<Lease<T>> it = retired.iterator(); it.hasNext(); ) {
+        if (it.next().isClosed()) {
+          it.remove();
+        }
+      }
+      retired.add(lease);
+    }
+    lease.release();
+  }
+
+  /**
+   * A lease on the profile named by the 'fusion.profile' param of the request, the default one if none is.
+   *
+   * @throws SolrException if there is no such profile
+   */
+  public Lease<T> select(SolrParams requestParams) {
+    String name = requestParams.get(PROFILE_PARAM, DEFAULT_PROFILE);
+    Lease<T> lease = acquire(name);
+    if (lease == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Unknown Fusion profile '" + name + "' in " +
+        component + ", one of " + profiles.keySet() + " is expected in '" + PROFILE_PARAM + "'");
+    }
+    return lease;
+  }
+
+  /**
+   * A lease on the current profile of that name, null if there is none.
+   */
+  public Lease<T> acquire(String name) {
+    while (true) {
+      Lease<T> lease = profiles.get(name);
+      if (lease == null || lease.retain()) {
+        return lease;
+      }
+      // it was replaced and closed since it was read, the profiles hold the new one by now
+    }
+  }
+
+  /**
+   * The current profile of that name without a lease, for its statistics: it can be closed at any time.
+   */
+  public T get(String name) {
+    Lease<T> entry = profiles.get(name);
+    return entry != null ? entry.profile : null;
+  }
+
+  public T getDefault() {
+    return profiles.get(DEFAULT_PROFILE).profile;
+  }
+
+  /**
+   * The current profiles by name, the default one first.
+   */
+  public Map<String, T> getAll() {
+    Map<String, T> all = new LinkedHashMap<String, T>();
+    for (Map.Entry<String, Lease<T>> entry : profiles.entrySet()) {
+      all.put(entry.getKey(), entry.getValue().profile);
+    }
+    return all;
+  }
+
+  /**
+   * Stop watching the file and close every profile, the replaced ones too, whether they are leased or not.
+   */
+  public void close() {
+    synchronized (this) {
+      if (timer != null) {
+        timer.shutdownNow();
+      }
+    }
+    List<Lease<T>> closing = new ArrayList<Lease<T>>();
+    synchronized (retired) {
+      closing.addAll(retired);
+      retired.clear();
+    }
+    closing.addAll(profiles.values());
+    for (Lease<T> lease : closing) {
+      lease.close();
+    }
+  }
+}
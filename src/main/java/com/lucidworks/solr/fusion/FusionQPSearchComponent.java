@@ -1,35 +1,54 @@
 package com.lucidworks.solr.fusion;
 
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.util.EntityUtils;
-import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.codehaus.jackson.JsonProcessingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.io.InputStream;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The class {@code FusionQPSearchComponent} is a SearchComponent used to
@@ -39,54 +58,156 @@ import java.util.Map;
  * false in solrconfig.xml or dynamically via query-params
  *
  * In case of un-successful request or a bad response format, the original query is processed.
+ *
+ * The pipeline results can be cached in-process by setting 'cache_size' to the maximum number
+ * of cached results. Entries expire after 'cache_ttl_ms' and the total size of the cached
+ * responses can be bounded with 'cache_max_weight' (in chars). Params listed in
+ * 'cache_ignore_params' are not part of the cache key.
+ *
+ * Setting 'coalesce_requests' to true makes identical concurrent requests share a single call
+ * to Fusion. The other requests wait up to 'coalesce_wait_ms' for that call, and continue with
+ * their original params if it fails or takes longer.
+ *
+ * Calls to Fusion are bounded by 'deadline_ms', counted from the start of the Solr request, and
+ * guarded by a {@link FusionCircuitBreaker} (see the 'breaker_*' params): while Fusion is failing
+ * or slow the original params are used without waiting for it.
+ *
+ * With 'soft_deadline_ms', the query does not wait for Fusion past that point: it runs with the original
+ * params, and the late answer is still cached. The 'fusionPath' entry of the response header says whether
+ * the params came from Fusion, the cache, the local pipeline, or are the original ones.
+ *
+ * With 'merge_mode' set to 'delta' (default 'replace'), the params returned by the pipeline are merged
+ * over the request params instead of replacing them, see {@link FusionPipelineResult#applyDelta}.
+ *
+ * Only the params of 'include_params' (all by default) and not in 'exclude_params' are sent to the
+ * pipeline; the others are kept as they are. The form body is gzipped with 'gzip_requests' when it is
+ * at least 'gzip_min_bytes' long, and gzipped responses are accepted unless 'accept_gzip' is false.
+ *
+ * With the cache on, 'warm_count' > 0 warms it when the core loads (and on every new searcher with
+ * 'warm_on_new_searcher'): the most frequent recent param sets, kept in 'warm_queries_file', are sent to
+ * the pipeline from 'warm_concurrency' background threads. See {@link FusionQueryWarmer}.
+ *
+ * The calls go to the Fusion query-profile named by 'query_profile' ('default'). Requests can be routed to other
+ * configurations with the 'fusion.profile' param: each profile has its own params, connection pool, deadline and
+ * cache, and can be changed without reloading the core, see {@link FusionProfiles}. The cache is warmed for the
+ * default profile only.
+ *
+ * With 'local_pipeline' set to the id of the query-pipeline the profile runs, its definition is downloaded every
+ * 'local_refresh_ms' and, when all of its stages are param rewrites, the pipeline runs in-process without calling
+ * Fusion. A 'local_verify_rate' sample of these queries is checked against Fusion, see {@link LocalPipeline}.
  */
-public class FusionQPSearchComponent extends SearchComponent{
+public class FusionQPSearchComponent extends SearchComponent implements SolrCoreAware {
 
   protected static Logger log = LoggerFactory.getLogger(FusionQPSearchComponent.class);
   public static final String IS_FUSION_QUERY_PARAM = "isFusionQuery";
 
-
-  private static ObjectMapper objectMapper;
-  private HttpClient httpClient;
-  private String fusionBaseUrl;
-  private String collectionName;
+  public static final String QUERY_PROFILE_PARAM = "query_profile";
+  public static final String CACHE_SIZE_PARAM = "cache_size";
+  public static final String CACHE_MAX_WEIGHT_PARAM = "cache_max_weight";
+  public static final String CACHE_TTL_MS_PARAM = "cache_ttl_ms";
+  public static final String CACHE_IGNORE_PARAMS_PARAM = "cache_ignore_params";
+  public static final String COALESCE_REQUESTS_PARAM = "coalesce_requests";
+  public static final String COALESCE_WAIT_MS_PARAM = "coalesce_wait_ms";
+  public static final String SOFT_DEADLINE_MS_PARAM = "soft_deadline_ms";
+  public static final String MERGE_MODE_PARAM = "merge_mode";
+  public static final String INCLUDE_PARAMS_PARAM = "include_params";
+  public static final String EXCLUDE_PARAMS_PARAM = "exclude_params";
+  public static final String GZIP_REQUESTS_PARAM = "gzip_requests";
+  public static final String GZIP_MIN_BYTES_PARAM = "gzip_min_bytes";
+  public static final String ACCEPT_GZIP_PARAM = "accept_gzip";
+  public static final String WARM_COUNT_PARAM = "warm_count";
+  public static final String WARM_CONCURRENCY_PARAM = "warm_concurrency";
+  public static final String WARM_QUERIES_FILE_PARAM = "warm_queries_file";
+  public static final String WARM_CAPTURE_PARAM = "warm_capture";
+  public static final String WARM_ON_NEW_SEARCHER_PARAM = "warm_on_new_searcher";
+  public static final String LOCAL_PIPELINE_PARAM = "local_pipeline";
+  public static final String LOCAL_REFRESH_MS_PARAM = "local_refresh_ms";
+  public static final String LOCAL_VERIFY_RATE_PARAM = "local_verify_rate";
+
+  private FusionProfiles<QueryProfile> profiles;
+  private FusionQueryWarmer warmer;
+
+  // the path that served a query, in the 'fusionPath' entry of the response header
+  public static final String FUSION_PATH = "fusionPath";
+  public static final String PATH_FUSION = "fusion";
+  public static final String PATH_CACHE = "cache";
+  public static final String PATH_LOCAL = "local";
+  public static final String PATH_ORIGINAL = "original";
 
   //default values:
-  int soTimeout = 0;
-  int connectionTimeout = 0;
-  int maxConnectionsPerHost = 20;
+  int warmCount = 0;
+  int warmConcurrency = 2;
+  String warmQueriesFile = "fusion-warm-queries.txt";
+  boolean warmCapture = true;
+  boolean warmOnNewSearcher = false;
+  String profilesFile = null;
+  long profilesReloadMs = 5000;
 
   @Override
   public void init(NamedList args) {
-    // Object mapper and client for querying Fusion and parsing the JSON response
-    objectMapper = new ObjectMapper();
-    ModifiableSolrParams clientParams = new ModifiableSolrParams();
-    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
-    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS, 10000);
-    clientParams.set(HttpClientUtil.PROP_SO_TIMEOUT, soTimeout);
-    clientParams.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectionTimeout);
-    clientParams.set(HttpClientUtil.PROP_USE_RETRY, false);
-    this.httpClient = HttpClientUtil.createClient(clientParams);
-
-    if (args != null) {
-      if (args.get("fusion_base_url") != null) {
-       fusionBaseUrl = String.valueOf(args.get("fusion_base_url"));
-      }
-      if (args.get("collection_name") != null) {
-        collectionName = String.valueOf(args.get("collection_name"));
+    SolrParams params = SolrParams.toSolrParams(args != null ? args : new NamedList());
+    warmCount = params.getInt(WARM_COUNT_PARAM, warmCount);
+    warmConcurrency = params.getInt(WARM_CONCURRENCY_PARAM, warmConcurrency);
+    warmQueriesFile = params.get(WARM_QUERIES_FILE_PARAM, warmQueriesFile);
+    warmCapture = params.getBool(WARM_CAPTURE_PARAM, warmCapture);
+    warmOnNewSearcher = params.getBool(WARM_ON_NEW_SEARCHER_PARAM, warmOnNewSearcher);
+    profilesFile = params.get(FusionProfiles.PROFILES_FILE_PARAM, profilesFile);
+    profilesReloadMs = params.getLong(FusionProfiles.PROFILES_RELOAD_MS_PARAM, profilesReloadMs);
+
+    profiles = new FusionProfiles<QueryProfile>("query-pipeline", args, new FusionProfiles.Builder<QueryProfile>() {
+      public QueryProfile build(String name, SolrParams params) {
+        return new QueryProfile(name, params);
       }
-    }
+    });
 
-    if (fusionBaseUrl == null) {
+    if (warmCount > 0 && profiles.getDefault().cache == null) {
+      profiles.close();
       throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
-        "config \'fusion_base_url\' is missing from searchComponent configuration");
+        "config \'" + WARM_COUNT_PARAM + "\' needs the cache, set \'" + CACHE_SIZE_PARAM + "\'");
     }
+  }
 
-    if (collectionName == null) {
-      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
-        "config \'collection_name\' is missing from search component configuration");
+  @Override
+  public void inform(SolrCore core) {
+    if (warmCount > 0) {
+      File file = new File(warmQueriesFile);
+      if (!file.isAbsolute()) {
+        file = new File(core.getDataDir(), warmQueriesFile);
+      }
+      warmer = new FusionQueryWarmer(file, warmCount, warmConcurrency, warmCapture, warmOnNewSearcher,
+        new FusionQueryWarmer.Target() {
+          public boolean warm(SolrParams params) {
+            FusionProfiles.Lease<QueryProfile> lease = profiles.acquire(FusionProfiles.DEFAULT_PROFILE);
+            try {
+              return lease.get().warmCache(params);
+            } finally {
+              lease.release();
+            }
+          }
+        });
+      core.registerFirstSearcherListener(warmer);
+      core.registerNewSearcherListener(warmer);
+    }
+    if (profilesFile != null) {
+      File file = new File(profilesFile);
+      if (!file.isAbsolute()) {
+        file = new File(core.getResourceLoader().getInstanceDir(), profilesFile);
+      }
+      profiles.watch(file, profilesReloadMs);
     }
+    core.addCloseHook(new CloseHook() {
+      @Override
+      public void preClose(SolrCore core) {
+        if (warmer != null) {
+          warmer.close();
+        }
+      }
 
+      @Override
+      public void postClose(SolrCore core) {
+        profiles.close();
+      }
+    });
   }
 
   @Override
@@ -99,16 +220,11 @@ public class FusionQPSearchComponent extends SearchComponent{
       return;
     }
 
-    // Allow over-writes via query-param
-    if (req.getParams().get("fusion_base_url") != null) {
-     fusionBaseUrl = req.getParams().get("fusion_base_url");
-    }
-
     // TODO: we need a test for doFusionQuery, and doc
     Boolean queryFusionForParams = req.getParams().getBool("doFusionQuery");
     if (queryFusionForParams != null) {
       if (!queryFusionForParams) {
-        log.info("Skipping the query to Fusion. Value of 'doFusionQuery' is " + queryFusionForParams);
+        log.debug("Skipping the query to Fusion. Value of 'doFusionQuery' is " + queryFusionForParams);
         return;
       }
     }
@@ -116,17 +232,25 @@ public class FusionQPSearchComponent extends SearchComponent{
     Boolean isFusionQuery = req.getParams().getBool(IS_FUSION_QUERY_PARAM);
     if (isFusionQuery != null) {
       if (isFusionQuery) {
-        log.info("Skipping the query to Fusion as this a Fusion query");
+        log.debug("Skipping the query to Fusion as this a Fusion query");
         return;
       }
     }
 
+    FusionProfiles.Lease<QueryProfile> lease = profiles.select(req.getParams());
+    QueryProfile profile = lease.get();
+    // Allow over-writes via query-param, for this request only
+    String fusionBaseUrl = req.getParams().get("fusion_base_url", profile.fusionBaseUrl);
+
     try {
-      log.info("Querying Fusion to get pipeline params and data");
-      processPipelineDataFromFusion(fusionBaseUrl, collectionName, req, responseBuilder.rsp);
+      log.debug("Querying Fusion to get pipeline params and data");
+      profile.processPipelineDataFromFusion(fusionBaseUrl, req, responseBuilder.rsp, lease);
     } catch (Exception e) {
       log.warn("Exception while querying Fusion for query-params. Continuing with the original params");
       e.printStackTrace();
+      profile.markPath(responseBuilder.rsp, PATH_ORIGINAL);
+    } finally {
+      lease.release();
     }
 
   }
@@ -143,95 +267,518 @@ public class FusionQPSearchComponent extends SearchComponent{
 
   @Override
   public String getSource() {
-    return null;
+    return "https://github.com/LucidWorks/fusion-solr-plugins";
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> stats = profiles.getDefault().getStatistics();
+    if (warmer != null) {
+      stats.add("warming", warmer.getStatistics());
+    }
+    Map<String, QueryProfile> all = profiles.getAll();
+    if (all.size() > 1) {
+      NamedList<Object> others = new NamedList<Object>();
+      for (Map.Entry<String, QueryProfile> profile : all.entrySet()) {
+        if (!FusionProfiles.DEFAULT_PROFILE.equals(profile.getKey())) {
+          others.add(profile.getKey(), profile.getValue().getStatistics());
+        }
+      }
+      stats.add("profiles", others);
+    }
+    return stats;
+  }
+
+  FusionProfiles<QueryProfile> getProfiles() {
+    return profiles;
   }
 
   /**
-   * Get the query-params from Fusion query-pipelines by doing a POST request.
-   * The API endpoint to get query-params from a query-pipeline is
-   * -X POST http://localhost:8764/api/apollo/collections/{collection_name}/query-profiles/{pipeline_name}/{handler_name}
-   *
-   * In case of an exception while querying or parsing Fusion,
-   * do not modify the query-params and continue with the original request.
+   * The configuration of a profile and the resources built from it: the client and its connection pool,
+   * the cache, the local pipeline and the calls in flight. The configuration does not change once built.
    */
-  private void processPipelineDataFromFusion(String fusionBaseUrl,
-                                        String collectionId,
-                                        SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
-
-    String fusionUrl = fusionBaseUrl + "/collections/" + collectionId + "/query-profiles/default/select";
-    HttpPost httpPost = new HttpPost(fusionUrl);
-    List<NameValuePair> urlParameters = new ArrayList<NameValuePair>();
-
-    Iterator it = req.getParams().getParameterNamesIterator();
-    while (it.hasNext()) {
-      String key = (String) it.next();
-      String[] values = req.getParams().getParams(key);
-      if (values != null) {
-        for (String value: values) {
-          urlParameters.add(new BasicNameValuePair(key, value));
+  class QueryProfile implements FusionProfiles.Profile {
+
+    final String name;
+    final String fusionBaseUrl;
+    final String collectionName;
+    final String queryProfile;
+    final long deadlineMs;
+    final long softDeadlineMs;
+    final String mergeMode;
+    final int gzipMinBytes;
+    final boolean acceptGzip;
+    final FusionClient fusionClient;
+    final FusionQueryCache cache;
+    final SingleFlight<FusionPipelineResult> singleFlight;
+    final Set<String> ignoredKeyParams;
+    final FusionParamFilter paramFilter;
+    final ExecutorService speculativeExecutor;
+    // the number of abandoned calls that may still be running
+    final int maxOutliving;
+    final LocalPipeline localPipeline;
+    // turned off for good when Fusion rejects a gzipped request
+    volatile boolean gzipRequests;
+
+    private final AtomicLong servedByFusion = new AtomicLong();
+    private final AtomicLong servedByCache = new AtomicLong();
+    private final AtomicLong servedLocally = new AtomicLong();
+    private final AtomicLong servedOriginal = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicInteger outliving = new AtomicInteger();
+    private final AtomicLong lateAnswers = new AtomicLong();
+    private final AtomicLong lateFailures = new AtomicLong();
+
+    QueryProfile(String name, SolrParams params) {
+      this.name = name;
+      fusionBaseUrl = params.get("fusion_base_url");
+      collectionName = params.get("collection_name");
+      queryProfile = params.get(QUERY_PROFILE_PARAM, "default");
+      int soTimeout = params.getInt(FusionClient.SO_TIMEOUT_PARAM, 10000);
+      int connectionTimeout = params.getInt(FusionClient.CONNECTION_TIMEOUT_PARAM, 2000);
+      int maxConnectionsPerHost = params.getInt(FusionUpdateProcessorFactory.MAX_CONNECTIONS_PER_HOST_PARAM, 20);
+      deadlineMs = params.getLong(FusionClient.DEADLINE_MS_PARAM, 5000);
+      softDeadlineMs = params.getLong(SOFT_DEADLINE_MS_PARAM, 0);
+      mergeMode = params.get(MERGE_MODE_PARAM, "replace");
+      gzipRequests = params.getBool(GZIP_REQUESTS_PARAM, false);
+      gzipMinBytes = params.getInt(GZIP_MIN_BYTES_PARAM, 1024);
+      acceptGzip = params.getBool(ACCEPT_GZIP_PARAM, true);
+      int cacheSize = params.getInt(CACHE_SIZE_PARAM, 0);
+
+      if (fusionBaseUrl == null) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "config \'fusion_base_url\' is missing from searchComponent configuration");
+      }
+
+      if (collectionName == null) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "config \'collection_name\' is missing from search component configuration");
+      }
+
+      if (!"replace".equals(mergeMode) && !"delta".equals(mergeMode)) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "config \'" + MERGE_MODE_PARAM + "\' must be one of replace or delta");
+      }
+
+      FusionCircuitBreaker breaker = FusionCircuitBreaker.create("query-pipeline", params, 0);
+      HttpClient httpClient = FusionClient.createHttpClient(10000, maxConnectionsPerHost, soTimeout, connectionTimeout);
+      fusionClient = new FusionClient(httpClient, breaker, deadlineMs,
+        FusionEndpoints.create("query-pipeline", params, fusionBaseUrl, httpClient));
+      if (params.getBool(FusionClient.HEDGE_PARAM, false) && fusionClient.getEndpoints() != null) {
+        fusionClient.enableHedging(params.getLong(FusionClient.HEDGE_DELAY_MS_PARAM, 0),
+          params.getDouble(FusionClient.HEDGE_BUDGET_PARAM, 0.1), maxConnectionsPerHost);
+      }
+
+      ignoredKeyParams = new HashSet<String>(StrUtils.splitSmart(params.get(CACHE_IGNORE_PARAMS_PARAM, "_"), ",", true));
+      FusionParamFilter filter = new FusionParamFilter(params.get(INCLUDE_PARAMS_PARAM), params.get(EXCLUDE_PARAMS_PARAM));
+      paramFilter = filter.isEmpty() ? null : filter;
+      cache = cacheSize > 0 ? new FusionQueryCache(cacheSize, params.getLong(CACHE_MAX_WEIGHT_PARAM, 0),
+        params.getLong(CACHE_TTL_MS_PARAM, 60000)) : null;
+      singleFlight = params.getBool(COALESCE_REQUESTS_PARAM, false) ?
+        new SingleFlight<FusionPipelineResult>(params.getLong(COALESCE_WAIT_MS_PARAM, 5000)) : null;
+      maxOutliving = maxConnectionsPerHost;
+      if (softDeadlineMs > 0) {
+        // a thread per call: the live calls are bounded by the request threads waiting for them, and the
+        // abandoned ones by 'maxOutliving'
+        speculativeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "fusion-speculative-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      } else {
+        speculativeExecutor = null;
+      }
+
+      String pipeline = params.get(LOCAL_PIPELINE_PARAM);
+      if (pipeline != null) {
+        double verifyRate = params.getDouble(LOCAL_VERIFY_RATE_PARAM, 0.01);
+        if (verifyRate < 0 || verifyRate > 1) {
+          close();
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+            "config \'" + LOCAL_VERIFY_RATE_PARAM + "\' must be between 0 and 1");
         }
+        localPipeline = new LocalPipeline(pipeline, pipelineSource(pipeline), new LocalPipeline.Verifier() {
+          public SolrParams verify(SolrParams params) {
+            return verifyLocalResult(params);
+          }
+        }, verifyRate);
+        localPipeline.start(params.getLong(LOCAL_REFRESH_MS_PARAM, 60000));
+      } else {
+        localPipeline = null;
       }
     }
-    // Add a hard-coded request param to identify requests coming through this plugin
-    urlParameters.add(new BasicNameValuePair("isFusionPluginQuery", "true"));
 
-    httpPost.setEntity(new UrlEncodedFormEntity(urlParameters));
-    httpPost.addHeader("Content-Type",
-      "application/x-www-form-urlencoded; charset=UTF-8");
+    /**
+     * Download the definition of the query-pipeline:
+     * -X GET http://localhost:8764/api/apollo/query-pipelines/{pipeline_id}
+     */
+    private LocalPipeline.Source pipelineSource(String pipeline) {
+      final String url = fusionBaseUrl + "/query-pipelines/" + pipeline;
+      return new LocalPipeline.Source() {
+        public byte[] load() throws IOException {
+          return fusionClient.execute(new HttpGet(url), new ResponseHandler<byte[]>() {
+            public byte[] handleResponse(HttpResponse response) throws IOException {
+              int status = response.getStatusLine().getStatusCode();
+              if (status >= 200 && status < 300 && response.getEntity() != null) {
+                return EntityUtils.toByteArray(response.getEntity());
+              }
+              throw new ClientProtocolException("Unexpected response status: " + status + " from " + url);
+            }
+          });
+        }
+      };
+    }
+
+    /**
+     * The params of a query run by Fusion, to compare with the local run. The result is cached as any other.
+     */
+    private SolrParams verifyLocalResult(SolrParams params) {
+      String requestKey = cache != null ? FusionQueryCache.canonicalKey(params, ignoredKeyParams, paramFilter) : null;
+      FusionPipelineResult result = loadPipelineResult(fusionUrl(fusionBaseUrl), params, requestKey, deadlineMs);
+      if (result == null) {
+        return null;
+      }
+      SolrQueryRequest req = new LocalSolrQueryRequest(null, params);
+      applyResult(result, req, new SolrQueryResponse());
+      return req.getParams();
+    }
 
-    // Create a custom response handler
-    ResponseHandler<String> responseHandler = new ResponseHandler<String>() {
+    String fusionUrl(String fusionBaseUrl) {
+      return fusionBaseUrl + "/collections/" + collectionName + "/query-profiles/" + queryProfile + "/select";
+    }
+
+    public void close() {
+      if (localPipeline != null) {
+        localPipeline.close();
+      }
+      if (speculativeExecutor != null) {
+        speculativeExecutor.shutdownNow();
+      }
+      fusionClient.close();
+    }
 
-      public String handleResponse(
-        final HttpResponse response) throws IOException {
-        int status = response.getStatusLine().getStatusCode();
-        if (status >= 200 && status < 300) {
-          HttpEntity entity = response.getEntity();
-          return entity != null ? EntityUtils.toString(entity) : null;
-        } else {
-          throw new ClientProtocolException("Unexpected response status: " + status +
-            ". Message returned is '" + EntityUtils.toString(response.getEntity()) + "'");
+    NamedList<Object> getStatistics() {
+      NamedList<Object> stats = new NamedList<Object>();
+      stats.add("fusion", fusionClient.getStatistics());
+      if (cache != null) {
+        stats.add("cache", cache.getStatistics());
+      }
+      if (singleFlight != null) {
+        stats.add("coalescing", singleFlight.getStatistics());
+      }
+      NamedList<Object> paths = new NamedList<Object>();
+      paths.add(PATH_FUSION, servedByFusion.get());
+      paths.add(PATH_CACHE, servedByCache.get());
+      paths.add(PATH_LOCAL, servedLocally.get());
+      paths.add(PATH_ORIGINAL, servedOriginal.get());
+      stats.add("paths", paths);
+      if (speculativeExecutor != null) {
+        NamedList<Object> speculation = new NamedList<Object>();
+        speculation.add("softDeadlineMs", softDeadlineMs);
+        speculation.add("abandoned", abandoned.get());
+        speculation.add("saturated", saturated.get());
+        speculation.add("outliving", outliving.get());
+        speculation.add("lateAnswers", lateAnswers.get());
+        speculation.add("lateFailures", lateFailures.get());
+        stats.add("speculation", speculation);
+      }
+      if (localPipeline != null) {
+        stats.add("localPipeline", localPipeline.getStatistics());
+      }
+      return stats;
+    }
+
+    /**
+     * Load the pipeline result of the params into the cache, unless it is there already.
+     */
+    boolean warmCache(SolrParams params) {
+      String requestKey = FusionQueryCache.canonicalKey(params, ignoredKeyParams, paramFilter);
+      if (cache.contains(requestKey)) {
+        return false;
+      }
+      return loadPipelineResult(fusionUrl(fusionBaseUrl), params, requestKey, deadlineMs) != null;
+    }
+
+    /**
+     * Get the query-params from Fusion query-pipelines by doing a POST request.
+     * The API endpoint to get query-params from a query-pipeline is
+     * -X POST http://localhost:8764/api/apollo/collections/{collection_name}/query-profiles/{pipeline_name}/{handler_name}
+     *
+     * In case of an exception while querying or parsing Fusion,
+     * do not modify the query-params and continue with the original request.
+     */
+    void processPipelineDataFromFusion(String fusionBaseUrl, SolrQueryRequest req, SolrQueryResponse rsp,
+                                       FusionProfiles.Lease<QueryProfile> lease) throws Exception {
+
+      final String requestKey = cache != null || singleFlight != null ?
+        FusionQueryCache.canonicalKey(req.getParams(), ignoredKeyParams, paramFilter) : null;
+      if (warmer != null && profiles.getDefault() == this) {
+        warmer.record(requestKey);
+      }
+      // a request sent to another Fusion does not run the pipeline of this one
+      if (localPipeline != null && fusionBaseUrl.equals(this.fusionBaseUrl)) {
+        FusionPipelineResult local = localPipeline.execute(req.getParams());
+        if (local != null) {
+          local.applyDelta(req, rsp);
+          markPath(rsp, PATH_LOCAL);
+          return;
+        }
+      }
+      if (cache != null) {
+        FusionPipelineResult cached = cache.get(requestKey);
+        if (cached != null) {
+          applyResult(cached, req, rsp);
+          markPath(rsp, PATH_CACHE);
+          return;
         }
       }
-    };
 
-    log.debug("Executing query " + httpPost.toString() + " with entity " + urlParameters);
-    String fusionJSON = null;
-    try {
-      fusionJSON = httpClient.execute(httpPost, responseHandler);
-    }  catch (Exception e) {
-      log.warn("Exception " + e.toString() + " when querying Fusion at url " + fusionUrl);
+      // the deadline is a budget for the whole request, the time spent before this component counts
+      final long timeoutMs = deadlineMs > 0 ? deadlineMs - (System.currentTimeMillis() - req.getStartTime()) : 0;
+      if (deadlineMs > 0 && timeoutMs <= 0) {
+        log.warn("The deadline of " + deadlineMs + "ms was used up before querying Fusion. Continuing with the original params");
+        markPath(rsp, PATH_ORIGINAL);
+        return;
+      }
+
+      final String fusionUrl = fusionUrl(fusionBaseUrl);
+      // a call that outlives the query must not see the params change under it
+      final SolrParams params = speculativeExecutor != null ? new ModifiableSolrParams(req.getParams()) : req.getParams();
+      final Callable<FusionPipelineResult> load = new Callable<FusionPipelineResult>() {
+        public FusionPipelineResult call() throws Exception {
+          return loadPipelineResult(fusionUrl, params, requestKey, timeoutMs);
+        }
+      };
+      Callable<FusionPipelineResult> call = load;
+      if (singleFlight != null) {
+        // identical concurrent requests share the call made by the first one
+        call = new Callable<FusionPipelineResult>() {
+          public FusionPipelineResult call() throws Exception {
+            return singleFlight.execute(fusionUrl + "?" + requestKey, load);
+          }
+        };
+      }
+
+      FusionPipelineResult result = speculativeExecutor != null ? callWithSoftDeadline(call, req, lease) : call.call();
+      if (result != null) {
+        applyResult(result, req, rsp);
+        markPath(rsp, PATH_FUSION);
+      } else {
+        markPath(rsp, PATH_ORIGINAL);
+      }
     }
 
-    try {
-      if (fusionJSON != null) {
-        // parse the JSON response from Fusion
-        overlayFusionData(fusionJSON, req, rsp);
+    /**
+     * A pipeline call raced against the soft deadline: the first of the answer and the deadline wins.
+     */
+    private class SpeculativeCall implements Callable<FusionPipelineResult> {
+      static final int PENDING = 0;
+      static final int ANSWERED = 1;
+      static final int ABANDONED = 2;
+
+      final Callable<FusionPipelineResult> call;
+      // keeps the profile open while the call outlives its query
+      final FusionProfiles.Lease<QueryProfile> lease;
+      final AtomicInteger state = new AtomicInteger(PENDING);
+
+      SpeculativeCall(Callable<FusionPipelineResult> call, FusionProfiles.Lease<QueryProfile> lease) {
+        this.call = call;
+        this.lease = lease;
+      }
+
+      public FusionPipelineResult call() throws Exception {
+        FusionPipelineResult result = null;
+        try {
+          result = call.call();
+          return result;
+        } finally {
+          lease.release();
+          if (!state.compareAndSet(PENDING, ANSWERED)) {
+            // the query went on without it, the result was cached all the same
+            (result != null ? lateAnswers : lateFailures).incrementAndGet();
+            outliving.decrementAndGet();
+          }
+        }
       }
-    } catch (Exception e) {
-      log.warn("Exception while reading response from Fusion url: "  + fusionUrl, e);
-      e.printStackTrace();
     }
-  }
 
-  public static void overlayFusionData(String fusionJSON, SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
-    ObjectMapper objectMapper = new ObjectMapper();
-    Map data = objectMapper.readValue(fusionJSON, Map.class);
-    Map fusionData = (Map) (data.get("fusion"));
-    Map queryParams = (Map) fusionData.remove("query-params");  // .remove'd to keep everything else separate
+    /**
+     * Wait for the call until the soft deadline, counted from the start of the request.
+     * Returns null if it failed or did not answer in time; the call then goes on in the background.
+     */
+    private FusionPipelineResult callWithSoftDeadline(Callable<FusionPipelineResult> call, SolrQueryRequest req,
+                                                      FusionProfiles.Lease<QueryProfile> lease) throws Exception {
+      if (outliving.get() >= maxOutliving) {
+        // as many calls as connections are outliving their queries already: Fusion is too slow to wait for
+        saturated.incrementAndGet();
+        return null;
+      }
+      // the lease of the request is held until the call returns, so this one is always taken
+      lease.retain();
+      SpeculativeCall speculative = new SpeculativeCall(call, lease);
+      Future<FusionPipelineResult> future;
+      try {
+        future = speculativeExecutor.submit(speculative);
+      } catch (RejectedExecutionException e) {
+        // the profile was closed
+        lease.release();
+        return null;
+      }
+
+      long wait = softDeadlineMs - (System.currentTimeMillis() - req.getStartTime());
+      try {
+        return future.get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (speculative.state.compareAndSet(SpeculativeCall.PENDING, SpeculativeCall.ABANDONED)) {
+          outliving.incrementAndGet();
+          abandoned.incrementAndGet();
+          log.debug("Fusion did not answer within the soft deadline of " + softDeadlineMs +
+            "ms. Continuing with the original params");
+          return null;
+        }
+        // it answered just now
+        return future.get();
+      } catch (ExecutionException e) {
+        log.warn("Exception while querying Fusion for query-params", e.getCause());
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (speculative.state.compareAndSet(SpeculativeCall.PENDING, SpeculativeCall.ABANDONED)) {
+          outliving.incrementAndGet();
+        }
+        return null;
+      }
+    }
 
-    ModifiableSolrParams newParams = new ModifiableSolrParams();
-    for (Object key : queryParams.keySet()) {
-      for (Object value : (List)queryParams.get(key)) {
-        newParams.add((String) key, (String)value);
+    private void markPath(SolrQueryResponse rsp, String path) {
+      if (PATH_FUSION.equals(path)) {
+        servedByFusion.incrementAndGet();
+      } else if (PATH_CACHE.equals(path)) {
+        servedByCache.incrementAndGet();
+      } else if (PATH_LOCAL.equals(path)) {
+        servedLocally.incrementAndGet();
+      } else {
+        servedOriginal.incrementAndGet();
+      }
+      NamedList header = rsp.getResponseHeader();
+      if (header != null) {
+        header.add(FUSION_PATH, path);
       }
     }
-    req.setParams(newParams);
 
-    NamedList fusionResponseData = new NamedList();
-    for (Object key : fusionData.keySet()) {
-      fusionResponseData.add(key.toString(), fusionData.get(key));
+    private void applyResult(FusionPipelineResult result, SolrQueryRequest req, SolrQueryResponse rsp) {
+      if ("delta".equals(mergeMode)) {
+        result.applyDelta(req, rsp);
+      } else {
+        result.apply(req, rsp, paramFilter);
+      }
     }
-    rsp.add("fusion", fusionResponseData);
+
+    /**
+     * Query the pipeline and cache the parsed result.
+     * Returns null if Fusion could not be queried or the response could not be parsed.
+     */
+    private FusionPipelineResult loadPipelineResult(String fusionUrl, SolrParams params, String requestKey, long timeoutMs) {
+      long start = System.currentTimeMillis();
+      HttpPost httpPost = new HttpPost(fusionUrl);
+      final ByteArrayEntity entity;
+      try {
+        // Add a hard-coded request param to identify requests coming through this plugin
+        entity = FormBody.encode(params, paramFilter, gzipRequests ? gzipMinBytes : -1, "isFusionPluginQuery", "true");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      httpPost.setEntity(entity);
+      if (acceptGzip) {
+        httpPost.addHeader("Accept-Encoding", "gzip");
+      }
+
+      // Create a custom response handler that parses the response as it is read
+      ResponseHandler<FusionPipelineResult> responseHandler = new ResponseHandler<FusionPipelineResult>() {
+
+        public FusionPipelineResult handleResponse(
+          final HttpResponse response) throws IOException {
+          int status = response.getStatusLine().getStatusCode();
+          if (status >= 200 && status < 300) {
+            HttpEntity responseEntity = response.getEntity();
+            if (responseEntity == null) {
+              return null;
+            }
+            InputStream content = responseEntity.getContent();
+            Header encoding = responseEntity.getContentEncoding();
+            if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+              content = new GZIPInputStream(content);
+            }
+            try {
+              return FusionPipelineResult.parse(content);
+            } catch (JsonProcessingException e) {
+              throw new FusionResponseException(e);
+            }
+          } else if (status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE && entity.getContentEncoding() != null) {
+            EntityUtils.consume(response.getEntity());
+            throw new GzipRejectedException();
+          } else {
+            throw new ClientProtocolException("Unexpected response status: " + status +
+              ". Message returned is '" + EntityUtils.toString(response.getEntity()) + "'");
+          }
+        }
+      };
+
+      log.debug("Executing query " + httpPost.toString() + " with " + entity.getContentLength() + " bytes of params");
+      FusionPipelineResult result = null;
+      try {
+        result = fusionClient.execute(httpPost, responseHandler, timeoutMs);
+      } catch (GzipRejectedException e) {
+        gzipRequests = false;
+        log.warn("Fusion at " + fusionUrl + " does not accept gzipped requests, sending them uncompressed from now on");
+        long remaining = timeoutMs > 0 ? timeoutMs - (System.currentTimeMillis() - start) : 0;
+        if (timeoutMs <= 0 || remaining > 0) {
+          return loadPipelineResult(fusionUrl, params, requestKey, remaining);
+        }
+      } catch (FusionCircuitBreaker.CircuitBreakerOpenException e) {
+        log.debug(e.getMessage());
+      } catch (FusionResponseException e) {
+        log.warn("Exception while reading response from Fusion url: "  + fusionUrl, e.getCause());
+      }  catch (Exception e) {
+        log.warn("Exception " + e.toString() + " when querying Fusion at url " + fusionUrl);
+      }
+
+      if (result != null && cache != null) {
+        cache.put(requestKey, result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Fusion answered a gzipped request with 415 Unsupported Media Type.
+   */
+  private static class GzipRejectedException extends IOException {
+  }
+
+  /**
+   * A response from Fusion that could not be parsed, as opposed to a failure to reach Fusion.
+   */
+  private static class FusionResponseException extends IOException {
+    FusionResponseException(Throwable cause) {
+      super(cause);
+    }
+  }
+
+  public static void overlayFusionData(String fusionJSON, SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    overlayFusionData(FusionPipelineResult.parse(fusionJSON), req, rsp);
+  }
+
+  /**
+   * Apply a parsed (or cached) pipeline result to the request and response, without any network I/O.
+   */
+  public static void overlayFusionData(FusionPipelineResult result, SolrQueryRequest req, SolrQueryResponse rsp) {
+    result.apply(req, rsp);
   }
 }
@@ -0,0 +1,221 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class {@code FusionQueryCache} is an in-process LRU cache of {@link FusionPipelineResult}s,
+ * keyed by the canonical form of the request params (see {@link #canonicalKey}).
+ *
+ * The cache is bounded by the number of entries and, optionally, by the total weight of the
+ * cached results. Entries expire 'ttl' milliseconds after they were added.
+ */
+public class FusionQueryCache {
+
+  private static final class Entry {
+    final FusionPipelineResult result;
+    final long expiresAt;
+
+    Entry(FusionPipelineResult result, long expiresAt) {
+      this.result = result;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final int maxEntries;
+  private final long maxWeight;
+  private final long ttlMs;
+
+  // access-ordered, so iteration starts with the least recently used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long weight = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  /**
+   * @param maxEntries the maximum number of cached results
+   * @param maxWeight the maximum total weight of the cached results, 0 for no limit
+   * @param ttlMs how long a result may be served from the cache, 0 for no limit
+   */
+  public FusionQueryCache(int maxEntries, long maxWeight, long ttlMs) {
+    this.maxEntries = maxEntries;
+    this.maxWeight = maxWeight;
+    this.ttlMs = ttlMs;
+  }
+
+  public FusionPipelineResult get(String key) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+        removeEntry(key);
+        expirations.incrementAndGet();
+        entry = null;
+      }
+      if (entry == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      return entry.result;
+    }
+  }
+
+  /**
+   * Whether a live result is cached for the key, without counting a lookup.
+   */
+  public boolean contains(String key) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      return entry != null && entry.expiresAt >= System.currentTimeMillis();
+    }
+  }
+
+  public void put(String key, FusionPipelineResult result) {
+    if (maxWeight > 0 && result.getWeight() > maxWeight) {
+      return;
+    }
+    long expiresAt = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : Long.MAX_VALUE;
+    synchronized (entries) {
+      removeEntry(key);
+      entries.put(key, new Entry(result, expiresAt));
+      weight += result.getWeight();
+
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext() && (entries.size() > maxEntries || (maxWeight > 0 && weight > maxWeight))) {
+        Map.Entry<String, Entry> eldest = it.next();
+        weight -= eldest.getValue().result.getWeight();
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      weight = 0;
+    }
+  }
+
+  private void removeEntry(String key) {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      weight -= old.result.getWeight();
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    synchronized (entries) {
+      stats.add("size", entries.size());
+      stats.add("weight", weight);
+    }
+    long lookups = hits.get() + misses.get();
+    stats.add("lookups", lookups);
+    stats.add("hits", hits.get());
+    stats.add("hitratio", lookups == 0 ? 0.0f : (float) hits.get() / lookups);
+    stats.add("misses", misses.get());
+    stats.add("evictions", evictions.get());
+    stats.add("expirations", expirations.get());
+    return stats;
+  }
+
+  /**
+   * A canonical form of the params: sorted by name, values kept in request order,
+   * with the ignored params left out. Two requests with the same key get the
+   * same response from the query-pipeline.
+   */
+  public static String canonicalKey(SolrParams params, Set<String> ignoredParams) {
+    return canonicalKey(params, ignoredParams, null);
+  }
+
+  /**
+   * The canonical form of the params the filter sends to the query-pipeline; the others do not change its response.
+   */
+  public static String canonicalKey(SolrParams params, Set<String> ignoredParams, FusionParamFilter filter) {
+    List<String> names = new ArrayList<String>();
+    Iterator<String> it = params.getParameterNamesIterator();
+    while (it.hasNext()) {
+      String name = it.next();
+      if (!ignoredParams.contains(name) && (filter == null || filter.accept(name))) {
+        names.add(name);
+      }
+    }
+    Collections.sort(names);
+
+    StringBuilder key = new StringBuilder();
+    for (String name : names) {
+      String[] values = params.getParams(name);
+      if (values == null) {
+        continue;
+      }
+      appendEscaped(key, name);
+      for (String value : values) {
+        key.append('=');
+        appendEscaped(key, value);
+      }
+      key.append('&');
+    }
+    return key.toString();
+  }
+
+  /**
+   * The params a canonical key was made of, the reverse of {@link #canonicalKey}.
+   */
+  public static ModifiableSolrParams parseCanonicalKey(String key) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    StringBuilder token = new StringBuilder();
+    String name = null;
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == '\\' && i + 1 < key.length()) {
+        token.append(key.charAt(++i));
+      } else if (c == '=' || c == '&') {
+        if (name == null) {
+          name = token.toString();
+          // a param without values still has a name
+          params.add(name, new String[0]);
+        } else {
+          params.add(name, token.toString());
+        }
+        token.setLength(0);
+        if (c == '&') {
+          name = null;
+        }
+      } else {
+        token.append(c);
+      }
+    }
+    return params;
+  }
+
+  private static void appendEscaped(StringBuilder key, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '=' || c == '&' || c == '\\') {
+        key.append('\\');
+      }
+      key.append(c);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.servlet.SolrRequestParsers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms the query-pipeline cache when a searcher opens, so that the first requests after a core load
+ * or a restart do not all go to Fusion.
+ *
+ * The most frequent request params are tracked with {@link HeavyHitters}, and saved to 'file' (one
+ * url-encoded param set per line, most frequent first) on every new searcher and when the core closes.
+ * On warm-up, the first 'count' param sets of the file are sent to the {@link Target} from 'concurrency'
+ * background threads; the searcher is not held back. The file can also be written by hand, with
+ * capturing turned off.
+ */
+public class FusionQueryWarmer implements SolrEventListener {
+
+  protected static Logger log = LoggerFactory.getLogger(FusionQueryWarmer.class);
+
+  /**
+   * Loads the pipeline result of a param set into the cache.
+   */
+  public interface Target {
+    /**
+     * @return false if the result was not loaded, already cached or not
+     */
+    boolean warm(SolrParams params);
+  }
+
+  private final File file;
+  private final int count;
+  private final boolean capture;
+  private final boolean onNewSearcher;
+  private final Target target;
+  private final HeavyHitters heavyHitters;
+  private final ThreadPoolExecutor executor;
+  private final AtomicBoolean warming = new AtomicBoolean(false);
+
+  private final AtomicLong warmups = new AtomicLong();
+  private final AtomicLong warmed = new AtomicLong();
+  private volatile long lastWarmupMs = 0;
+
+  public FusionQueryWarmer(File file, int count, int concurrency, boolean capture, boolean onNewSearcher, Target target) {
+    this.file = file;
+    this.count = count;
+    this.capture = capture;
+    this.onNewSearcher = onNewSearcher;
+    this.target = target;
+    // Space-Saving is accurate for the top entries when it tracks a lot more of them
+    this.heavyHitters = capture ? new HeavyHitters(count * 10) : null;
+    this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger threads = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "fusion-query-warmer-" + threads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Count a request, by the canonical key of its params (see {@link FusionQueryCache#canonicalKey}).
+   */
+  public void record(String requestKey) {
+    if (heavyHitters != null) {
+      heavyHitters.add(requestKey);
+    }
+  }
+
+  @Override
+  public void init(NamedList args) {
+  }
+
+  @Override
+  public void postCommit() {
+  }
+
+  @Override
+  public void postSoftCommit() {
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    if (currentSearcher != null) {
+      save();
+      if (!onNewSearcher) {
+        return;
+      }
+    }
+    warm();
+  }
+
+  /**
+   * Start warming in the background, unless a warm-up is still running. Returns a latch released once done.
+   */
+  public CountDownLatch warm() {
+    final CountDownLatch done = new CountDownLatch(1);
+    if (!warming.compareAndSet(false, true)) {
+      done.countDown();
+      return done;
+    }
+    final List<String> queries;
+    try {
+      queries = read();
+    } catch (IOException e) {
+      log.warn("Cannot read the queries to warm the Fusion query-pipeline cache with from " + file, e);
+      warming.set(false);
+      done.countDown();
+      return done;
+    }
+    if (heavyHitters != null && heavyHitters.top(1).isEmpty()) {
+      // keep the saved queries until the traffic replaces them, a save before any request would lose them
+      for (int i = queries.size() - 1; i >= 0; i--) {
+        heavyHitters.add(FusionQueryCache.canonicalKey(parse(queries.get(i)), Collections.<String>emptySet()));
+      }
+    }
+    if (queries.isEmpty()) {
+      warming.set(false);
+      done.countDown();
+      return done;
+    }
+
+    warmups.incrementAndGet();
+    final long start = System.currentTimeMillis();
+    final AtomicInteger pending = new AtomicInteger(queries.size());
+    for (final String query : queries) {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            if (target.warm(parse(query))) {
+              warmed.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            log.warn("Unexpected error while warming the Fusion query-pipeline cache", t);
+          } finally {
+            if (pending.decrementAndGet() == 0) {
+              lastWarmupMs = System.currentTimeMillis() - start;
+              log.info("Warmed the Fusion query-pipeline cache with " + queries.size() + " queries in " +
+                lastWarmupMs + "ms");
+              warming.set(false);
+              done.countDown();
+            }
+          }
+        }
+      });
+    }
+    return done;
+  }
+
+  private static SolrParams parse(String query) {
+    return SolrRequestParsers.parseQueryString(query);
+  }
+
+  /**
+   * The first 'count' param sets of the file; blank lines and lines starting with '#' are skipped.
+   */
+  List<String> read() throws IOException {
+    List<String> queries = new ArrayList<String>();
+    BufferedReader reader;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    } catch (FileNotFoundException e) {
+      return queries;
+    }
+    try {
+      String line;
+      while (queries.size() < count && (line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          queries.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return queries;
+  }
+
+  /**
+   * Write the most frequent param sets to the file, replacing it at once.
+   */
+  public void save() {
+    if (heavyHitters == null) {
+      return;
+    }
+    List<HeavyHitters.Counter> top = heavyHitters.top(count);
+    if (top.isEmpty()) {
+      return;
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+      try {
+        writer.write("# the most frequent requests, used to warm the Fusion query-pipeline cache\n");
+        for (HeavyHitters.Counter counter : top) {
+          writer.write(toQueryString(FusionQueryCache.parseCanonicalKey(counter.key)));
+          writer.write('\n');
+        }
+      } finally {
+        writer.close();
+      }
+      if (!tmp.renameTo(file)) {
+        // renameTo does not replace an existing file on every platform
+        if (!file.delete() || !tmp.renameTo(file)) {
+          throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Cannot save the queries to warm the Fusion query-pipeline cache with to " + file, e);
+    }
+  }
+
+  static String toQueryString(SolrParams params) throws IOException {
+    StringBuilder query = new StringBuilder();
+    Iterator<String> names = params.getParameterNamesIterator();
+    while (names.hasNext()) {
+      String name = names.next();
+      String[] values = params.getParams(name);
+      if (values == null) {
+        continue;
+      }
+      for (String value : values) {
+        if (query.length() > 0) {
+          query.append('&');
+        }
+        query.append(URLEncoder.encode(name, "UTF-8")).append('=').append(URLEncoder.encode(value, "UTF-8"));
+      }
+    }
+    return query.toString();
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("warmups", warmups.get());
+    stats.add("warmed", warmed.get());
+    stats.add("lastWarmupMs", lastWarmupMs);
+    stats.add("warming", warming.get());
+    return stats;
+  }
+
+  /**
+   * Save the captured requests and stop warming.
+   */
+  public void close() {
+    executor.shutdownNow();
+    save();
+  }
+}
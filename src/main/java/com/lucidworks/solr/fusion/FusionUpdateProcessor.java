@@ -4,69 +4,198 @@ package com.lucidworks.solr.fusion;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
-import org.apache.solr.client.solrj.impl.HttpClientUtil;
-import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.params.SolrParams;
-import org.apache.solr.handler.loader.XMLLoader;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.MergeIndexesCommand;
+import org.apache.solr.update.RollbackUpdateCommand;
+import org.apache.solr.update.UpdateCommand;
+import org.apache.solr.update.processor.DistributedUpdateProcessor;
+import org.apache.solr.update.processor.DistributingUpdateProcessorFactory;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * The class {@code FusionUpdateProcessor} sends documents through a Fusion index-profile
+ * (in simulate mode) and forwards the documents returned by the index-pipeline down the chain.
+ *
+ * By default every document is sent on its own. Setting 'batch_size' to a value greater than 1
+ * buffers the incoming documents and sends them to Fusion in a single multi-document request
+ * once the buffer reaches 'batch_size' documents, 'batch_max_bytes' (estimated) bytes or has been
+ * open for 'batch_max_wait_ms' milliseconds. Buffered documents are always flushed, in their
+ * original order, before any delete, commit, merge or rollback and when the request finishes.
+ *
+ * Documents are sent as Solr XML by default, 'wire_format' switches to javabin or json. The
+ * response is decoded according to its Content-Type, so Fusion may answer with any of the
+ * formats listed in the Accept header.
+ *
+ * Setting 'max_in_flight' to a value greater than 1 pipelines the calls: up to 'max_in_flight' requests
+ * (single documents or batches) of an update request are sent to Fusion concurrently, on threads of a pool
+ * shared by the core, while the update request keeps reading documents. The enriched documents are still
+ * forwarded down the chain in their original order, from the update request thread.
+ *
+ * With a {@link DocumentSkipCache} (see the 'skip_cache*' params of the factory), documents that were
+ * already sent unchanged get the earlier pipeline output without calling Fusion.
+ *
+ * With an {@link AdaptiveConcurrencyLimiter} (see the 'adaptive_concurrency' params of the factory), each call
+ * takes a permit first. When none is free the update request waits for one up to 'backpressure_timeout_ms'
+ * with 'backpressure' set to 'block', or right away with 'reject', and then fails with a 503 instead of
+ * indexing the documents without the pipeline.
+ *
+ * In SolrCloud, 'distrib_mode' set to 'entry' or 'leader' sends each document through the pipeline on one node only:
+ * documents forwarded by their shard leader (update.distrib=FROMLEADER) or replayed from the transaction log (log
+ * replay, peer sync) already went through it and are passed on as they are. With 'entry' the processor goes before
+ * the DistributedUpdateProcessorFactory of the chain and the entry node calls Fusion. With 'leader' it goes after it
+ * and the shard leader calls Fusion; the document is then enriched in place, one at a time, so that the leader
+ * forwards the enriched copy to its replicas ('batch_size' and 'max_in_flight' do not apply).
+ *
+ * Only the fields of 'include_fields' (all by default) and not in 'exclude_fields' are sent to Fusion, along
+ * with the unique key. The fields left out are taken back from the original document once the pipeline
+ * answers: the returned document holds the fields that were sent, with the pipeline's changes, and the
+ * pipeline cannot see, change or remove the others.
+ *
+ * In case of un-successful request or a bad response format, the original documents are indexed; with
+ * 'failure_policy' set to 'fail' the update request fails instead.
+ */
 public class FusionUpdateProcessor extends UpdateRequestProcessor{
 
   private static final String FUSION_BASE_URL_PARAM = "fusion_base_url";
   private static final String FUSION_BASE_URL_DEFAULT = "http://localhost:8765/api/v1";
-  public static final String SOLR_XML_DOCUMENT = "application/vnd.solr-document";
+  public static final String SOLR_XML_DOCUMENT = XmlDocumentCodec.SOLR_XML_DOCUMENT;
 
-  private  HttpClient httpClient;
+  public static final String BATCH_SIZE_PARAM = "batch_size";
+  public static final String BATCH_MAX_BYTES_PARAM = "batch_max_bytes";
+  public static final String BATCH_MAX_WAIT_MS_PARAM = "batch_max_wait_ms";
+  public static final String WIRE_FORMAT_PARAM = "wire_format";
+  public static final String MAX_IN_FLIGHT_PARAM = "max_in_flight";
+  public static final String FAILURE_POLICY_PARAM = "failure_policy";
+  public static final String BACKPRESSURE_PARAM = "backpressure";
+  public static final String BACKPRESSURE_TIMEOUT_MS_PARAM = "backpressure_timeout_ms";
+  public static final String DISTRIB_MODE_PARAM = "distrib_mode";
+  public static final String INDEX_PROFILE_PARAM = "index_profile";
+  public static final String INCLUDE_FIELDS_PARAM = "include_fields";
+  public static final String EXCLUDE_FIELDS_PARAM = "exclude_fields";
+
+  public static final String FAILURE_POLICY_ORIGINAL = "original";
+  public static final String FAILURE_POLICY_FAIL = "fail";
+  public static final String BACKPRESSURE_BLOCK = "block";
+  public static final String BACKPRESSURE_REJECT = "reject";
+  public static final String DISTRIB_MODE_ALL = "all";
+  public static final String DISTRIB_MODE_ENTRY = "entry";
+  public static final String DISTRIB_MODE_LEADER = "leader";
+
+  private final FusionClient fusionClient;
+  private final ExecutorService executor;
+  private final DocumentSkipCache skipCache;
+  private final AdaptiveConcurrencyLimiter limiter;
+  // keeps the profile open until the request is done, released once
+  private final FusionProfiles.Lease<?> lease;
+  private final AtomicBoolean leased;
   //default values:
-  int soTimeout = 0;
-  int connectionTimeout = 0;
-  int maxConnectionsPerHost = 20;
+  int batchSize = 1;
+  long batchMaxBytes = 0;
+  long batchMaxWaitMs = 0;
+  FusionDocumentCodec codec = FusionDocumentCodec.forName(FusionDocumentCodec.XML);
+  int maxInFlight = 1;
+  boolean failOnError = false;
+  long backpressureTimeoutMs = 30000;
+  String distribMode = DISTRIB_MODE_ALL;
+  // the fields sent to Fusion, null for all
+  FusionParamFilter fieldFilter = null;
   protected static Logger log = LoggerFactory.getLogger(FusionUpdateProcessor.class);
-  private static XMLInputFactory inputFactory;
-
 
   private String collectionName;
   private String fusionBaseUrl;
+  private String indexProfile = "default";
   private boolean enabled = true;
+  // the documents of this request were sent through the pipeline by the shard leader
+  private final boolean fromLeader;
+  // always sent to Fusion, null if the schema is not known
+  private final String uniqueKey;
+
+  // documents waiting to be sent to Fusion in the next batch
+  private final List<AddUpdateCommand> pending = new ArrayList<AddUpdateCommand>();
+  private long pendingBytes = 0;
+  private long pendingSince = 0;
+  // requests sent to Fusion and not yet forwarded down the chain, oldest first
+  private final LinkedList<InFlightBatch> inFlight = new LinkedList<InFlightBatch>();
+  private boolean failed = false;
 
 
+  /**
+   * @param executor the pool running the pipelined calls when 'max_in_flight' is greater than 1,
+   *                 or null to always call Fusion from the update request thread
+   * @param skipCache the pipeline output of the documents already sent, or null
+   * @param limiter bounds the concurrent calls to Fusion of the core, or null
+   * @param lease the lease on the profile the resources come from, released when the request finishes or
+   *              closes, or null
+   */
   public FusionUpdateProcessor(SolrParams params,
+                               FusionClient fusionClient,
+                               ExecutorService executor,
+                               DocumentSkipCache skipCache,
+                               AdaptiveConcurrencyLimiter limiter,
+                               FusionProfiles.Lease<?> lease,
                                SolrQueryRequest solrQueryRequest,
                                SolrQueryResponse solrQueryResponse,
                                UpdateRequestProcessor next) {
     super(next);
+    this.fusionClient = fusionClient;
+    this.executor = executor;
+    this.skipCache = skipCache;
+    this.limiter = limiter;
+    this.lease = lease;
+    this.leased = new AtomicBoolean(lease != null);
     this.init(params);
-    inputFactory = XMLInputFactory.newInstance();
+    this.fromLeader = DistributedUpdateProcessor.DistribPhase.parseParam(solrQueryRequest.getParams().get(
+      DistributingUpdateProcessorFactory.DISTRIB_UPDATE_PARAM)) == DistributedUpdateProcessor.DistribPhase.FROMLEADER;
+    IndexSchema schema = solrQueryRequest.getSchema();
+    this.uniqueKey = schema != null && schema.getUniqueKeyField() != null ? schema.getUniqueKeyField().getName() : null;
+
+    // a request that fails before finish() gives the lease back when it closes
+    SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    if (lease != null && requestInfo != null) {
+      requestInfo.addCloseHook(new Closeable() {
+        public void close() {
+          releaseLease();
+        }
+      });
+    }
   }
 
-  private void init(SolrParams params) {
-    ModifiableSolrParams clientParams = new ModifiableSolrParams();
-    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
-    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS, 10000);
-    clientParams.set(HttpClientUtil.PROP_SO_TIMEOUT, soTimeout);
-    clientParams.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectionTimeout);
-    clientParams.set(HttpClientUtil.PROP_USE_RETRY, false);
-    this.httpClient = HttpClientUtil.createClient(clientParams);
+  private void releaseLease() {
+    if (leased.compareAndSet(true, false)) {
+      lease.release();
+    }
+  }
 
+  private void init(SolrParams params) {
     if (params != null) {
       if (params.get("fusion_base_url") != null) {
         fusionBaseUrl = String.valueOf(params.get("fusion_base_url"));
@@ -74,6 +203,45 @@ public class FusionUpdateProcessor extends UpdateRequestProcessor{
       if (params.get("collection_name") != null) {
         collectionName = String.valueOf(params.get("collection_name"));
       }
+      indexProfile = params.get(INDEX_PROFILE_PARAM, indexProfile);
+      batchSize = params.getInt(BATCH_SIZE_PARAM, batchSize);
+      batchMaxBytes = params.getLong(BATCH_MAX_BYTES_PARAM, batchMaxBytes);
+      batchMaxWaitMs = params.getLong(BATCH_MAX_WAIT_MS_PARAM, batchMaxWaitMs);
+      if (params.get(WIRE_FORMAT_PARAM) != null) {
+        try {
+          codec = FusionDocumentCodec.forName(params.get(WIRE_FORMAT_PARAM));
+        } catch (IllegalArgumentException e) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+            "config '" + WIRE_FORMAT_PARAM + "' is invalid: " + e.getMessage());
+        }
+      }
+      maxInFlight = params.getInt(MAX_IN_FLIGHT_PARAM, maxInFlight);
+      String failurePolicy = params.get(FAILURE_POLICY_PARAM, FAILURE_POLICY_ORIGINAL);
+      if (!FAILURE_POLICY_ORIGINAL.equals(failurePolicy) && !FAILURE_POLICY_FAIL.equals(failurePolicy)) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "config '" + FAILURE_POLICY_PARAM + "' must be one of original or fail");
+      }
+      failOnError = FAILURE_POLICY_FAIL.equals(failurePolicy);
+      String backpressure = params.get(BACKPRESSURE_PARAM, BACKPRESSURE_BLOCK);
+      if (!BACKPRESSURE_BLOCK.equals(backpressure) && !BACKPRESSURE_REJECT.equals(backpressure)) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "config '" + BACKPRESSURE_PARAM + "' must be one of block or reject");
+      }
+      backpressureTimeoutMs = BACKPRESSURE_REJECT.equals(backpressure) ? 0 :
+        params.getLong(BACKPRESSURE_TIMEOUT_MS_PARAM, backpressureTimeoutMs);
+      distribMode = params.get(DISTRIB_MODE_PARAM, distribMode);
+      if (!DISTRIB_MODE_ALL.equals(distribMode) && !DISTRIB_MODE_ENTRY.equals(distribMode) &&
+        !DISTRIB_MODE_LEADER.equals(distribMode)) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "config '" + DISTRIB_MODE_PARAM + "' must be one of all, entry or leader");
+      }
+      FusionParamFilter filter = new FusionParamFilter(params.get(INCLUDE_FIELDS_PARAM), params.get(EXCLUDE_FIELDS_PARAM));
+      fieldFilter = filter.isEmpty() ? null : filter;
+      if (DISTRIB_MODE_LEADER.equals(distribMode)) {
+        // the leader forwards the command once it returns, it must hold the enriched document by then
+        batchSize = 1;
+        maxInFlight = 1;
+      }
     }
 
     if (fusionBaseUrl == null) {
@@ -89,58 +257,446 @@ public class FusionUpdateProcessor extends UpdateRequestProcessor{
 
   @Override
   public void processAdd(AddUpdateCommand command) throws IOException {
-    if (enabled) {
-      String xmlDoc = ClientUtils.toXML(command.getSolrInputDocument());
-      String fusionUrl = fusionBaseUrl + "/collections/" +  collectionName + "/index-profiles/default/index?simulate=true";
+    if (!enabled) {
+      super.processAdd(command);
+      return;
+    }
+    if (isEnrichedUpstream(command)) {
+      flushAll();
+      super.processAdd(command);
+      return;
+    }
+
+    if (pending.isEmpty()) {
+      pendingSince = System.currentTimeMillis();
+    }
+    // the loaders re-use their AddUpdateCommand for every document, so buffer a copy
+    // unless the document is sent right away
+    boolean sentNow = batchSize <= 1 && !isPipelined();
+    pending.add(sentNow ? command : (AddUpdateCommand) command.clone());
+    pendingBytes += estimateSize(command.getSolrInputDocument(), fieldFilter);
+
+    if (isBatchFull()) {
+      flushPending();
+    }
+  }
+
+  @Override
+  public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+    flushAll();
+    super.processDelete(cmd);
+  }
+
+  @Override
+  public void processMergeIndexes(MergeIndexesCommand cmd) throws IOException {
+    flushAll();
+    super.processMergeIndexes(cmd);
+  }
+
+  @Override
+  public void processCommit(CommitUpdateCommand cmd) throws IOException {
+    flushAll();
+    super.processCommit(cmd);
+  }
+
+  @Override
+  public void processRollback(RollbackUpdateCommand cmd) throws IOException {
+    flushAll();
+    super.processRollback(cmd);
+  }
+
+  @Override
+  public void finish() throws IOException {
+    try {
+      flushAll();
+    } finally {
+      releaseLease();
+    }
+    super.finish();
+  }
+
+  /**
+   * Whether the document already went through the pipeline on another node: forwarded by its shard leader,
+   * or replayed from the transaction log.
+   */
+  private boolean isEnrichedUpstream(AddUpdateCommand command) {
+    if (DISTRIB_MODE_ALL.equals(distribMode)) {
+      return false;
+    }
+    return fromLeader || (command.getFlags() & (UpdateCommand.REPLAY | UpdateCommand.PEER_SYNC)) != 0;
+  }
+
+  private boolean isBatchFull() {
+    if (pending.size() >= batchSize) {
+      return true;
+    }
+    if (batchMaxBytes > 0 && pendingBytes >= batchMaxBytes) {
+      return true;
+    }
+    return batchMaxWaitMs > 0 && System.currentTimeMillis() - pendingSince >= batchMaxWaitMs;
+  }
+
+  private boolean isPipelined() {
+    return maxInFlight > 1 && executor != null;
+  }
 
-      // Send the String via HTTP POST
-      HttpPost httpPost = new HttpPost(fusionUrl);
-      httpPost.addHeader("Content-Type", SOLR_XML_DOCUMENT);
-      httpPost.addHeader("Accept", SOLR_XML_DOCUMENT);
-      httpPost.setEntity(new StringEntity(xmlDoc));
+  /**
+   * Send the buffered documents and everything still in flight, and forward them down the chain.
+   */
+  private void flushAll() throws IOException {
+    flushPending();
+    forwardInFlight(0);
+  }
 
+  /**
+   * Send the buffered documents to Fusion in one request. Unless the calls are pipelined, the documents
+   * returned by the index-pipeline are forwarded down the chain right away, in their original order.
+   */
+  private void flushPending() throws IOException {
+    if (pending.isEmpty() || failed) {
+      return;
+    }
 
+    List<AddUpdateCommand> batch = new ArrayList<AddUpdateCommand>(pending);
+    pending.clear();
+    pendingBytes = 0;
 
-      // Create a custom response handler
-      ResponseHandler<SolrInputDocument> responseHandler = new ResponseHandler<SolrInputDocument>() {
+    final List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(batch.size());
+    for (AddUpdateCommand cmd : batch) {
+      docs.add(project(cmd.getSolrInputDocument()));
+    }
 
-        public SolrInputDocument handleResponse(
-          final HttpResponse response) throws IOException {
-          int status = response.getStatusLine().getStatusCode();
-          if (status >= 200 && status < 300) {
-            HttpEntity entity = response.getEntity();
-            InputStream inputStream = entity.getContent();
+    acquirePermit(batch.size());
+    if (isPipelined()) {
+      // the permit is given back once the call is done, or when it is cancelled before it ran
+      final AtomicBoolean permit = new AtomicBoolean(true);
+      FutureTask<List<SolrInputDocument>> future = new FutureTask<List<SolrInputDocument>>(
+        new Callable<List<SolrInputDocument>>() {
+          public List<SolrInputDocument> call() {
             try {
-              XMLStreamReader parser = inputFactory.createXMLStreamReader(inputStream);
-              parser.next(); // read the START document...
-              //null for the processor is all right here
-              XMLLoader loader = new XMLLoader();
-              return loader.readDoc(parser);
-            } catch (XMLStreamException e) {
-              e.printStackTrace();
-              return null;
+              return enrich(docs);
+            } finally {
+              releasePermit(permit);
             }
-
-          } else {
-            throw new ClientProtocolException("Unexpected response status: " + status +
-              ". Message returned is '" + EntityUtils.toString(response.getEntity()) + "'");
           }
+        }) {
+        @Override
+        protected void done() {
+          releasePermit(permit);
         }
       };
+      try {
+        executor.execute(future);
+        inFlight.add(new InFlightBatch(batch, future));
+        // wait for the oldest calls once the window is full
+        forwardInFlight(maxInFlight - 1);
+        return;
+      } catch (RejectedExecutionException e) {
+        // the pool is shut down with the core, finish this request from its own thread
+        log.debug("The index-pipeline pool is shut down, calling Fusion from the update request thread");
+      }
+    }
+    List<SolrInputDocument> fusionDocs;
+    try {
+      fusionDocs = enrich(docs);
+    } finally {
+      releasePermit(null);
+    }
+    forward(batch, fusionDocs);
+  }
+
+  /**
+   * Wait for the limiter to let one more call go to Fusion, failing the update request with a 503 when it
+   * does not in time: the client should slow down rather than get documents indexed without the pipeline.
+   */
+  private void acquirePermit(int docs) {
+    if (limiter == null) {
+      return;
+    }
+    boolean acquired;
+    try {
+      acquired = limiter.acquire(backpressureTimeoutMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      acquired = false;
+    }
+    if (!acquired) {
+      failed = true;
+      for (InFlightBatch remaining : inFlight) {
+        remaining.future.cancel(true);
+      }
+      inFlight.clear();
+      pending.clear();
+      throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "The Fusion index-pipeline is at its " +
+        "limit of " + limiter.getLimit() + " concurrent calls, rejecting " + docs + " documents. Retry later");
+    }
+  }
 
-      log.debug("Executing query " + httpPost.toString() + " with entity " + xmlDoc);
+  /**
+   * @param permit the permit of a pipelined call, released only once; null for a call of this thread
+   */
+  private void releasePermit(AtomicBoolean permit) {
+    if (limiter != null && (permit == null || permit.compareAndSet(true, false))) {
+      limiter.release();
+    }
+  }
 
+  /**
+   * Forward the in-flight batches, oldest first, until at most 'maxRemaining' are left in flight.
+   * Batches that are already done are forwarded too.
+   */
+  private void forwardInFlight(int maxRemaining) throws IOException {
+    while (!inFlight.isEmpty() && (inFlight.size() > maxRemaining || inFlight.getFirst().future.isDone())) {
+      InFlightBatch oldest = inFlight.removeFirst();
+      List<SolrInputDocument> fusionDocs = null;
       try {
-        SolrInputDocument doc = httpClient.execute(httpPost, responseHandler);
-        if (doc != null) {
-          command.solrDoc = doc;
-          log.debug("Updated document from Fusion " + doc.toString());
+        fusionDocs = oldest.future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.warn("Interrupted while waiting for Fusion. Continuing with the original documents");
+      } catch (ExecutionException e) {
+        log.warn("Exception " + e.getCause() + " when querying Fusion. Continuing with the original documents");
+      }
+      forward(oldest.commands, fusionDocs);
+    }
+  }
+
+  /**
+   * Forward the commands down the chain with the documents returned by Fusion, or
+   * apply the failure policy when Fusion failed (null documents).
+   */
+  private void forward(List<AddUpdateCommand> batch, List<SolrInputDocument> fusionDocs) throws IOException {
+    if (fusionDocs == null && failOnError) {
+      failed = true;
+      for (InFlightBatch remaining : inFlight) {
+        remaining.future.cancel(true);
+      }
+      inFlight.clear();
+      pending.clear();
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "The Fusion index-pipeline failed for " +
+        batch.size() + " documents, failing the update request ('" + FAILURE_POLICY_PARAM + "' is '" +
+        FAILURE_POLICY_FAIL + "')");
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      AddUpdateCommand cmd = batch.get(i);
+      if (fusionDocs != null) {
+        SolrInputDocument fusionDoc = merge(cmd.solrDoc, fusionDocs.get(i));
+        // the version the leader assigned is what its replicas order the updates by, it was not sent to Fusion
+        Object version = cmd.solrDoc.getFieldValue(DistributedUpdateProcessor.VERSION_FIELD);
+        if (version != null) {
+          fusionDoc.setField(DistributedUpdateProcessor.VERSION_FIELD, version);
+        }
+        cmd.solrDoc = fusionDoc;
+      }
+      super.processAdd(cmd);
+    }
+  }
+
+  /**
+   * The version is never sent: it is new on every update, the pipeline output does not depend on it, and
+   * it would make every document a miss of the skip cache.
+   */
+  private boolean isSent(String field) {
+    if (DistributedUpdateProcessor.VERSION_FIELD.equals(field)) {
+      return false;
+    }
+    return fieldFilter == null || field.equals(uniqueKey) || fieldFilter.accept(field);
+  }
+
+  /**
+   * The fields of the document that are sent to Fusion. They are shared with the document, not copied.
+   */
+  private SolrInputDocument project(SolrInputDocument doc) {
+    if (fieldFilter == null && doc.getField(DistributedUpdateProcessor.VERSION_FIELD) == null) {
+      return doc;
+    }
+    SolrInputDocument projected = new SolrInputDocument();
+    projected.setDocumentBoost(doc.getDocumentBoost());
+    for (SolrInputField field : doc) {
+      if (isSent(field.getName())) {
+        projected.put(field.getName(), field);
+      }
+    }
+    // only the '_version_' was left out: the children are sent and indexed as Fusion returns them, like the fields
+    if (fieldFilter == null && doc.hasChildDocuments()) {
+      projected.addChildDocuments(doc.getChildDocuments());
+    }
+    return projected;
+  }
+
+  /**
+   * The document returned by Fusion with the fields that were not sent taken back from the original document.
+   * A field returned by the pipeline wins over the original one of the same name.
+   */
+  private SolrInputDocument merge(SolrInputDocument original, SolrInputDocument fusionDoc) {
+    if (fieldFilter == null) {
+      return fusionDoc;
+    }
+    SolrInputDocument merged = new SolrInputDocument();
+    merged.setDocumentBoost(fusionDoc.getDocumentBoost());
+    for (SolrInputField field : original) {
+      if (!isSent(field.getName())) {
+        merged.put(field.getName(), field);
+      }
+    }
+    for (SolrInputField field : fusionDoc) {
+      merged.put(field.getName(), field);
+    }
+    if (original.hasChildDocuments()) {
+      merged.addChildDocuments(original.getChildDocuments());
+    }
+    return merged;
+  }
+
+  /**
+   * The pipeline output of the documents: taken from the skip cache when they were already sent
+   * unchanged, from Fusion otherwise. Returns null if Fusion failed.
+   */
+  private List<SolrInputDocument> enrich(List<SolrInputDocument> docs) {
+    if (skipCache == null) {
+      return sendToFusion(docs);
+    }
+
+    List<SolrInputDocument> enriched = new ArrayList<SolrInputDocument>(docs.size());
+    List<SolrInputDocument> misses = new ArrayList<SolrInputDocument>();
+    List<byte[]> missKeys = new ArrayList<byte[]>();
+    List<Integer> missPositions = new ArrayList<Integer>();
+    for (int i = 0; i < docs.size(); i++) {
+      byte[] key = skipCache.key(docs.get(i));
+      SolrInputDocument cached = skipCache.get(key);
+      enriched.add(cached);
+      if (cached == null) {
+        misses.add(docs.get(i));
+        missKeys.add(key);
+        missPositions.add(i);
+      }
+    }
+    if (misses.isEmpty()) {
+      return enriched;
+    }
+
+    List<SolrInputDocument> fusionDocs = sendToFusion(misses);
+    if (fusionDocs == null) {
+      return null;
+    }
+    for (int i = 0; i < fusionDocs.size(); i++) {
+      // cached before the documents go down the chain, where they can be modified
+      skipCache.put(missKeys.get(i), fusionDocs.get(i));
+      enriched.set(missPositions.get(i), fusionDocs.get(i));
+    }
+    return enriched;
+  }
+
+  /**
+   * Send the documents to the index-profile in the configured wire format. A single
+   * document is sent on its own, several documents are sent as a list.
+   *
+   * Returns the documents returned by Fusion in the same order as the input, or null if the
+   * request failed or Fusion did not return one document per input document.
+   */
+  private List<SolrInputDocument> sendToFusion(List<SolrInputDocument> docs) {
+    String fusionUrl = fusionBaseUrl + "/collections/" +  collectionName + "/index-profiles/" + indexProfile + "/index?simulate=true";
+
+    // Stream the documents via HTTP POST
+    HttpPost httpPost = new HttpPost(fusionUrl);
+    httpPost.addHeader("Content-Type", codec.getContentType());
+    httpPost.addHeader("Accept", codec.getAccept());
+    httpPost.setEntity(new SolrDocumentsEntity(docs, codec));
+
+
+
+    // Create a custom response handler
+    ResponseHandler<List<SolrInputDocument>> responseHandler = new ResponseHandler<List<SolrInputDocument>>() {
+
+      public List<SolrInputDocument> handleResponse(
+        final HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 200 && status < 300) {
+          HttpEntity entity = response.getEntity();
+          if (entity == null) {
+            return null;
+          }
+          // decode whatever Fusion answered with, assuming the format we sent when it doesn't say
+          FusionDocumentCodec responseCodec = entity.getContentType() == null ? null :
+            FusionDocumentCodec.forContentType(entity.getContentType().getValue());
+          if (responseCodec == null) {
+            responseCodec = codec;
+          }
+          InputStream inputStream = entity.getContent();
+          try {
+            return responseCodec.read(inputStream);
+          } finally {
+            inputStream.close();
+          }
+        } else {
+          throw new ClientProtocolException("Unexpected response status: " + status +
+            ". Message returned is '" + EntityUtils.toString(response.getEntity()) + "'");
+        }
+      }
+    };
+
+    if (log.isDebugEnabled()) {
+      log.debug("Executing query " + httpPost.toString() + " with " + docs.size() + " documents");
+    }
+
+    long start = System.nanoTime();
+    try {
+      List<SolrInputDocument> fusionDocs = fusionClient.execute(httpPost, responseHandler);
+      if (limiter != null) {
+        // an answer without the documents is no better than an error
+        if (fusionDocs != null && fusionDocs.size() == docs.size()) {
+          limiter.onSuccess(System.nanoTime() - start, docs.size());
+        } else {
+          limiter.onFailure();
         }
-      }  catch (Exception e) {
-        log.warn("Exception " + e.toString() + " when querying Fusion at url " + fusionUrl + " with entity " + xmlDoc);
       }
+      if (fusionDocs != null && fusionDocs.size() == docs.size()) {
+        if (log.isDebugEnabled()) {
+          log.debug("Updated " + fusionDocs.size() + " documents from Fusion " + fusionDocs.toString());
+        }
+        return fusionDocs;
+      }
+      if (fusionDocs != null) {
+        log.warn("Fusion returned " + fusionDocs.size() + " documents for " + docs.size() +
+          " sent to url " + fusionUrl + ". Continuing with the original documents");
+      }
+    } catch (FusionCircuitBreaker.CircuitBreakerOpenException e) {
+      log.debug(e.getMessage() + ". Continuing with the original documents");
+    }  catch (Exception e) {
+      if (limiter != null) {
+        limiter.onFailure();
+      }
+      log.warn("Exception " + e.toString() + " when querying Fusion at url " + fusionUrl + " with " + docs.size() + " documents");
     }
+    return null;
+  }
+
+  /**
+   * A cheap estimate of the serialized size of a document, used for the 'batch_max_bytes' limit.
+   *
+   * @param filter the fields that are sent, null for all
+   */
+  static long estimateSize(SolrInputDocument doc, FusionParamFilter filter) {
+    long size = 0;
+    for (SolrInputField field : doc) {
+      if (filter != null && !filter.accept(field.getName())) {
+        continue;
+      }
+      size += field.getName().length();
+      for (Object value : field) {
+        size += value == null ? 0 : String.valueOf(value).length();
+      }
+    }
+    return size;
+  }
 
-    super.processAdd(command);
+  private static class InFlightBatch {
+    final List<AddUpdateCommand> commands;
+    final Future<List<SolrInputDocument>> future;
+
+    InFlightBatch(List<AddUpdateCommand> commands, Future<List<SolrInputDocument>> future) {
+      this.commands = commands;
+      this.future = future;
+    }
   }
 }
@@ -1,26 +1,409 @@
 package com.lucidworks.solr.fusion;
 
 
+import org.apache.http.client.HttpClient;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class FusionUpdateProcessorFactory extends UpdateRequestProcessorFactory{
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-  private SolrParams params;
+/**
+ * Creates a {@link FusionUpdateProcessor} per update request. The HTTP client and its
+ * connection pool are owned by the factory, shared by all the processors of the core
+ * and closed when the core is closed.
+ *
+ * The pool can be tuned with 'max_connections', 'max_connections_per_host',
+ * 'so_timeout' and 'connection_timeout' (in ms). Each call to the index-profile is bounded
+ * by 'deadline_ms' and guarded by a {@link FusionCircuitBreaker} (see the 'breaker_*' params).
+ *
+ * When 'max_in_flight' is greater than 1 the factory also owns the pool of threads making the
+ * pipelined calls, sized like the connection pool ('max_connections_per_host' threads).
+ *
+ * 'skip_cache' enables a {@link DocumentSkipCache}: 'heap' keeps up to 'skip_cache_size' entries on the heap,
+ * 'mmap' keeps them in a {@link MappedResultStore} at 'skip_cache_path' (relative to the data directory of the
+ * core) with 'skip_cache_size' index slots and 'skip_cache_data_bytes' bytes of data. Bump 'skip_cache_version'
+ * when the index-pipeline changes.
+ *
+ * The documents go to the Fusion index-profile named by 'index_profile' ('default'). Update requests can be routed
+ * to other configurations with the 'fusion.profile' param, see {@link FusionProfiles}: each profile has its own
+ * client, pool, deadline, skip cache (a mapped one at 'skip_cache_path' followed by '-' and the profile name) and
+ * limiter.
+ *
+ * 'adaptive_concurrency' bounds the concurrent calls of the profile with an {@link AdaptiveConcurrencyLimiter}, starting
+ * at 'concurrency_initial_limit' and kept between 'concurrency_min_limit' and 'concurrency_max_limit' (by default
+ * 'max_connections_per_host'); 'concurrency_latency_tolerance' and 'concurrency_backoff_ratio' tune it.
+ */
+public class FusionUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware, SolrInfoMBean {
+
+  public static final String MAX_CONNECTIONS_PARAM = "max_connections";
+  public static final String MAX_CONNECTIONS_PER_HOST_PARAM = "max_connections_per_host";
+  public static final String SKIP_CACHE_PARAM = "skip_cache";
+  public static final String SKIP_CACHE_SIZE_PARAM = "skip_cache_size";
+  public static final String SKIP_CACHE_DATA_BYTES_PARAM = "skip_cache_data_bytes";
+  public static final String SKIP_CACHE_PATH_PARAM = "skip_cache_path";
+  public static final String SKIP_CACHE_VERSION_PARAM = "skip_cache_version";
+  public static final String ADAPTIVE_CONCURRENCY_PARAM = "adaptive_concurrency";
+  public static final String CONCURRENCY_INITIAL_LIMIT_PARAM = "concurrency_initial_limit";
+  public static final String CONCURRENCY_MIN_LIMIT_PARAM = "concurrency_min_limit";
+  public static final String CONCURRENCY_MAX_LIMIT_PARAM = "concurrency_max_limit";
+  public static final String CONCURRENCY_LATENCY_TOLERANCE_PARAM = "concurrency_latency_tolerance";
+  public static final String CONCURRENCY_BACKOFF_RATIO_PARAM = "concurrency_backoff_ratio";
+
+  protected static Logger log = LoggerFactory.getLogger(FusionUpdateProcessorFactory.class);
+
+  private FusionProfiles<IndexProfile> profiles;
+  // where a relative mmap skip cache path lives, known once the core informs the factory
+  private volatile String dataDir;
+  // the heap skip cache stores by profile and size: a profile built again on reload keeps the entries of the old one
+  private final Map<String, SharedStore> heapStores = new HashMap<String, SharedStore>();
+  // the mapped skip cache stores by absolute path, for all the cores: a file is only ever opened once, a reloaded
+  // core or profile uses the store of the old one as long as it is open
+  private static final Map<String, SharedStore> mappedStores = new HashMap<String, SharedStore>();
+
+  private static final class SharedStore {
+    final DocumentSkipCache.Store store;
+    final int size;
+    final long dataBytes;
+    int users = 0;
+
+    SharedStore(DocumentSkipCache.Store store, int size, long dataBytes) {
+      this.store = store;
+      this.size = size;
+      this.dataBytes = dataBytes;
+    }
+  }
+
+  //default values:
+  String profilesFile = null;
+  long profilesReloadMs = 5000;
 
   @Override
   public void init(@SuppressWarnings("rawtypes") final NamedList args) {
-    if (args != null) {
-      this.params = SolrParams.toSolrParams(args);
+    SolrParams params = SolrParams.toSolrParams(args != null ? args : new NamedList());
+    profilesFile = params.get(FusionProfiles.PROFILES_FILE_PARAM, profilesFile);
+    profilesReloadMs = params.getLong(FusionProfiles.PROFILES_RELOAD_MS_PARAM, profilesReloadMs);
+    profiles = new FusionProfiles<IndexProfile>("index-pipeline", args, new FusionProfiles.Builder<IndexProfile>() {
+      public IndexProfile build(String name, SolrParams params) {
+        return new IndexProfile(name, params);
+      }
+    });
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    dataDir = core.getDataDir();
+    for (IndexProfile profile : profiles.getAll().values()) {
+      profile.openSkipCache();
     }
+    if (profilesFile != null) {
+      File file = new File(profilesFile);
+      if (!file.isAbsolute()) {
+        file = new File(core.getResourceLoader().getInstanceDir(), profilesFile);
+      }
+      profiles.watch(file, profilesReloadMs);
+    }
+    core.addCloseHook(new CloseHook() {
+      @Override
+      public void preClose(SolrCore core) {
+      }
+
+      @Override
+      public void postClose(SolrCore core) {
+        close();
+      }
+    });
   }
 
   @Override
   public UpdateRequestProcessor getInstance(SolrQueryRequest solrQueryRequest, SolrQueryResponse solrQueryResponse, UpdateRequestProcessor updateRequestProcessor) {
-    return new FusionUpdateProcessor(params, solrQueryRequest, solrQueryResponse, updateRequestProcessor);
+    FusionProfiles.Lease<IndexProfile> lease = profiles.select(solrQueryRequest.getParams());
+    IndexProfile profile = lease.get();
+    try {
+      return new FusionUpdateProcessor(profile.params, profile.fusionClient, profile.executor, profile.skipCache,
+        profile.limiter, lease, solrQueryRequest, solrQueryResponse, updateRequestProcessor);
+    } catch (RuntimeException e) {
+      lease.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Stop the pipelining threads and release the pooled connections to Fusion, of every profile.
+   */
+  public void close() {
+    if (profiles != null) {
+      profiles.close();
+    }
+  }
+
+  public FusionClient getFusionClient() {
+    return profiles.getDefault().fusionClient;
+  }
+
+  public DocumentSkipCache getSkipCache() {
+    return profiles.getDefault().skipCache;
+  }
+
+  public AdaptiveConcurrencyLimiter getLimiter() {
+    return profiles.getDefault().limiter;
+  }
+
+  FusionProfiles<IndexProfile> getProfiles() {
+    return profiles;
+  }
+
+  /**
+   * The configuration of a profile and the resources built from it: the client and its connection pool, the
+   * pipelining threads, the skip cache and the concurrency limiter. The configuration does not change once built.
+   */
+  class IndexProfile implements FusionProfiles.Profile {
+
+    final String name;
+    final SolrParams params;
+    final FusionClient fusionClient;
+    final ExecutorService executor;
+    final AdaptiveConcurrencyLimiter limiter;
+    final String skipCacheType;
+    final int skipCacheSize;
+    final long skipCacheDataBytes;
+    final String skipCachePath;
+    final String skipCacheVersion;
+    volatile DocumentSkipCache skipCache;
+    private String skipCacheKey;
+    private Map<String, SharedStore> skipCacheStores;
+
+    IndexProfile(String name, SolrParams params) {
+      this.name = name;
+      this.params = params;
+      int soTimeout = params.getInt(FusionClient.SO_TIMEOUT_PARAM, 30000);
+      int connectionTimeout = params.getInt(FusionClient.CONNECTION_TIMEOUT_PARAM, 2000);
+      long deadlineMs = params.getLong(FusionClient.DEADLINE_MS_PARAM, 60000);
+      int maxConnectionsPerHost = params.getInt(MAX_CONNECTIONS_PER_HOST_PARAM, 20);
+      int maxConnections = params.getInt(MAX_CONNECTIONS_PARAM, 10000);
+
+      skipCacheType = params.get(SKIP_CACHE_PARAM, "none");
+      skipCacheSize = params.getInt(SKIP_CACHE_SIZE_PARAM, 100000);
+      skipCacheDataBytes = params.getLong(SKIP_CACHE_DATA_BYTES_PARAM, 256L * 1024 * 1024);
+      // the output of another pipeline cannot be skipped to, each profile keeps its own file
+      String path = params.get(SKIP_CACHE_PATH_PARAM, "fusion-skip-cache");
+      skipCachePath = FusionProfiles.DEFAULT_PROFILE.equals(name) ? path : path + "-" + name;
+      skipCacheVersion = params.get(SKIP_CACHE_VERSION_PARAM, "1");
+      if (!"none".equals(skipCacheType) && !"heap".equals(skipCacheType) && !"mmap".equals(skipCacheType)) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "config '" + SKIP_CACHE_PARAM + "' must be one of none, heap or mmap");
+      }
+
+      AdaptiveConcurrencyLimiter concurrencyLimiter = null;
+      if (params.getBool(ADAPTIVE_CONCURRENCY_PARAM, false)) {
+        int concurrencyInitialLimit = params.getInt(CONCURRENCY_INITIAL_LIMIT_PARAM, 4);
+        int concurrencyMinLimit = params.getInt(CONCURRENCY_MIN_LIMIT_PARAM, 1);
+        int concurrencyMaxLimit = params.getInt(CONCURRENCY_MAX_LIMIT_PARAM, maxConnectionsPerHost);
+        double concurrencyLatencyTolerance = params.getDouble(CONCURRENCY_LATENCY_TOLERANCE_PARAM, 2.0);
+        double concurrencyBackoffRatio = params.getDouble(CONCURRENCY_BACKOFF_RATIO_PARAM, 0.9);
+        if (concurrencyLatencyTolerance < 1.0) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+            "config '" + CONCURRENCY_LATENCY_TOLERANCE_PARAM + "' must be at least 1.0");
+        }
+        if (concurrencyBackoffRatio <= 0.0 || concurrencyBackoffRatio >= 1.0) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+            "config '" + CONCURRENCY_BACKOFF_RATIO_PARAM + "' must be between 0.0 and 1.0");
+        }
+        concurrencyLimiter = new AdaptiveConcurrencyLimiter(concurrencyInitialLimit, concurrencyMinLimit,
+          concurrencyMaxLimit, concurrencyLatencyTolerance, concurrencyBackoffRatio);
+      }
+      limiter = concurrencyLimiter;
+
+      boolean leaderMode = FusionUpdateProcessor.DISTRIB_MODE_LEADER.equals(
+        params.get(FusionUpdateProcessor.DISTRIB_MODE_PARAM));
+      if (leaderMode && (params.getInt(FusionUpdateProcessor.BATCH_SIZE_PARAM, 1) > 1 ||
+        params.getInt(FusionUpdateProcessor.MAX_IN_FLIGHT_PARAM, 1) > 1)) {
+        log.warn("'" + FusionUpdateProcessor.BATCH_SIZE_PARAM + "' and '" + FusionUpdateProcessor.MAX_IN_FLIGHT_PARAM +
+          "' are ignored when '" + FusionUpdateProcessor.DISTRIB_MODE_PARAM + "' is 'leader', documents are sent one at a time");
+      }
+
+      FusionCircuitBreaker breaker = FusionCircuitBreaker.create("index-pipeline", params, 0);
+      HttpClient httpClient = FusionClient.createHttpClient(maxConnections, maxConnectionsPerHost, soTimeout, connectionTimeout);
+      this.fusionClient = new FusionClient(httpClient, breaker, deadlineMs,
+        FusionEndpoints.create("index-pipeline", params, params.get("fusion_base_url"), httpClient));
+
+      if (params.getInt(FusionUpdateProcessor.MAX_IN_FLIGHT_PARAM, 1) > 1 && !leaderMode) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConnectionsPerHost, maxConnectionsPerHost,
+          60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "fusion-index-pipeline-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+      } else {
+        executor = null;
+      }
+
+      try {
+        openSkipCache();
+      } catch (SolrException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * Open the skip cache, unless it is a mapped one at a relative path and the data directory is not known yet.
+     */
+    synchronized void openSkipCache() {
+      if (skipCache != null || "none".equals(skipCacheType)) {
+        return;
+      }
+      File path = null;
+      String key = name + ":" + skipCacheSize;
+      Map<String, SharedStore> stores = heapStores;
+      if ("mmap".equals(skipCacheType)) {
+        path = new File(skipCachePath);
+        if (!path.isAbsolute()) {
+          if (dataDir == null) {
+            return;
+          }
+          path = new File(dataDir, skipCachePath);
+        }
+        key = path.getAbsolutePath();
+        stores = mappedStores;
+      }
+
+      synchronized (stores) {
+        SharedStore shared = stores.get(key);
+        if (shared == null) {
+          DocumentSkipCache.Store store;
+          if (path == null) {
+            store = new DocumentSkipCache.HeapStore(skipCacheSize);
+          } else {
+            try {
+              store = new MappedResultStore(path, skipCacheSize, skipCacheDataBytes);
+            } catch (IOException e) {
+              throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                "Cannot open the Fusion skip cache at " + path, e);
+            }
+          }
+          shared = new SharedStore(store, skipCacheSize, skipCacheDataBytes);
+          stores.put(key, shared);
+        } else if (path != null && (shared.size != skipCacheSize || shared.dataBytes != skipCacheDataBytes)) {
+          // opening the file again would resize it under the mappings of the open store
+          log.warn("The Fusion skip cache " + path + " is in use with " + shared.size + " slots and " +
+            shared.dataBytes + " data bytes, the new sizes are used once it is closed");
+        }
+        shared.users++;
+        skipCacheKey = key;
+        skipCacheStores = stores;
+        // the version is the profile's own, entries of another version are not used
+        skipCache = new DocumentSkipCache(skipCacheVersion, shared.store);
+      }
+    }
+
+    public synchronized void close() {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      fusionClient.close();
+      if (skipCacheKey != null) {
+        synchronized (skipCacheStores) {
+          SharedStore shared = skipCacheStores.get(skipCacheKey);
+          if (--shared.users == 0) {
+            skipCacheStores.remove(skipCacheKey);
+            shared.store.close();
+          }
+        }
+        skipCacheKey = null;
+      }
+    }
+
+    NamedList<Object> getStatistics() {
+      NamedList<Object> stats = new NamedList<Object>();
+      stats.add("fusion", fusionClient.getStatistics());
+      if (executor instanceof ThreadPoolExecutor) {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        NamedList<Object> pipelining = new NamedList<Object>();
+        pipelining.add("activeThreads", pool.getActiveCount());
+        pipelining.add("queued", pool.getQueue().size());
+        pipelining.add("completed", pool.getCompletedTaskCount());
+        stats.add("pipelining", pipelining);
+      }
+      if (skipCache != null) {
+        stats.add("skipCache", skipCache.getStatistics());
+      }
+      if (limiter != null) {
+        stats.add("concurrency", limiter.getStatistics());
+      }
+      return stats;
+    }
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getName();
+  }
+
+  @Override
+  public String getVersion() {
+    return null;
+  }
+
+  @Override
+  public String getDescription() {
+    return "An update processor that sends documents through Fusion index-pipelines";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.UPDATEHANDLER;
+  }
+
+  @Override
+  public String getSource() {
+    return "https://github.com/LucidWorks/fusion-solr-plugins";
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> stats = profiles.getDefault().getStatistics();
+    Map<String, IndexProfile> all = profiles.getAll();
+    if (all.size() > 1) {
+      NamedList<Object> others = new NamedList<Object>();
+      for (Map.Entry<String, IndexProfile> profile : all.entrySet()) {
+        if (!FusionProfiles.DEFAULT_PROFILE.equals(profile.getKey())) {
+          others.add(profile.getKey(), profile.getValue().getStatistics());
+        }
+      }
+      stats.add("profiles", others);
+    }
+    return stats;
   }
 }
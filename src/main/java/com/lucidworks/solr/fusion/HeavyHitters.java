@@ -0,0 +1,158 @@
+package com.lucidworks.solr.fusion;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most frequent keys of a stream, with the Space-Saving algorithm: at most 'capacity' counters
+ * are kept, and a new key takes over the counter of the least frequent one. Every key more frequent
+ * than total / capacity is reported; a count over-estimates the true one by at most its 'error'.
+ *
+ * The counters are kept in a list of buckets of equal counts, lowest first (Stream-Summary), so that
+ * both counting a key and taking over the least frequent counter are constant time.
+ */
+public class HeavyHitters {
+
+  public static class Counter {
+    public final String key;
+    public long count;
+    public long error;
+    // the bucket of the counters with this count, and the neighbours in it
+    private Bucket bucket;
+    private Counter prev;
+    private Counter next;
+
+    Counter(String key, long count, long error) {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+  }
+
+  private static final class Bucket {
+    final long count;
+    Bucket prev;
+    Bucket next;
+    Counter first;
+
+    Bucket(long count) {
+      this.count = count;
+    }
+  }
+
+  private final int capacity;
+  private final Map<String, Counter> counters;
+  // the bucket of the lowest count, null while there are no counters
+  private Bucket min;
+
+  public HeavyHitters(int capacity) {
+    this.capacity = capacity;
+    this.counters = new HashMap<String, Counter>(capacity * 2);
+  }
+
+  public synchronized void add(String key) {
+    Counter counter = counters.get(key);
+    if (counter != null) {
+      Bucket to = bucketAfter(counter.bucket, counter.count + 1);
+      detach(counter);
+      counter.count++;
+      attach(counter, to);
+      return;
+    }
+    if (counters.size() < capacity) {
+      counter = new Counter(key, 1, 0);
+      attach(counter, bucketAfter(null, 1));
+      counters.put(key, counter);
+      return;
+    }
+    // any counter of the lowest count will do
+    Counter evicted = min.first;
+    Bucket to = bucketAfter(min, evicted.count + 1);
+    detach(evicted);
+    counters.remove(evicted.key);
+    counter = new Counter(key, evicted.count + 1, evicted.count);
+    attach(counter, to);
+    counters.put(key, counter);
+  }
+
+  /**
+   * The bucket of 'count' right after 'prev' (first if null), created if there is none.
+   */
+  private Bucket bucketAfter(Bucket prev, long count) {
+    Bucket next = prev == null ? min : prev.next;
+    if (next != null && next.count == count) {
+      return next;
+    }
+    Bucket bucket = new Bucket(count);
+    bucket.prev = prev;
+    bucket.next = next;
+    if (prev == null) {
+      min = bucket;
+    } else {
+      prev.next = bucket;
+    }
+    if (next != null) {
+      next.prev = bucket;
+    }
+    return bucket;
+  }
+
+  private static void attach(Counter counter, Bucket bucket) {
+    counter.bucket = bucket;
+    counter.prev = null;
+    counter.next = bucket.first;
+    if (bucket.first != null) {
+      bucket.first.prev = counter;
+    }
+    bucket.first = counter;
+  }
+
+  /**
+   * Take the counter out of its bucket, and the bucket out of the list once it is empty.
+   */
+  private void detach(Counter counter) {
+    Bucket bucket = counter.bucket;
+    if (counter.prev != null) {
+      counter.prev.next = counter.next;
+    } else {
+      bucket.first = counter.next;
+    }
+    if (counter.next != null) {
+      counter.next.prev = counter.prev;
+    }
+    counter.bucket = null;
+    counter.prev = null;
+    counter.next = null;
+    if (bucket.first == null) {
+      if (bucket.prev != null) {
+        bucket.prev.next = bucket.next;
+      } else {
+        min = bucket.next;
+      }
+      if (bucket.next != null) {
+        bucket.next.prev = bucket.prev;
+      }
+    }
+  }
+
+  /**
+   * The 'k' most frequent keys, most frequent first.
+   */
+  public synchronized List<Counter> top(int k) {
+    List<Counter> top = new ArrayList<Counter>(counters.size());
+    for (Counter counter : counters.values()) {
+      top.add(new Counter(counter.key, counter.count, counter.error));
+    }
+    Collections.sort(top, new Comparator<Counter>() {
+      public int compare(Counter a, Counter b) {
+        return a.count > b.count ? -1 : a.count < b.count ? 1 : a.key.compareTo(b.key);
+      }
+    });
+    return top.size() > k ? top.subList(0, k) : top;
+  }
+}
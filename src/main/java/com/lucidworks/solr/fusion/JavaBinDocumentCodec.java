@@ -0,0 +1,70 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Solr's binary JavaBin format ({@code application/javabin}). Falls back to JSON,
+ * then XML, when Fusion answers in another format.
+ */
+public class JavaBinDocumentCodec extends FusionDocumentCodec {
+
+  public static final String JAVABIN = "application/javabin";
+
+  @Override
+  public String getName() {
+    return FusionDocumentCodec.JAVABIN;
+  }
+
+  @Override
+  public String getContentType() {
+    return JAVABIN;
+  }
+
+  @Override
+  public String getAccept() {
+    return JAVABIN + ", " + JsonDocumentCodec.JSON + ";q=0.9, " + XmlDocumentCodec.SOLR_XML_DOCUMENT + ";q=0.8";
+  }
+
+  @Override
+  public void write(List<SolrInputDocument> docs, OutputStream out) throws IOException {
+    // JavaBinCodec is not thread-safe, but cheap to create
+    new JavaBinCodec().marshal(docs.size() == 1 ? docs.get(0) : docs, out);
+    out.flush();
+  }
+
+  @Override
+  public List<SolrInputDocument> read(InputStream in) throws IOException {
+    Object data = new JavaBinCodec().unmarshal(in);
+    List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+    if (data instanceof Collection) {
+      for (Object doc : (Collection) data) {
+        docs.add(toSolrInputDocument(doc));
+      }
+    } else {
+      docs.add(toSolrInputDocument(data));
+    }
+    return docs;
+  }
+
+  private static SolrInputDocument toSolrInputDocument(Object doc) throws IOException {
+    if (doc instanceof SolrInputDocument) {
+      return (SolrInputDocument) doc;
+    }
+    if (doc instanceof SolrDocument) {
+      return ClientUtils.toSolrInputDocument((SolrDocument) doc);
+    }
+    throw new IOException("Expected a document in the Fusion response but got " +
+      (doc == null ? null : doc.getClass().getName()));
+  }
+}
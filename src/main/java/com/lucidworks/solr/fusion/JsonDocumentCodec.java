@@ -0,0 +1,163 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.DateUtil;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Solr's JSON document format ({@code application/json}): a document is an object of fields,
+ * multi-valued fields are arrays, dates are ISO-8601 strings and child documents go under
+ * '_childDocuments_'. Falls back to XML when Fusion answers in another format.
+ */
+public class JsonDocumentCodec extends FusionDocumentCodec {
+
+  public static final String JSON = "application/json";
+
+  static final String CHILD_DOCUMENTS = "_childDocuments_";
+
+  // thread-safe once configured, shared by all the reads and writes
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  @Override
+  public String getName() {
+    return FusionDocumentCodec.JSON;
+  }
+
+  @Override
+  public String getContentType() {
+    return JSON;
+  }
+
+  @Override
+  public String getAccept() {
+    return JSON + ", " + XmlDocumentCodec.SOLR_XML_DOCUMENT + ";q=0.8";
+  }
+
+  @Override
+  public void write(List<SolrInputDocument> docs, OutputStream out) throws IOException {
+    JsonGenerator generator = objectMapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+    // leave closing the stream to the caller
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    if (docs.size() == 1) {
+      writeDoc(generator, docs.get(0));
+    } else {
+      generator.writeStartArray();
+      for (SolrInputDocument doc : docs) {
+        writeDoc(generator, doc);
+      }
+      generator.writeEndArray();
+    }
+    generator.close();
+  }
+
+  private static void writeDoc(JsonGenerator generator, SolrInputDocument doc) throws IOException {
+    generator.writeStartObject();
+    for (SolrInputField field : doc) {
+      generator.writeFieldName(field.getName());
+      if (field.getValueCount() > 1) {
+        generator.writeStartArray();
+        for (Object value : field.getValues()) {
+          writeValue(generator, value);
+        }
+        generator.writeEndArray();
+      } else {
+        writeValue(generator, field.getValue());
+      }
+    }
+    if (doc.hasChildDocuments()) {
+      generator.writeFieldName(CHILD_DOCUMENTS);
+      generator.writeStartArray();
+      for (SolrInputDocument child : doc.getChildDocuments()) {
+        writeDoc(generator, child);
+      }
+      generator.writeEndArray();
+    }
+    generator.writeEndObject();
+  }
+
+  private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+    if (value instanceof Date) {
+      generator.writeString(DateUtil.getThreadLocalDateFormat().format((Date) value));
+    } else if (value instanceof byte[]) {
+      generator.writeBinary((byte[]) value);
+    } else {
+      // strings, numbers, booleans and the maps of atomic updates
+      objectMapper.writeValue(generator, value);
+    }
+  }
+
+  @Override
+  public List<SolrInputDocument> read(InputStream in) throws IOException {
+    JsonParser parser = objectMapper.getJsonFactory().createJsonParser(in);
+    try {
+      List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_ARRAY) {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          docs.add(readDoc(parser));
+        }
+      } else if (token == JsonToken.START_OBJECT) {
+        docs.add(readDoc(parser));
+      } else {
+        throw new JsonParseException("Expected a document or a list of documents in the Fusion response but got " +
+          token, parser.getCurrentLocation());
+      }
+      return docs;
+    } finally {
+      parser.close();
+    }
+  }
+
+  private static SolrInputDocument readDoc(JsonParser parser) throws IOException {
+    SolrInputDocument doc = new SolrInputDocument();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (CHILD_DOCUMENTS.equals(name) && token == JsonToken.START_ARRAY) {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          doc.addChildDocument(readDoc(parser));
+        }
+      } else if (token == JsonToken.START_ARRAY) {
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          doc.addField(name, readValue(parser));
+        }
+      } else {
+        doc.addField(name, readValue(parser));
+      }
+    }
+    return doc;
+  }
+
+  private static Object readValue(JsonParser parser) throws IOException {
+    switch (parser.getCurrentToken()) {
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return parser.getNumberValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        // atomic update maps and anything else nested
+        return objectMapper.readValue(parser, Object.class);
+    }
+  }
+}
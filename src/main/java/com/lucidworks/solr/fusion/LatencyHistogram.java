@@ -0,0 +1,112 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.util.NamedList;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with exponentially sized buckets, from 10us to about 2 minutes,
+ * each bucket 20% wider than the previous one. Recording is a binary search and an atomic increment;
+ * the reported percentiles are the upper bound of their bucket, so they over-estimate by at most 20%.
+ *
+ * The counts are cumulative since the histogram was created, like the rest of the Solr statistics.
+ */
+public class LatencyHistogram {
+
+  // the upper bound of each bucket, in microseconds
+  private static final long[] BOUNDS;
+
+  static {
+    long[] bounds = new long[128];
+    int n = 0;
+    double bound = 10;
+    while (bound < TimeUnit.MINUTES.toMicros(2)) {
+      bounds[n++] = (long) Math.ceil(bound);
+      bound *= 1.2;
+    }
+    BOUNDS = new long[n];
+    System.arraycopy(bounds, 0, BOUNDS, 0, n);
+  }
+
+  // one more bucket for everything above the last bound
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void record(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+    counts.incrementAndGet(bucket(micros));
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long max = maxMicros.get();
+    while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+      max = maxMicros.get();
+    }
+  }
+
+  private static int bucket(long micros) {
+    int low = 0;
+    int high = BOUNDS.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (BOUNDS[mid] < micros) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * The latency under which 'percentile' (0 to 100) of the recorded calls completed, in ms.
+   */
+  public double getPercentile(double percentile) {
+    long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        long micros = i < BOUNDS.length ? BOUNDS[i] : maxMicros.get();
+        // the bucket bound can be above the slowest call recorded
+        return Math.min(micros, maxMicros.get()) / 1000.0;
+      }
+    }
+    return maxMicros.get() / 1000.0;
+  }
+
+  public double getMean() {
+    long total = count.get();
+    return total == 0 ? 0 : totalMicros.get() / 1000.0 / total;
+  }
+
+  public double getMax() {
+    return maxMicros.get() / 1000.0;
+  }
+
+  /**
+   * The count, mean, p50, p95, p99 and max; the latencies are in ms.
+   */
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("count", getCount());
+    stats.add("meanMs", getMean());
+    stats.add("p50Ms", getPercentile(50));
+    stats.add("p95Ms", getPercentile(95));
+    stats.add("p99Ms", getPercentile(99));
+    stats.add("maxMs", getMax());
+    return stats;
+  }
+}
@@ -0,0 +1,89 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A read-only view of the request params with the changes of a query-pipeline on top, without copying
+ * either: the 'removed' params are taken out of the 'base' params, the 'replaced' ones take the place of
+ * theirs, and the values of the 'added' ones come after theirs.
+ */
+public class LayeredSolrParams extends SolrParams {
+
+  private final SolrParams base;
+  private final SolrParams replaced;
+  private final SolrParams added;
+  private final Set<String> removed;
+
+  /**
+   * @param replaced may be null
+   * @param added may be null
+   * @param removed may be null
+   */
+  public LayeredSolrParams(SolrParams base, SolrParams replaced, SolrParams added, Set<String> removed) {
+    this.base = base;
+    this.replaced = replaced;
+    this.added = added;
+    this.removed = removed != null ? removed : Collections.<String>emptySet();
+  }
+
+  private String[] lower(String param) {
+    String[] values = replaced != null ? replaced.getParams(param) : null;
+    if (values == null && !removed.contains(param)) {
+      values = base.getParams(param);
+    }
+    return values;
+  }
+
+  @Override
+  public String get(String param) {
+    String[] values = lower(param);
+    if (values != null && values.length > 0) {
+      return values[0];
+    }
+    return added != null ? added.get(param) : null;
+  }
+
+  @Override
+  public String[] getParams(String param) {
+    String[] values = lower(param);
+    String[] more = added != null ? added.getParams(param) : null;
+    if (more == null) {
+      return values;
+    }
+    if (values == null) {
+      return more;
+    }
+    String[] all = new String[values.length + more.length];
+    System.arraycopy(values, 0, all, 0, values.length);
+    System.arraycopy(more, 0, all, values.length, more.length);
+    return all;
+  }
+
+  @Override
+  public Iterator<String> getParameterNamesIterator() {
+    Set<String> names = new LinkedHashSet<String>();
+    for (Iterator<String> it = base.getParameterNamesIterator(); it.hasNext(); ) {
+      String name = it.next();
+      if (!removed.contains(name)) {
+        names.add(name);
+      }
+    }
+    if (replaced != null) {
+      for (Iterator<String> it = replaced.getParameterNamesIterator(); it.hasNext(); ) {
+        names.add(it.next());
+      }
+    }
+    if (added != null) {
+      for (Iterator<String> it = added.getParameterNamesIterator(); it.hasNext(); ) {
+        names.add(it.next());
+      }
+    }
+    return Collections.unmodifiableSet(names).iterator();
+  }
+}
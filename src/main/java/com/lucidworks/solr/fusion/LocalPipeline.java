@@ -0,0 +1,258 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class {@code LocalPipeline} runs a query-pipeline in-process, from a {@link PipelineSnapshot} of its
+ * definition downloaded again every 'refreshMs'. Until the first snapshot is loaded, or while the pipeline
+ * has stages that cannot run here, {@link #execute} returns null and the queries go to Fusion.
+ *
+ * A 'verifyRate' sample of the local runs are sent to Fusion as well, from a background thread, and the
+ * params written by the local stages are compared with Fusion's. On a difference the snapshot is not used
+ * any more: the queries go to Fusion until the definition of the pipeline changes.
+ */
+public class LocalPipeline {
+
+  protected static Logger log = LoggerFactory.getLogger(LocalPipeline.class);
+
+  /**
+   * Downloads the definition of the pipeline.
+   */
+  public interface Source {
+    byte[] load() throws IOException;
+  }
+
+  /**
+   * Runs the pipeline in Fusion, returning the request params with its result applied, or null if
+   * Fusion did not answer.
+   */
+  public interface Verifier {
+    SolrParams verify(SolrParams params);
+  }
+
+  private final String pipeline;
+  private final Source source;
+  private final Verifier verifier;
+  private final double verifyRate;
+  private final Random random = new Random();
+  private final ScheduledThreadPoolExecutor timer;
+  // one sampled query is checked at a time and one more can wait, the others are not checked
+  private final ThreadPoolExecutor verifyExecutor;
+
+  private volatile PipelineSnapshot snapshot;
+  // the snapshot that differed from Fusion, not used any more
+  private volatile PipelineSnapshot diverged;
+
+  private final AtomicLong executed = new AtomicLong();
+  private final AtomicLong verified = new AtomicLong();
+  private final AtomicLong mismatches = new AtomicLong();
+  private final AtomicLong verifySkipped = new AtomicLong();
+  private final AtomicLong verifyFailures = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+  private final AtomicLong refreshFailures = new AtomicLong();
+
+  public LocalPipeline(final String pipeline, Source source, Verifier verifier, double verifyRate) {
+    this.pipeline = pipeline;
+    this.source = source;
+    this.verifier = verifier;
+    this.verifyRate = verifyRate;
+    ThreadFactory threadFactory = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "fusion-local-pipeline-" + pipeline);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+    verifyExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1), threadFactory);
+    verifyExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Download the definition now, and again every 'refreshMs' (not if 0), in the background.
+   */
+  public void start(long refreshMs) {
+    if (refreshMs > 0) {
+      timer.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          refresh();
+        }
+      }, 0, refreshMs, TimeUnit.MILLISECONDS);
+    } else {
+      timer.execute(new Runnable() {
+        public void run() {
+          refresh();
+        }
+      });
+    }
+  }
+
+  /**
+   * Download the definition and use it if it changed. Returns false if the current snapshot was kept
+   * because the definition could not be downloaded or read.
+   */
+  boolean refresh() {
+    PipelineSnapshot next;
+    try {
+      next = PipelineSnapshot.parse(source.load());
+    } catch (Exception e) {
+      refreshFailures.incrementAndGet();
+      PipelineSnapshot current = snapshot;
+      log.warn("Cannot load the definition of the query-pipeline '" + pipeline + "', keeping " +
+        (current != null ? "version " + current.getVersion() : "it in Fusion") + ": " + e);
+      return false;
+    }
+    refreshes.incrementAndGet();
+    PipelineSnapshot current = snapshot;
+    if (current == null || !current.getVersion().equals(next.getVersion())) {
+      snapshot = next;
+      if (next.isLocal()) {
+        log.info("Running version " + next.getVersion() + " of the query-pipeline '" + pipeline + "' locally, " +
+          next.getStageCount() + " stages");
+      } else {
+        log.info("Version " + next.getVersion() + " of the query-pipeline '" + pipeline + "' runs in Fusion: " +
+          next.getNotLocalReason());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Run the pipeline over the params. Returns null if it cannot run here; the result is a delta, see
+   * {@link PipelineSnapshot#execute}.
+   */
+  public FusionPipelineResult execute(SolrParams params) {
+    PipelineSnapshot current = snapshot;
+    if (current == null || !current.isLocal() || current == diverged) {
+      return null;
+    }
+    FusionPipelineResult result = current.execute(params);
+    executed.incrementAndGet();
+    if (verifyRate > 0 && random.nextDouble() < verifyRate) {
+      // the request params may change once the query goes on
+      verify(current, new ModifiableSolrParams(params), result);
+    }
+    return result;
+  }
+
+  private void verify(final PipelineSnapshot current, final SolrParams params, final FusionPipelineResult result) {
+    try {
+      verifyExecutor.execute(new Runnable() {
+        public void run() {
+          SolrParams fusionParams = verifier.verify(params);
+          if (fusionParams == null) {
+            verifyFailures.incrementAndGet();
+            return;
+          }
+          String difference = compare(params, result, fusionParams);
+          if (difference != null) {
+            mismatches.incrementAndGet();
+            if (diverged != current) {
+              diverged = current;
+              log.warn("Version " + current.getVersion() + " of the query-pipeline '" + pipeline + "' differs from " +
+                "Fusion on " + difference + ", sending the queries to Fusion until the pipeline changes");
+            }
+          }
+          verified.incrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      verifySkipped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Compare the params written by the local run with the ones Fusion returned, the order of the values
+   * aside. Returns the first param that differs, null if none does.
+   */
+  static String compare(SolrParams params, FusionPipelineResult result, SolrParams fusionParams) {
+    SolrParams localParams = new LayeredSolrParams(params, result.getQueryParams(), result.getAddParams(),
+      result.getRemoveParams());
+    Set<String> names = new TreeSet<String>(result.getRemoveParams());
+    names.addAll(names(result.getQueryParams()));
+    names.addAll(names(result.getAddParams()));
+    for (String name : names) {
+      String[] local = sorted(localParams.getParams(name));
+      String[] fusion = sorted(fusionParams.getParams(name));
+      if (!Arrays.equals(local, fusion)) {
+        return "'" + name + "': " + Arrays.toString(local) + " locally, " + Arrays.toString(fusion) + " in Fusion";
+      }
+    }
+    return null;
+  }
+
+  private static Set<String> names(SolrParams params) {
+    Set<String> names = new TreeSet<String>();
+    if (params != null) {
+      for (Iterator<String> it = params.getParameterNamesIterator(); it.hasNext(); ) {
+        names.add(it.next());
+      }
+    }
+    return names;
+  }
+
+  private static String[] sorted(String[] values) {
+    if (values == null) {
+      return null;
+    }
+    String[] copy = values.clone();
+    Arrays.sort(copy);
+    return copy;
+  }
+
+  public PipelineSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Whether the queries run locally rather than in Fusion.
+   */
+  public boolean isActive() {
+    PipelineSnapshot current = snapshot;
+    return current != null && current.isLocal() && current != diverged;
+  }
+
+  public NamedList<Object> getStatistics() {
+    PipelineSnapshot current = snapshot;
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("pipeline", pipeline);
+    stats.add("version", current != null ? current.getVersion() : null);
+    stats.add("active", isActive());
+    if (current != null && !current.isLocal()) {
+      stats.add("notLocal", current.getNotLocalReason());
+    }
+    stats.add("diverged", current != null && current == diverged);
+    stats.add("executed", executed.get());
+    stats.add("verified", verified.get());
+    stats.add("mismatches", mismatches.get());
+    stats.add("verifySkipped", verifySkipped.get());
+    stats.add("verifyFailures", verifyFailures.get());
+    stats.add("refreshes", refreshes.get());
+    stats.add("refreshFailures", refreshFailures.get());
+    return stats;
+  }
+
+  public void close() {
+    timer.shutdownNow();
+    verifyExecutor.shutdownNow();
+  }
+}
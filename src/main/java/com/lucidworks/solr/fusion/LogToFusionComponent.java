@@ -1,58 +1,114 @@
 package com.lucidworks.solr.fusion;
 
 
-import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.util.EntityUtils;
-import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.common.SolrException;
-import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-
-public class LogToFusionComponent extends SearchComponent{
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class {@code LogToFusionComponent} is a SearchComponent that logs every top-level query
+ * to the Fusion searchLogs of the collection.
+ *
+ * The request thread only builds the search event and enqueues it; a {@link SearchLogShipper}
+ * POSTs the events to Fusion in batches from background threads. The queue can be tuned with
+ * 'log_queue_capacity', 'log_overflow_policy' (drop_oldest, drop_newest or sample),
+ * 'log_overflow_sample_rate', 'log_batch_size', 'log_workers' and 'log_poll_interval_ms'.
+ *
+ * Each POST is bounded by 'deadline_ms' and guarded by a {@link FusionCircuitBreaker}
+ * (see the 'breaker_*' params); batches are dropped without calling Fusion while it is open.
+ *
+ * With 'log_spool_dir', the batches Fusion did not accept are kept in a {@link SearchLogSpool} instead
+ * (at most 'log_spool_max_bytes' on disk, in segments of 'log_spool_segment_bytes'), and replayed at
+ * 'log_spool_replay_rate' events per second once Fusion recovers, retrying every 'log_spool_retry_ms'.
+ * A relative directory is resolved against the data directory of the core.
+ *
+ * With 'log_mode' set to 'aggregate', the events are rolled up by a {@link SearchLogAggregator} over
+ * windows of 'log_aggregate_window_ms', and only a summary per window is shipped, plus a sample of
+ * 'log_raw_sample_rate' of the raw events.
+ */
+public class LogToFusionComponent extends SearchComponent implements SolrCoreAware {
 
   protected static Logger log = LoggerFactory.getLogger(LogToFusionComponent.class);
   public static final String IS_FUSION_QUERY_PARAM = "isFusionQuery";
 
+  public static final String LOG_QUEUE_CAPACITY_PARAM = "log_queue_capacity";
+  public static final String LOG_OVERFLOW_POLICY_PARAM = "log_overflow_policy";
+  public static final String LOG_OVERFLOW_SAMPLE_RATE_PARAM = "log_overflow_sample_rate";
+  public static final String LOG_BATCH_SIZE_PARAM = "log_batch_size";
+  public static final String LOG_WORKERS_PARAM = "log_workers";
+  public static final String LOG_POLL_INTERVAL_MS_PARAM = "log_poll_interval_ms";
+  public static final String LOG_SPOOL_DIR_PARAM = "log_spool_dir";
+  public static final String LOG_SPOOL_SEGMENT_BYTES_PARAM = "log_spool_segment_bytes";
+  public static final String LOG_SPOOL_MAX_BYTES_PARAM = "log_spool_max_bytes";
+  public static final String LOG_SPOOL_REPLAY_RATE_PARAM = "log_spool_replay_rate";
+  public static final String LOG_SPOOL_RETRY_MS_PARAM = "log_spool_retry_ms";
+  public static final String LOG_MODE_PARAM = "log_mode";
+  public static final String LOG_AGGREGATE_WINDOW_MS_PARAM = "log_aggregate_window_ms";
+  public static final String LOG_AGGREGATE_TOP_K_PARAM = "log_aggregate_top_k";
+  public static final String LOG_AGGREGATE_SKETCH_DEPTH_PARAM = "log_aggregate_sketch_depth";
+  public static final String LOG_AGGREGATE_SKETCH_WIDTH_PARAM = "log_aggregate_sketch_width";
+  public static final String LOG_RAW_SAMPLE_RATE_PARAM = "log_raw_sample_rate";
+
   private static ObjectMapper objectMapper;
+  private SearchLogShipper shipper;
+  private SearchLogSpool spool;
+  private SearchLogReplayer replayer;
+  private SearchLogAggregator aggregator;
+  private long rawSampleEvery;
+  private final AtomicLong rawSampleCounter = new AtomicLong();
   private NamedList initParams;
-  private HttpClient httpClient;
+  private FusionClient fusionClient;
   private String fusionBaseUrl;
   private String collectionName;
 
   //default values:
-  int soTimeout = 0;
-  int connectionTimeout = 0;
+  int soTimeout = 10000;
+  int connectionTimeout = 2000;
   int maxConnectionsPerHost = 20;
+  long deadlineMs = 10000;
+  int logQueueCapacity = 10000;
+  String logOverflowPolicy = "drop_oldest";
+  double logOverflowSampleRate = 0.1;
+  int logBatchSize = 100;
+  int logWorkers = 1;
+  long logPollIntervalMs = 100;
+  String logSpoolDir = null;
+  int logSpoolSegmentBytes = 16 * 1024 * 1024;
+  long logSpoolMaxBytes = 256L * 1024 * 1024;
+  double logSpoolReplayRate = 500;
+  long logSpoolRetryMs = 5000;
+  String logMode = "raw";
+  long logAggregateWindowMs = 60000;
+  int logAggregateTopK = 20;
+  int logAggregateSketchDepth = 4;
+  int logAggregateSketchWidth = 2048;
+  double logRawSampleRate = 0.0;
 
   @Override
   public void init(NamedList args) {
     // Object mapper and client for querying Fusion and parsing the JSON response
     objectMapper = new ObjectMapper();
-    ModifiableSolrParams clientParams = new ModifiableSolrParams();
-    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
-    clientParams.set(HttpClientUtil.PROP_MAX_CONNECTIONS, 10000);
-    clientParams.set(HttpClientUtil.PROP_SO_TIMEOUT, soTimeout);
-    clientParams.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectionTimeout);
-    clientParams.set(HttpClientUtil.PROP_USE_RETRY, false);
-    this.httpClient = HttpClientUtil.createClient(clientParams);
     this.initParams = args;
+    SolrParams params = SolrParams.toSolrParams(args != null ? args : new NamedList());
 
     if (args != null) {
       if (args.get("fusion_base_url") != null) {
@@ -61,6 +117,26 @@ public class LogToFusionComponent extends SearchComponent{
       if (args.get("collection_name") != null) {
         collectionName = String.valueOf(args.get("collection_name"));
       }
+      soTimeout = params.getInt(FusionClient.SO_TIMEOUT_PARAM, soTimeout);
+      connectionTimeout = params.getInt(FusionClient.CONNECTION_TIMEOUT_PARAM, connectionTimeout);
+      deadlineMs = params.getLong(FusionClient.DEADLINE_MS_PARAM, deadlineMs);
+      logQueueCapacity = params.getInt(LOG_QUEUE_CAPACITY_PARAM, logQueueCapacity);
+      logOverflowPolicy = params.get(LOG_OVERFLOW_POLICY_PARAM, logOverflowPolicy);
+      logOverflowSampleRate = params.getDouble(LOG_OVERFLOW_SAMPLE_RATE_PARAM, logOverflowSampleRate);
+      logBatchSize = params.getInt(LOG_BATCH_SIZE_PARAM, logBatchSize);
+      logWorkers = params.getInt(LOG_WORKERS_PARAM, logWorkers);
+      logPollIntervalMs = params.getLong(LOG_POLL_INTERVAL_MS_PARAM, logPollIntervalMs);
+      logSpoolDir = params.get(LOG_SPOOL_DIR_PARAM, logSpoolDir);
+      logSpoolSegmentBytes = params.getInt(LOG_SPOOL_SEGMENT_BYTES_PARAM, logSpoolSegmentBytes);
+      logSpoolMaxBytes = params.getLong(LOG_SPOOL_MAX_BYTES_PARAM, logSpoolMaxBytes);
+      logSpoolReplayRate = params.getDouble(LOG_SPOOL_REPLAY_RATE_PARAM, logSpoolReplayRate);
+      logSpoolRetryMs = params.getLong(LOG_SPOOL_RETRY_MS_PARAM, logSpoolRetryMs);
+      logMode = params.get(LOG_MODE_PARAM, logMode);
+      logAggregateWindowMs = params.getLong(LOG_AGGREGATE_WINDOW_MS_PARAM, logAggregateWindowMs);
+      logAggregateTopK = params.getInt(LOG_AGGREGATE_TOP_K_PARAM, logAggregateTopK);
+      logAggregateSketchDepth = params.getInt(LOG_AGGREGATE_SKETCH_DEPTH_PARAM, logAggregateSketchDepth);
+      logAggregateSketchWidth = params.getInt(LOG_AGGREGATE_SKETCH_WIDTH_PARAM, logAggregateSketchWidth);
+      logRawSampleRate = params.getDouble(LOG_RAW_SAMPLE_RATE_PARAM, logRawSampleRate);
     }
 
     if (fusionBaseUrl == null) {
@@ -72,6 +148,69 @@ public class LogToFusionComponent extends SearchComponent{
       throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
         "config \'collection_name\' is missing from search component configuration");
     }
+
+    SearchLogShipper.OverflowPolicy overflowPolicy;
+    try {
+      overflowPolicy = SearchLogShipper.OverflowPolicy.get(logOverflowPolicy);
+    } catch (IllegalArgumentException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+        "config \'" + LOG_OVERFLOW_POLICY_PARAM + "\' must be one of drop_oldest, drop_newest or sample");
+    }
+    if (!"raw".equals(logMode) && !"aggregate".equals(logMode)) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+        "config \'" + LOG_MODE_PARAM + "\' must be one of raw or aggregate");
+    }
+    FusionCircuitBreaker breaker = FusionCircuitBreaker.create("searchlogs", params, 0);
+    HttpClient httpClient = FusionClient.createHttpClient(10000, maxConnectionsPerHost, soTimeout, connectionTimeout);
+    fusionClient = new FusionClient(httpClient, breaker, deadlineMs,
+      FusionEndpoints.create("searchlogs", params, fusionBaseUrl, httpClient));
+    shipper = new SearchLogShipper(fusionClient, objectMapper, logQueueCapacity, overflowPolicy,
+      logOverflowSampleRate, logBatchSize, logWorkers, logPollIntervalMs);
+    if ("aggregate".equals(logMode)) {
+      aggregator = new SearchLogAggregator(shipper, logAggregateWindowMs, logAggregateTopK,
+        logAggregateSketchDepth, logAggregateSketchWidth);
+      rawSampleEvery = logRawSampleRate > 0 ? Math.max(1, Math.round(1.0 / logRawSampleRate)) : Long.MAX_VALUE;
+    }
+    // a relative directory needs the data directory of the core, it is opened in inform()
+    if (logSpoolDir != null && new File(logSpoolDir).isAbsolute()) {
+      openSpool(new File(logSpoolDir));
+    }
+  }
+
+  private void openSpool(File dir) {
+    try {
+      spool = new SearchLogSpool(dir, logSpoolSegmentBytes, logSpoolMaxBytes);
+    } catch (IOException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+        "Cannot open the search log spool at " + dir, e);
+    }
+    shipper.setSpool(spool);
+    replayer = new SearchLogReplayer(fusionClient, spool, logSpoolReplayRate, logSpoolRetryMs, logPollIntervalMs);
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    if (logSpoolDir != null && spool == null) {
+      openSpool(new File(core.getDataDir(), logSpoolDir));
+    }
+    core.addCloseHook(new CloseHook() {
+      @Override
+      public void preClose(SolrCore core) {
+        if (aggregator != null) {
+          aggregator.close();
+        }
+        shipper.close(5000);
+        if (replayer != null) {
+          replayer.close(5000);
+          spool.close();
+        }
+      }
+
+      @Override
+      public void postClose(SolrCore core) {
+        fusionClient.close();
+      }
+    });
   }
 
   @Override
@@ -85,7 +224,7 @@ public class LogToFusionComponent extends SearchComponent{
     Boolean isFusionQuery = rb.req.getParams().getBool(IS_FUSION_QUERY_PARAM);
     if (isFusionQuery != null) {
       if (isFusionQuery) {
-        log.info("Skipping the logging to Fusion as this is a Fusion query");
+        log.debug("Skipping the logging to Fusion as this is a Fusion query");
         return;
       }
     }
@@ -101,12 +240,40 @@ public class LogToFusionComponent extends SearchComponent{
 
   @Override
   public String getDescription() {
-    return null;
+    return "A search component that logs the top-level queries to the Fusion searchLogs";
   }
 
   @Override
   public String getSource() {
-    return null;
+    return "https://github.com/LucidWorks/fusion-solr-plugins";
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("fusion", fusionClient.getStatistics());
+    NamedList<Object> queue = new NamedList<Object>();
+    queue.add("size", shipper.getQueueSize());
+    queue.add("capacity", logQueueCapacity);
+    queue.add("enqueued", shipper.getEnqueued());
+    queue.add("dropped", shipper.getDropped());
+    queue.add("sent", shipper.getSent());
+    queue.add("failed", shipper.getFailed());
+    stats.add("searchLogQueue", queue);
+    if (aggregator != null) {
+      NamedList<Object> aggregation = new NamedList<Object>();
+      aggregation.add("windowMs", logAggregateWindowMs);
+      aggregation.add("aggregated", aggregator.getAggregated());
+      aggregation.add("summaries", aggregator.getSummaries());
+      stats.add("searchLogAggregation", aggregation);
+    }
+    if (spool != null) {
+      NamedList<Object> spoolStats = spool.getStatistics();
+      spoolStats.add("replayFailures", replayer.getFailures());
+      spoolStats.add("replayRejected", replayer.getRejected());
+      stats.add("searchLogSpool", spoolStats);
+    }
+    return stats;
   }
 
   @Override
@@ -123,7 +290,7 @@ public class LogToFusionComponent extends SearchComponent{
     Boolean isFusionQuery = params.getBool(IS_FUSION_QUERY_PARAM);
     if (isFusionQuery != null) {
       if (isFusionQuery) {
-        log.info("Skipping the logging to Fusion as this a Fusion query");
+        log.debug("Skipping the logging to Fusion as this a Fusion query");
         return;
       }
     }
@@ -163,55 +330,31 @@ public class LogToFusionComponent extends SearchComponent{
     SolrQueryRequest req = rb.req;
 
     // Allow over-writes via query-param
-    if (rb.req.getParams().get("fusion_base_url") != null) {
-      fusionBaseUrl = rb.req.getParams().get("fusion_base_url");
-    }
+    String baseUrl = req.getParams().get("fusion_base_url", fusionBaseUrl);
+    String fusionUrl = baseUrl + "/searchLogs/" + collectionName + "/searchlog";
+
+    long numFound = isDistrib ? getNumDocsDistrib(rb) : getNumDocsNonDistrib(rb);
+    long qtime = getQTime(rb);
 
-    String fusionUrl = fusionBaseUrl + "/searchLogs/" + collectionName + "/searchlog";
+    if (aggregator != null) {
+      aggregator.record(fusionUrl, req.getParams().get(CommonParams.Q), numFound, qtime);
+      if (rawSampleCounter.incrementAndGet() % rawSampleEvery != 0) {
+        return;
+      }
+    }
 
     // create the searchEvent
     Map<String, Object> searchEvent = new HashMap<String, Object>();
-    if (isDistrib) {
-      searchEvent.put("numFound", getNumDocsDistrib(rb));
-    } else {
-      searchEvent.put("numFound", getNumDocsNonDistrib(rb));
-    }
-    searchEvent.put("QTime", getQTime(rb));
+    searchEvent.put("numFound", numFound);
+    searchEvent.put("QTime", qtime);
     searchEvent.put("queryParams", toMultiMap(req.getParams()));
-
-
-    HttpPost httpPost = new HttpPost(fusionUrl);
-    String searchEventAsString = null;
-
-    try {
-      searchEventAsString = objectMapper.writeValueAsString(searchEvent);
-    } catch (IOException e) {
-      log.warn("IOException while converting search event to a string", e);
+    if (aggregator != null) {
+      searchEvent.put("sampleRate", logRawSampleRate);
     }
 
-    try {
-      if (searchEventAsString != null) {
-        httpPost.setEntity(new StringEntity(searchEventAsString));
-        log.info("The search event is " + searchEventAsString);
-      } else {
-        log.warn("The search event is null. Skipping logging.");
-        return;
-      }
-    } catch (UnsupportedEncodingException e) {
-      log.error("Error while creating the entity" + searchEventAsString);
-    }
-
-    httpPost.setHeader("Content-type", "application/json");
-    try {
-      log.debug("Executing query " + httpPost.toString() + " with entity " + searchEventAsString);
-      HttpResponse response = httpClient.execute(httpPost);
-      if (response.getStatusLine().getStatusCode() > 300) {
-        log.warn("unsuccessful request with a status code of " + response.getStatusLine().getStatusCode() + " to"
-          + fusionUrl + " with entity " + searchEventAsString + " failed with response " +
-          EntityUtils.toString(response.getEntity()));
-      }
-    }  catch (Exception e) {
-      log.warn("Exception when indexing search log event to Fusion at url " + fusionUrl, e);
+    // serialization and the POST to Fusion happen on the shipper threads
+    if (!shipper.offer(fusionUrl, searchEvent)) {
+      log.debug("The search log queue is full. Dropped a search event for " + fusionUrl);
     }
   }
 
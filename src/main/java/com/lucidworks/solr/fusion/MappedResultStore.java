@@ -0,0 +1,291 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link DocumentSkipCache.Store} kept in a memory-mapped file, so that millions of entries
+ * neither sit on the Java heap nor are lost when the core is reloaded.
+ *
+ * The file holds a header, a hash index of fixed size slots and a data region used as a ring:
+ * records are appended at the write position and, once the region is full, overwrite the oldest
+ * records (FIFO eviction). The index is open-addressed with a short probe; a slot whose record was
+ * overwritten is stale and reused. Records carry their key and a CRC, so a record that was only
+ * partially written when the process died reads as a miss.
+ *
+ * The data region is mapped in segments of at most 1GB, records never cross a segment.
+ *
+ * The file is locked while the store is open: another store on it would resize it under these mappings
+ * or write over these records.
+ */
+public class MappedResultStore implements DocumentSkipCache.Store {
+
+  protected static Logger log = LoggerFactory.getLogger(MappedResultStore.class);
+
+  private static final int MAGIC = 0x46534b43;
+  private static final int FORMAT = 1;
+  private static final int HEADER_BYTES = 64;
+  private static final int KEY_BYTES = 16;
+  // key, record position (long), value length (int), padding
+  private static final int SLOT_BYTES = 32;
+  // key, value length (int), crc (int)
+  private static final int RECORD_HEADER_BYTES = KEY_BYTES + 8;
+  private static final int MAX_PROBES = 8;
+  static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+  private final File path;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int slots;
+  private final long dataBytes;
+  private final long segmentBytes;
+  private final MappedByteBuffer header;
+  private final MappedByteBuffer index;
+  private final MappedByteBuffer[] segments;
+
+  // the absolute position of the next record, it only grows: the physical offset is modulo 'dataBytes'
+  private long writePosition;
+  private long evictions = 0;
+
+  public MappedResultStore(File path, int slots, long dataBytes) throws IOException {
+    this(path, slots, dataBytes, MAX_SEGMENT_BYTES);
+  }
+
+  MappedResultStore(File path, int slots, long dataBytes, long segmentBytes) throws IOException {
+    if ((long) slots * SLOT_BYTES > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many slots for a memory-mapped index: " + slots);
+    }
+    this.path = path;
+    this.slots = slots;
+    this.dataBytes = dataBytes;
+    this.segmentBytes = Math.min(segmentBytes, dataBytes);
+
+    File parent = path.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Cannot create the directory of " + path);
+    }
+    long indexBytes = (long) slots * SLOT_BYTES;
+    long length = HEADER_BYTES + indexBytes + dataBytes;
+    boolean existed = path.exists() && path.length() == length;
+
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+    try {
+      FileLock lock;
+      try {
+        // released when the channel is closed
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        throw new IOException("The Fusion skip cache " + path + " is open already");
+      }
+      file.setLength(length);
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+      index = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES, indexBytes);
+      int count = (int) ((dataBytes + this.segmentBytes - 1) / this.segmentBytes);
+      segments = new MappedByteBuffer[count];
+      for (int i = 0; i < count; i++) {
+        long start = (long) i * this.segmentBytes;
+        segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + indexBytes + start,
+          Math.min(this.segmentBytes, dataBytes - start));
+      }
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+
+    if (existed && header.getInt(0) == MAGIC && header.getInt(4) == FORMAT && header.getInt(8) == slots
+      && header.getLong(12) == dataBytes && header.getLong(20) == this.segmentBytes) {
+      writePosition = header.getLong(28);
+      log.info("Re-opened the Fusion skip cache " + path + " at position " + writePosition);
+    } else {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < index.capacity(); i += 8) {
+      index.putLong(i, 0);
+    }
+    writePosition = 0;
+    header.putInt(0, MAGIC);
+    header.putInt(4, FORMAT);
+    header.putInt(8, slots);
+    header.putLong(12, dataBytes);
+    header.putLong(20, segmentBytes);
+    header.putLong(28, writePosition);
+  }
+
+  public synchronized byte[] get(byte[] key) {
+    int slot = findSlot(key);
+    if (slot < 0) {
+      return null;
+    }
+    int slotOffset = slot * SLOT_BYTES;
+    long position = index.getLong(slotOffset + KEY_BYTES);
+    int length = index.getInt(slotOffset + KEY_BYTES + 8);
+    if (!isLive(position, length)) {
+      return null;
+    }
+
+    ByteBuffer segment = segments[segmentOf(position)];
+    int offset = offsetOf(position);
+    byte[] recordKey = new byte[KEY_BYTES];
+    segment.position(offset);
+    segment.get(recordKey);
+    int valueLength = segment.getInt();
+    int crc = segment.getInt();
+    if (!Arrays.equals(key, recordKey) || valueLength != length - RECORD_HEADER_BYTES) {
+      return null;
+    }
+    byte[] value = new byte[valueLength];
+    segment.get(value);
+    return crc(value) == crc ? value : null;
+  }
+
+  public synchronized void put(byte[] key, byte[] value) {
+    int length = RECORD_HEADER_BYTES + value.length;
+    if (length > segmentBytes) {
+      // too large to cache
+      return;
+    }
+
+    // records never cross a segment: skip to the start of the next one
+    int offset = offsetOf(writePosition);
+    long segmentLength = segments[segmentOf(writePosition)].capacity();
+    if (offset + length > segmentLength) {
+      writePosition += segmentLength - offset;
+    }
+    long position = writePosition;
+    ByteBuffer segment = segments[segmentOf(position)];
+    segment.position(offsetOf(position));
+    segment.put(key);
+    segment.putInt(value.length);
+    segment.putInt(crc(value));
+    segment.put(value);
+    writePosition += length;
+    header.putLong(28, writePosition);
+
+    int slot = findSlot(key);
+    if (slot < 0) {
+      slot = freeSlot(key);
+    }
+    int slotOffset = slot * SLOT_BYTES;
+    index.position(slotOffset);
+    index.put(key);
+    index.putLong(position);
+    index.putInt(length);
+  }
+
+  /**
+   * The slot holding this key, or -1.
+   */
+  private int findSlot(byte[] key) {
+    int home = home(key);
+    byte[] slotKey = new byte[KEY_BYTES];
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = (home + probe) % slots;
+      int slotOffset = slot * SLOT_BYTES;
+      if (index.getInt(slotOffset + KEY_BYTES + 8) == 0) {
+        continue;
+      }
+      index.position(slotOffset);
+      index.get(slotKey);
+      if (Arrays.equals(key, slotKey)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * An empty or stale slot for the key, or else the one holding the oldest record.
+   */
+  private int freeSlot(byte[] key) {
+    int home = home(key);
+    int oldest = home;
+    long oldestPosition = Long.MAX_VALUE;
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int slot = (home + probe) % slots;
+      int slotOffset = slot * SLOT_BYTES;
+      int length = index.getInt(slotOffset + KEY_BYTES + 8);
+      long position = index.getLong(slotOffset + KEY_BYTES);
+      if (length == 0 || !isLive(position, length)) {
+        return slot;
+      }
+      if (position < oldestPosition) {
+        oldestPosition = position;
+        oldest = slot;
+      }
+    }
+    evictions++;
+    return oldest;
+  }
+
+  private int home(byte[] key) {
+    // the key is a hash already
+    long hash = ByteBuffer.wrap(key).getLong();
+    return (int) ((hash & Long.MAX_VALUE) % slots);
+  }
+
+  /**
+   * Whether the record was not overwritten by the ring since it was written.
+   */
+  private boolean isLive(long position, int length) {
+    return length > 0 && position + dataBytes >= writePosition;
+  }
+
+  private int segmentOf(long position) {
+    return (int) ((position % dataBytes) / segmentBytes);
+  }
+
+  private int offsetOf(long position) {
+    return (int) ((position % dataBytes) % segmentBytes);
+  }
+
+  private static int crc(byte[] value) {
+    CRC32 crc = new CRC32();
+    crc.update(value);
+    return (int) crc.getValue();
+  }
+
+  public synchronized NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("type", "mmap");
+    stats.add("path", path.getAbsolutePath());
+    stats.add("slots", slots);
+    stats.add("dataBytes", dataBytes);
+    stats.add("writePosition", writePosition);
+    stats.add("evictions", evictions);
+    return stats;
+  }
+
+  public synchronized void close() {
+    try {
+      header.force();
+      index.force();
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+      channel.close();
+      file.close();
+    } catch (IOException e) {
+      log.warn("Exception " + e + " when closing the Fusion skip cache " + path);
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The definition of a Fusion query-pipeline, as returned by {@code GET /query-pipelines/{id}}, with the stages
+ * that can be run in-process because they only rewrite params:
+ * <ul>
+ *   <li>'search-fields': 'rows', 'start', 'queryFields' into 'qf' (with their boosts) and 'returnFields' into 'fl'</li>
+ *   <li>'facet': each of the 'fieldFacets' into 'facet.field' and its 'f.{field}.facet.*' params</li>
+ *   <li>'set-params': each of the 'params' is set according to its 'policy': replace, append, remove or default</li>
+ * </ul>
+ * Skipped stages are ignored. A pipeline with any other stage, or a stage with a 'condition', is not local and
+ * is only run by Fusion: a pipeline runs from its first stage, so Fusion cannot take over half-way through it.
+ *
+ * The version of a snapshot is a checksum of the definition, so a change made in Fusion makes a new version.
+ */
+public class PipelineSnapshot {
+
+  // thread-safe once configured, shared by all the parses
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private interface Stage {
+    void apply(Rewrite rewrite);
+  }
+
+  /**
+   * The changes made to the request params so far, read by the next stages through a layered view.
+   */
+  private static final class Rewrite {
+    final SolrParams request;
+    final ModifiableSolrParams replaced = new ModifiableSolrParams();
+    final ModifiableSolrParams added = new ModifiableSolrParams();
+    final Set<String> removed = new HashSet<String>();
+
+    Rewrite(SolrParams request) {
+      this.request = request;
+    }
+
+    void set(String name, String... values) {
+      replaced.set(name, values);
+      added.remove(name);
+    }
+
+    void append(String name, String value) {
+      if (replaced.getParams(name) != null) {
+        replaced.add(name, value);
+      } else {
+        added.add(name, value);
+      }
+    }
+
+    void remove(String name) {
+      replaced.remove(name);
+      added.remove(name);
+      removed.add(name);
+    }
+
+    boolean isSet(String name) {
+      return new LayeredSolrParams(request, replaced, added, removed).get(name) != null;
+    }
+  }
+
+  private final String version;
+  private final List<Stage> stages;
+  // why the pipeline cannot run here, null if it can
+  private final String notLocalReason;
+
+  private PipelineSnapshot(String version, List<Stage> stages, String notLocalReason) {
+    this.version = version;
+    this.stages = stages;
+    this.notLocalReason = notLocalReason;
+  }
+
+  public static PipelineSnapshot parse(byte[] definition) throws IOException {
+    CRC32 checksum = new CRC32();
+    checksum.update(definition);
+    String version = Long.toHexString(checksum.getValue());
+
+    JsonNode pipeline = objectMapper.readTree(definition);
+    JsonNode stageNodes = pipeline != null ? pipeline.path("stages") : null;
+    if (stageNodes == null || !stageNodes.isArray()) {
+      throw new IOException("The query-pipeline definition has no 'stages'");
+    }
+    List<Stage> stages = new ArrayList<Stage>();
+    for (JsonNode node : stageNodes) {
+      if (node.path("skip").asBoolean()) {
+        continue;
+      }
+      String type = node.path("type").asText();
+      if (node.path("condition").asText().trim().length() > 0) {
+        return new PipelineSnapshot(version, Collections.<Stage>emptyList(), "the '" + type + "' stage has a condition");
+      }
+      Stage stage;
+      if ("search-fields".equals(type)) {
+        stage = searchFields(node);
+      } else if ("facet".equals(type)) {
+        stage = facet(node);
+      } else if ("set-params".equals(type)) {
+        stage = setParams(node);
+      } else {
+        stage = null;
+      }
+      if (stage == null) {
+        return new PipelineSnapshot(version, Collections.<Stage>emptyList(), "the '" + type + "' stage is not supported");
+      }
+      stages.add(stage);
+    }
+    return new PipelineSnapshot(version, Collections.unmodifiableList(stages), null);
+  }
+
+  private static Stage searchFields(JsonNode node) {
+    final String rows = node.has("rows") ? node.get("rows").asText() : null;
+    final String start = node.has("start") ? node.get("start").asText() : null;
+    StringBuilder qf = new StringBuilder();
+    for (JsonNode field : node.path("queryFields")) {
+      if (qf.length() > 0) {
+        qf.append(' ');
+      }
+      qf.append(field.path("field").asText());
+      if (field.has("boost")) {
+        qf.append('^').append(field.get("boost").asText());
+      }
+    }
+    StringBuilder fl = new StringBuilder();
+    for (JsonNode field : node.path("returnFields")) {
+      if (fl.length() > 0) {
+        fl.append(',');
+      }
+      fl.append(field.asText());
+    }
+    final String queryFields = qf.length() > 0 ? qf.toString() : null;
+    final String returnFields = fl.length() > 0 ? fl.toString() : null;
+    return new Stage() {
+      public void apply(Rewrite rewrite) {
+        if (rows != null) {
+          rewrite.set("rows", rows);
+        }
+        if (start != null) {
+          rewrite.set("start", start);
+        }
+        if (queryFields != null) {
+          rewrite.set("qf", queryFields);
+        }
+        if (returnFields != null) {
+          rewrite.set("fl", returnFields);
+        }
+      }
+    };
+  }
+
+  private static Stage facet(JsonNode node) {
+    final List<String> fields = new ArrayList<String>();
+    final ModifiableSolrParams perField = new ModifiableSolrParams();
+    for (JsonNode facet : node.path("fieldFacets")) {
+      String field = facet.path("field").asText();
+      fields.add(field);
+      facetParam(perField, facet, field, "minCount", "mincount");
+      facetParam(perField, facet, field, "limit", "limit");
+      facetParam(perField, facet, field, "offset", "offset");
+      facetParam(perField, facet, field, "sort", "sort");
+      facetParam(perField, facet, field, "prefix", "prefix");
+      facetParam(perField, facet, field, "missing", "missing");
+    }
+    return new Stage() {
+      public void apply(Rewrite rewrite) {
+        if (fields.isEmpty()) {
+          return;
+        }
+        rewrite.set("facet", "true");
+        for (String field : fields) {
+          rewrite.append("facet.field", field);
+        }
+        for (String name : perField.getParameterNames()) {
+          rewrite.set(name, perField.getParams(name));
+        }
+      }
+    };
+  }
+
+  private static void facetParam(ModifiableSolrParams params, JsonNode facet, String field, String key, String param) {
+    if (facet.has(key) && !facet.get(key).isNull()) {
+      params.set("f." + field + ".facet." + param, facet.get(key).asText());
+    }
+  }
+
+  /**
+   * Returns null if a param has a policy that is not known here.
+   */
+  private static Stage setParams(JsonNode node) {
+    final List<String[]> params = new ArrayList<String[]>();
+    for (JsonNode param : node.path("params")) {
+      params.add(new String[]{param.path("key").asText(), param.path("value").asText(),
+        param.has("policy") ? param.get("policy").asText() : "replace"});
+    }
+    for (String[] param : params) {
+      String policy = param[2];
+      if (!"replace".equals(policy) && !"append".equals(policy) && !"remove".equals(policy) && !"default".equals(policy)) {
+        return null;
+      }
+    }
+    return new Stage() {
+      public void apply(Rewrite rewrite) {
+        for (String[] param : params) {
+          String policy = param[2];
+          if ("append".equals(policy)) {
+            rewrite.append(param[0], param[1]);
+          } else if ("remove".equals(policy)) {
+            rewrite.remove(param[0]);
+          } else if ("default".equals(policy)) {
+            if (!rewrite.isSet(param[0])) {
+              rewrite.set(param[0], param[1]);
+            }
+          } else {
+            rewrite.set(param[0], param[1]);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Run the stages over the request params. The result is a delta, to be applied with
+   * {@link FusionPipelineResult#applyDelta}, whatever the merge mode; it has no fusion data.
+   *
+   * @throws IllegalStateException if the pipeline is not local
+   */
+  public FusionPipelineResult execute(SolrParams params) {
+    if (notLocalReason != null) {
+      throw new IllegalStateException("The query-pipeline cannot run locally: " + notLocalReason);
+    }
+    Rewrite rewrite = new Rewrite(params);
+    for (Stage stage : stages) {
+      stage.apply(rewrite);
+    }
+    return new FusionPipelineResult(rewrite.replaced, rewrite.added, rewrite.removed, new NamedList(), 0);
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  public boolean isLocal() {
+    return notLocalReason == null;
+  }
+
+  public String getNotLocalReason() {
+    return notLocalReason;
+  }
+
+  public int getStageCount() {
+    return stages.size();
+  }
+}
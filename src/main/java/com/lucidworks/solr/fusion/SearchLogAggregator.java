@@ -0,0 +1,250 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rolls the search events up in-process over windows of 'windowMs', and hands one summary event
+ * per searchlog url and window to a {@link SearchLogShipper} instead of every raw event.
+ *
+ * A summary holds the number of queries and of zero-result queries, the QTime percentiles
+ * ({@link LatencyHistogram}), and the most frequent normalized queries and zero-result queries
+ * ({@link HeavyHitters}), their counts tightened with a {@link CountMinSketch}. Its memory does not
+ * depend on the number of distinct queries.
+ *
+ * Recording only touches atomic counters and the constant-time synchronized section of the heavy hitters.
+ */
+public class SearchLogAggregator {
+
+  protected static Logger log = LoggerFactory.getLogger(SearchLogAggregator.class);
+
+  // queries are truncated, so that a few huge ones do not inflate the window
+  static final int MAX_QUERY_LENGTH = 256;
+
+  private static final class Window {
+    final AtomicLong events = new AtomicLong();
+    final AtomicLong zeroResults = new AtomicLong();
+    final LatencyHistogram qtime = new LatencyHistogram();
+    final CountMinSketch queryCounts;
+    final HeavyHitters topQueries;
+    final HeavyHitters topZeroResultQueries;
+
+    Window(int topK, int sketchDepth, int sketchWidth) {
+      queryCounts = new CountMinSketch(sketchDepth, sketchWidth);
+      // Space-Saving is accurate for the top entries when it tracks a lot more of them
+      topQueries = new HeavyHitters(topK * 10);
+      topZeroResultQueries = new HeavyHitters(topK * 10);
+    }
+  }
+
+  /**
+   * The windows of all the urls for the same time span: it is swapped as a whole at the end of the span.
+   */
+  private static final class Generation {
+    final long start = System.currentTimeMillis();
+    final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+    // the request threads recording into this generation right now
+    final AtomicInteger writers = new AtomicInteger();
+    volatile boolean closed = false;
+  }
+
+  private final SearchLogShipper shipper;
+  private final long windowMs;
+  private final int topK;
+  private final int sketchDepth;
+  private final int sketchWidth;
+  private final AtomicReference<Generation> current = new AtomicReference<Generation>(new Generation());
+
+  private final AtomicLong aggregated = new AtomicLong();
+  private final AtomicLong summaries = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  public SearchLogAggregator(SearchLogShipper shipper, long windowMs, int topK, int sketchDepth, int sketchWidth) {
+    this.shipper = shipper;
+    this.windowMs = windowMs;
+    this.topK = topK;
+    this.sketchDepth = sketchDepth;
+    this.sketchWidth = sketchWidth;
+    if (shipper != null) {
+      thread = new Thread(new Runnable() {
+        public void run() {
+          flushLoop();
+        }
+      }, "fusion-searchlog-aggregator");
+      thread.setDaemon(true);
+      thread.start();
+    } else {
+      thread = null;
+    }
+  }
+
+  /**
+   * Count a query in the current window of the url.
+   */
+  public void record(String url, String query, long numFound, long qtimeMs) {
+    String normalized = normalize(query);
+    while (true) {
+      Generation generation = current.get();
+      generation.writers.incrementAndGet();
+      try {
+        if (generation.closed) {
+          // swapped while we got it, record into the new one
+          continue;
+        }
+        Window window = generation.windows.get(url);
+        if (window == null) {
+          Window created = new Window(topK, sketchDepth, sketchWidth);
+          window = generation.windows.putIfAbsent(url, created);
+          if (window == null) {
+            window = created;
+          }
+        }
+        window.events.incrementAndGet();
+        window.qtime.record(TimeUnit.MILLISECONDS.toNanos(qtimeMs));
+        window.queryCounts.add(normalized, 1);
+        window.topQueries.add(normalized);
+        if (numFound == 0) {
+          window.zeroResults.incrementAndGet();
+          window.topZeroResultQueries.add(normalized);
+        }
+        aggregated.incrementAndGet();
+        return;
+      } finally {
+        generation.writers.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Lowercase, trim and collapse the whitespace of the query, so that trivially different queries count as one.
+   */
+  static String normalize(String query) {
+    if (query == null) {
+      return "";
+    }
+    StringBuilder normalized = new StringBuilder(Math.min(query.length(), MAX_QUERY_LENGTH));
+    boolean space = false;
+    for (int i = 0; i < query.length() && normalized.length() < MAX_QUERY_LENGTH; i++) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = normalized.length() > 0;
+        continue;
+      }
+      if (space) {
+        normalized.append(' ');
+        space = false;
+      }
+      normalized.append(c);
+    }
+    return normalized.toString().toLowerCase(Locale.ROOT);
+  }
+
+  private void flushLoop() {
+    while (running) {
+      long wait = current.get().start + windowMs - System.currentTimeMillis();
+      if (wait > 0) {
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+        continue;
+      }
+      try {
+        ship(roll());
+      } catch (Throwable t) {
+        log.warn("Unexpected error while summarizing the search logs", t);
+      }
+    }
+  }
+
+  private void ship(Map<String, Map<String, Object>> summaries) {
+    for (Map.Entry<String, Map<String, Object>> summary : summaries.entrySet()) {
+      if (!shipper.offer(summary.getKey(), summary.getValue())) {
+        log.debug("The search log queue is full. Dropped a search summary for " + summary.getKey());
+      }
+      this.summaries.incrementAndGet();
+    }
+  }
+
+  /**
+   * End the current window, and return the summary of each url that had queries in it.
+   */
+  Map<String, Map<String, Object>> roll() {
+    Generation generation = current.getAndSet(new Generation());
+    generation.closed = true;
+    // wait for the request threads that were recording into it
+    while (generation.writers.get() > 0) {
+      Thread.yield();
+    }
+
+    long end = System.currentTimeMillis();
+    Map<String, Map<String, Object>> summaries = new LinkedHashMap<String, Map<String, Object>>();
+    for (Map.Entry<String, Window> entry : generation.windows.entrySet()) {
+      Window window = entry.getValue();
+      Map<String, Object> summary = new LinkedHashMap<String, Object>();
+      summary.put("type", "summary");
+      summary.put("windowStart", generation.start);
+      summary.put("windowEnd", end);
+      summary.put("numQueries", window.events.get());
+      summary.put("numZeroResults", window.zeroResults.get());
+      Map<String, Object> qtime = new LinkedHashMap<String, Object>();
+      qtime.put("mean", window.qtime.getMean());
+      qtime.put("p50", window.qtime.getPercentile(50));
+      qtime.put("p95", window.qtime.getPercentile(95));
+      qtime.put("p99", window.qtime.getPercentile(99));
+      qtime.put("max", window.qtime.getMax());
+      summary.put("QTime", qtime);
+      summary.put("topQueries", top(window.topQueries, window.queryCounts));
+      summary.put("topZeroResultQueries", top(window.topZeroResultQueries, null));
+      summaries.put(entry.getKey(), summary);
+    }
+    return summaries;
+  }
+
+  private List<Map<String, Object>> top(HeavyHitters heavyHitters, CountMinSketch counts) {
+    List<Map<String, Object>> top = new ArrayList<Map<String, Object>>();
+    for (HeavyHitters.Counter counter : heavyHitters.top(topK)) {
+      Map<String, Object> query = new LinkedHashMap<String, Object>();
+      query.put("query", counter.key);
+      // both over-estimate, the smaller is closer
+      query.put("count", counts != null ? Math.min(counter.count, counts.estimate(counter.key)) : counter.count);
+      top.add(query);
+    }
+    return top;
+  }
+
+  public long getAggregated() {
+    return aggregated.get();
+  }
+
+  public long getSummaries() {
+    return summaries.get();
+  }
+
+  /**
+   * Ship the window in progress and stop.
+   */
+  public void close() {
+    running = false;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ship(roll());
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the search log batches of a {@link SearchLogSpool} to Fusion, oldest first, from a
+ * background thread.
+ *
+ * The replay is rate limited to 'eventsPerSecond' so that a recovering Fusion is not flooded with
+ * the backlog of an outage. When a batch cannot be shipped, or the circuit breaker is open, the
+ * replayer waits 'retryMs' before trying the same batch again. A batch that Fusion rejects for good (see
+ * {@link SearchLogShipper#isPermanent}) is skipped, so it does not hold back the batches behind it.
+ */
+public class SearchLogReplayer {
+
+  protected static Logger log = LoggerFactory.getLogger(SearchLogReplayer.class);
+
+  private final FusionClient fusionClient;
+  private final SearchLogSpool spool;
+  private final double eventsPerSecond;
+  private final long retryNanos;
+  private final long idleNanos;
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  public SearchLogReplayer(FusionClient fusionClient, SearchLogSpool spool, double eventsPerSecond,
+                           long retryMs, long idleMs) {
+    this.fusionClient = fusionClient;
+    this.spool = spool;
+    this.eventsPerSecond = eventsPerSecond;
+    this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMs);
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+    thread = new Thread(new Runnable() {
+      public void run() {
+        replayLoop();
+      }
+    }, "fusion-searchlog-replayer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void replayLoop() {
+    while (running) {
+      SearchLogSpool.Record record;
+      try {
+        record = spool.peek();
+      } catch (Throwable t) {
+        log.warn("Unexpected error while reading the search log spool", t);
+        LockSupport.parkNanos(this, retryNanos);
+        continue;
+      }
+      if (record == null) {
+        LockSupport.parkNanos(this, idleNanos);
+        continue;
+      }
+
+      long start = System.nanoTime();
+      try {
+        SearchLogShipper.post(fusionClient, record.url, record.body);
+        spool.commit(record);
+      } catch (FusionCircuitBreaker.CircuitBreakerOpenException e) {
+        log.debug(e.getMessage() + ". Replaying the search log spool later");
+        LockSupport.parkNanos(this, retryNanos);
+        continue;
+      } catch (SearchLogShipper.BatchRejectedException e) {
+        rejected.addAndGet(record.events);
+        log.warn("Fusion at url " + record.url + " rejected " + record.events + " spooled search log events, " +
+          "skipping them: " + e.getMessage());
+        spool.commit(record);
+        continue;
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        log.warn("Exception " + e + " when replaying " + record.events + " search log events to Fusion at url " +
+          record.url + ". Retrying in " + TimeUnit.NANOSECONDS.toMillis(retryNanos) + "ms");
+        LockSupport.parkNanos(this, retryNanos);
+        continue;
+      }
+
+      // spread the replay: the next batch waits for the time this one was worth
+      if (eventsPerSecond > 0) {
+        long budget = (long) (record.events * TimeUnit.SECONDS.toNanos(1) / eventsPerSecond);
+        long wait = budget - (System.nanoTime() - start);
+        if (wait > 0) {
+          LockSupport.parkNanos(this, wait);
+        }
+      }
+    }
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * The events skipped because Fusion rejected them.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * Stop replaying, what is left stays in the spool for the next start.
+   */
+  public void close(long timeoutMs) {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(timeoutMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,383 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The class {@code SearchLogShipper} ships search log events to Fusion in the background.
+ *
+ * Request threads only enqueue events into a bounded, lock-free queue. Dedicated worker
+ * threads drain the queue, serialize the events and POST them to Fusion in batches, as
+ * one JSON array per searchlog url.
+ *
+ * When the queue is full, the {@link OverflowPolicy} decides which events are dropped.
+ *
+ * With a {@link SearchLogSpool}, the batches that cannot be shipped (Fusion failing, too slow or the
+ * circuit breaker open) and the events still queued on close are spooled to disk instead of being
+ * lost; a {@link SearchLogReplayer} ships them once Fusion recovers. A batch that Fusion rejects for good
+ * (a 4xx status other than 408 and 429) is dropped rather than spooled: sending it again would not help.
+ */
+public class SearchLogShipper {
+
+  /**
+   * Fusion answered a batch with a status that retrying cannot change.
+   */
+  public static class BatchRejectedException extends ClientProtocolException {
+    public final int status;
+
+    public BatchRejectedException(String message, int status) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  protected static Logger log = LoggerFactory.getLogger(SearchLogShipper.class);
+
+  public enum OverflowPolicy {
+    /** drop the oldest queued event to make room for the new one */
+    DROP_OLDEST,
+    /** drop the new event */
+    DROP_NEWEST,
+    /** once the queue is half full, only admit a sample of the new events; drop them when full */
+    SAMPLE;
+
+    public static OverflowPolicy get(String name) {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private static final class Event {
+    final String url;
+    final Map<String, Object> data;
+
+    Event(String url, Map<String, Object> data) {
+      this.url = url;
+      this.data = data;
+    }
+  }
+
+  private final FusionClient fusionClient;
+  private final ObjectMapper objectMapper;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final long sampleEvery;
+  private final int batchSize;
+  private final long pollIntervalNanos;
+
+  private final Queue<Event> queue = new ConcurrentLinkedQueue<Event>();
+  // ConcurrentLinkedQueue.size() is O(n) and unbounded, so the queue depth is tracked (and bounded) here
+  private final AtomicInteger queueSize = new AtomicInteger();
+  private final AtomicLong sampleCounter = new AtomicLong();
+
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running = true;
+  private volatile SearchLogSpool spool;
+
+  public SearchLogShipper(FusionClient fusionClient,
+                          ObjectMapper objectMapper,
+                          int capacity,
+                          OverflowPolicy overflowPolicy,
+                          double sampleRate,
+                          int batchSize,
+                          int numWorkers,
+                          long pollIntervalMs) {
+    this.fusionClient = fusionClient;
+    this.objectMapper = objectMapper;
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.sampleEvery = sampleRate > 0 ? Math.max(1, Math.round(1.0 / sampleRate)) : Long.MAX_VALUE;
+    this.batchSize = batchSize;
+    this.pollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pollIntervalMs);
+
+    for (int i = 0; i < numWorkers; i++) {
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          drainLoop();
+        }
+      }, "fusion-searchlog-shipper-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  /**
+   * Enqueue an event to be POSTed to the given searchlog url.
+   * Returns false if the event was dropped by the overflow policy.
+   */
+  public boolean offer(String url, Map<String, Object> event) {
+    if (!running) {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    if (overflowPolicy == OverflowPolicy.SAMPLE && queueSize.get() >= capacity / 2
+      && sampleCounter.incrementAndGet() % sampleEvery != 0) {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    // reserve a slot in the queue, or make room for the event
+    while (true) {
+      int size = queueSize.get();
+      if (size < capacity) {
+        if (queueSize.compareAndSet(size, size + 1)) {
+          break;
+        }
+        continue;
+      }
+      if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+        dropped.incrementAndGet();
+        return false;
+      }
+      if (queue.poll() != null) {
+        // the new event takes the slot of the oldest one
+        dropped.incrementAndGet();
+        break;
+      }
+      // the slots are reserved by producers that did not enqueue their events yet, try again
+      Thread.yield();
+    }
+
+    queue.offer(new Event(url, event));
+    enqueued.incrementAndGet();
+    return true;
+  }
+
+  private void drainLoop() {
+    List<Event> batch = new ArrayList<Event>(batchSize);
+    while (running || queueSize.get() > 0) {
+      Event event;
+      while (batch.size() < batchSize && (event = queue.poll()) != null) {
+        queueSize.decrementAndGet();
+        batch.add(event);
+      }
+
+      if (batch.isEmpty()) {
+        if (!running) {
+          return;
+        }
+        LockSupport.parkNanos(this, pollIntervalNanos);
+        continue;
+      }
+
+      try {
+        send(batch);
+      } catch (Throwable t) {
+        log.warn("Unexpected error while shipping search logs to Fusion", t);
+      }
+      batch.clear();
+    }
+  }
+
+  private void send(List<Event> batch) {
+    // usually all the events go to the same url, keep the arrival order within each url
+    Map<String, List<Map<String, Object>>> eventsByUrl = new LinkedHashMap<String, List<Map<String, Object>>>();
+    for (Event event : batch) {
+      List<Map<String, Object>> events = eventsByUrl.get(event.url);
+      if (events == null) {
+        events = new ArrayList<Map<String, Object>>(batch.size());
+        eventsByUrl.put(event.url, events);
+      }
+      events.add(event.data);
+    }
+
+    for (Map.Entry<String, List<Map<String, Object>>> entry : eventsByUrl.entrySet()) {
+      String fusionUrl = entry.getKey();
+      List<Map<String, Object>> events = entry.getValue();
+      byte[] body;
+      try {
+        body = objectMapper.writeValueAsBytes(events);
+      } catch (Exception e) {
+        failed.addAndGet(events.size());
+        log.warn("Exception when serializing " + events.size() + " search log events, dropping them", e);
+        continue;
+      }
+      try {
+        log.debug("Sending " + events.size() + " search log events to " + fusionUrl);
+        post(fusionClient, fusionUrl, body);
+        sent.addAndGet(events.size());
+      } catch (FusionCircuitBreaker.CircuitBreakerOpenException e) {
+        failed.addAndGet(events.size());
+        log.debug(e.getMessage() + ". " + (spool(fusionUrl, events.size(), body) ? "Spooled " : "Dropped ") +
+          events.size() + " search log events");
+      } catch (BatchRejectedException e) {
+        failed.addAndGet(events.size());
+        log.warn("Fusion at url " + fusionUrl + " rejected " + events.size() + " search log events, dropping them: " +
+          e.getMessage());
+      } catch (Exception e) {
+        failed.addAndGet(events.size());
+        log.warn("Exception when indexing " + events.size() + " search log events to Fusion at url " + fusionUrl +
+          (spool(fusionUrl, events.size(), body) ? ", spooled them" : ""), e);
+      }
+    }
+  }
+
+  /**
+   * POST a JSON array of search log events to Fusion.
+   */
+  static void post(FusionClient fusionClient, String fusionUrl, byte[] body) throws IOException {
+    HttpPost httpPost = new HttpPost(fusionUrl);
+    httpPost.setEntity(new ByteArrayEntity(body));
+    httpPost.setHeader("Content-type", "application/json");
+    fusionClient.execute(httpPost, new ResponseHandler<Object>() {
+      public Object handleResponse(HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status > 300) {
+          String message = "unsuccessful request with a status code of " + status +
+            " failed with response " + (response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : null);
+          if (isPermanent(status)) {
+            throw new BatchRejectedException(message, status);
+          }
+          throw new ClientProtocolException(message);
+        }
+        EntityUtils.consume(response.getEntity());
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Whether Fusion will answer the same batch with the same status: a client error, except a timeout (408)
+   * or a rate limit (429).
+   */
+  static boolean isPermanent(int status) {
+    return status >= 400 && status < 500 && status != 408 && status != 429;
+  }
+
+  /**
+   * Keep a batch that could not be shipped in the spool, if there is one.
+   */
+  private boolean spool(String fusionUrl, int events, byte[] body) {
+    SearchLogSpool spool = this.spool;
+    if (spool == null) {
+      return false;
+    }
+    try {
+      return spool.append(fusionUrl, events, body);
+    } catch (RuntimeException e) {
+      log.warn("Exception when spooling " + events + " search log events", e);
+      return false;
+    }
+  }
+
+  /**
+   * Spool the batches that cannot be shipped from now on.
+   */
+  public void setSpool(SearchLogSpool spool) {
+    this.spool = spool;
+  }
+
+  /**
+   * Stop accepting events and wait up to {@code timeoutMs} for the workers to ship what is queued.
+   */
+  public void close(long timeoutMs) {
+    running = false;
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    for (Thread worker : workers) {
+      LockSupport.unpark(worker);
+      try {
+        worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    int remaining = queueSize.get();
+    if (remaining > 0 && spool != null && workersStopped()) {
+      // keep what the workers did not ship for the next start
+      List<Event> batch = new ArrayList<Event>(remaining);
+      Event event;
+      while ((event = queue.poll()) != null) {
+        queueSize.decrementAndGet();
+        batch.add(event);
+        if (batch.size() == batchSize) {
+          spoolAll(batch);
+        }
+      }
+      spoolAll(batch);
+      remaining = queueSize.get();
+    }
+    if (remaining > 0) {
+      log.warn("Dropping " + remaining + " search log events that were not shipped to Fusion on close");
+      dropped.addAndGet(remaining);
+    }
+  }
+
+  private boolean workersStopped() {
+    for (Thread worker : workers) {
+      if (worker.isAlive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void spoolAll(List<Event> batch) {
+    Map<String, List<Map<String, Object>>> eventsByUrl = new LinkedHashMap<String, List<Map<String, Object>>>();
+    for (Event event : batch) {
+      List<Map<String, Object>> events = eventsByUrl.get(event.url);
+      if (events == null) {
+        events = new ArrayList<Map<String, Object>>(batch.size());
+        eventsByUrl.put(event.url, events);
+      }
+      events.add(event.data);
+    }
+    for (Map.Entry<String, List<Map<String, Object>>> entry : eventsByUrl.entrySet()) {
+      try {
+        if (!spool(entry.getKey(), entry.getValue().size(), objectMapper.writeValueAsBytes(entry.getValue()))) {
+          dropped.addAndGet(entry.getValue().size());
+        }
+      } catch (IOException e) {
+        dropped.addAndGet(entry.getValue().size());
+      }
+    }
+    batch.clear();
+  }
+
+  public int getQueueSize() {
+    return queueSize.get();
+  }
+
+  public long getEnqueued() {
+    return enqueued.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+}
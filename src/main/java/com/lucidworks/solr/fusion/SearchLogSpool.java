@@ -0,0 +1,446 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A local, append-only spool of the search log batches that could not be shipped to Fusion.
+ *
+ * Batches are appended, as the JSON body of their POST, to memory-mapped segment files of 'segmentBytes'
+ * bytes. At most 'maxBytes' of segments are kept: when the spool is full the oldest segment is deleted
+ * and its events are counted as dropped. A {@link SearchLogReplayer} reads the batches back in order and
+ * {@link #commit}s them once Fusion accepted them.
+ *
+ * Each record carries its length and a CRC, so the end of the data is found again after the process crashed
+ * (the mapped pages are flushed by the OS, and forced to disk when a segment is full or the spool is closed), and the
+ * read offset is kept in its own checksummed file: a batch is replayed at least once, possibly twice if
+ * the process dies between the POST and the commit.
+ *
+ * A segment is unmapped as soon as it is deleted, see {@link #unmap}, so that its disk blocks are freed
+ * right away rather than when the buffer is garbage collected.
+ */
+public class SearchLogSpool {
+
+  protected static Logger log = LoggerFactory.getLogger(SearchLogSpool.class);
+
+  private static final String SEGMENT_PREFIX = "searchlog-";
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final String OFFSET_FILE = "searchlog.offset";
+  // length (int), crc (int)
+  private static final int RECORD_HEADER_BYTES = 8;
+
+  // releases the mapping of a buffer, null if this JVM does not let us
+  private static final Unmapper UNMAPPER = Unmapper.lookup();
+
+  /**
+   * A batch read back from the spool.
+   */
+  public static class Record {
+    public final String url;
+    public final int events;
+    public final byte[] body;
+    final long segment;
+    final int end;
+
+    Record(String url, int events, byte[] body, long segment, int end) {
+      this.url = url;
+      this.events = events;
+      this.body = body;
+      this.segment = segment;
+      this.end = end;
+    }
+  }
+
+  private final File dir;
+  private final int segmentBytes;
+  private final int maxSegments;
+
+  // the mapped segments, by sequence number
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+  private long writeSegment;
+  private int writePosition;
+  private long readSegment;
+  private int readPosition;
+  private final MappedByteBuffer offset;
+  private final RandomAccessFile offsetFile;
+
+  private long spooled = 0;
+  private long replayed = 0;
+  private long dropped = 0;
+  // the buffers are unmapped, touching them would crash the JVM
+  private boolean closed = false;
+
+  public SearchLogSpool(File dir, int segmentBytes, long maxBytes) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Cannot create the search log spool directory " + dir);
+    }
+
+    offsetFile = new RandomAccessFile(new File(dir, OFFSET_FILE), "rw");
+    offset = offsetFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16);
+
+    String[] names = dir.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(names);
+    for (String name : names) {
+      long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      segments.put(sequence, map(sequence));
+    }
+
+    if (segments.isEmpty()) {
+      writeSegment = 0;
+      segments.put(writeSegment, map(writeSegment));
+      writePosition = 0;
+    } else {
+      // the end of the data is the first record that is not complete
+      writeSegment = segments.lastKey();
+      writePosition = 0;
+      Record record;
+      while ((record = readRecord(writeSegment, writePosition)) != null) {
+        writePosition = record.end;
+      }
+    }
+
+    long savedSegment = offset.getLong(0);
+    int savedPosition = offset.getInt(8);
+    if (offset.getInt(12) == offsetChecksum(savedSegment, savedPosition) && segments.containsKey(savedSegment)) {
+      readSegment = savedSegment;
+      readPosition = savedPosition;
+    } else {
+      // no offset, or it was torn: replay everything that is left
+      readSegment = segments.firstKey();
+      readPosition = 0;
+    }
+    if (getPendingBytes() > 0) {
+      log.info("Opened the search log spool " + dir + " with " + getPendingBytes() + " bytes to replay");
+    }
+  }
+
+  /**
+   * Append a batch of 'events' search log events to be POSTed to 'url'.
+   * Returns false if the batch is too large for a segment.
+   */
+  public synchronized boolean append(String url, int events, byte[] body) {
+    if (closed) {
+      return false;
+    }
+    byte[] urlBytes = utf8(url);
+    int payload = 4 + 2 + urlBytes.length + body.length;
+    int length = RECORD_HEADER_BYTES + payload;
+    if (length + 4 > segmentBytes || urlBytes.length > Short.MAX_VALUE) {
+      return false;
+    }
+    // keep room for the 0 length that marks the end of a segment
+    if (writePosition + length + 4 > segmentBytes) {
+      roll();
+    }
+
+    MappedByteBuffer segment = segments.get(writeSegment);
+    CRC32 crc = new CRC32();
+    segment.position(writePosition + RECORD_HEADER_BYTES);
+    segment.putInt(events);
+    segment.putShort((short) urlBytes.length);
+    segment.put(urlBytes);
+    segment.put(body);
+    crc.update(intBytes(events));
+    crc.update(urlBytes);
+    crc.update(body);
+    segment.putInt(writePosition + RECORD_HEADER_BYTES + payload, 0);
+    // the length goes last, a record is only visible once it is complete
+    segment.putInt(writePosition + 4, (int) crc.getValue());
+    segment.putInt(writePosition, payload);
+    writePosition += length;
+    spooled += events;
+    return true;
+  }
+
+  private void roll() {
+    segments.get(writeSegment).force();
+    writeSegment++;
+    try {
+      segments.put(writeSegment, map(writeSegment));
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot create a search log spool segment in " + dir, e);
+    }
+    writePosition = 0;
+
+    // bound the disk usage: drop the oldest segment, and the events not replayed from it
+    while (segments.size() > maxSegments) {
+      long oldest = segments.firstKey();
+      if (readSegment == oldest) {
+        int position = readPosition;
+        Record record;
+        while ((record = readRecord(oldest, position)) != null) {
+          dropped += record.events;
+          position = record.end;
+        }
+        readSegment = oldest + 1;
+        readPosition = 0;
+        saveOffset();
+      }
+      deleteSegment(oldest);
+      log.warn("The search log spool " + dir + " is full, dropped its oldest segment");
+    }
+  }
+
+  /**
+   * The oldest batch not replayed yet, or null if the spool is empty.
+   */
+  public synchronized Record peek() {
+    if (closed) {
+      return null;
+    }
+    while (true) {
+      Record record = readRecord(readSegment, readPosition);
+      if (record != null) {
+        return record;
+      }
+      if (readSegment >= writeSegment) {
+        return null;
+      }
+      // the segment was read entirely
+      long done = readSegment;
+      readSegment = segments.higherKey(done);
+      readPosition = 0;
+      saveOffset();
+      deleteSegment(done);
+    }
+  }
+
+  /**
+   * Mark the batch, and the ones before it, as replayed.
+   */
+  public synchronized void commit(Record record) {
+    if (closed) {
+      return;
+    }
+    if (record.segment < readSegment || (record.segment == readSegment && record.end <= readPosition)) {
+      return;
+    }
+    readSegment = record.segment;
+    readPosition = record.end;
+    replayed += record.events;
+    saveOffset();
+  }
+
+  private Record readRecord(long sequence, int position) {
+    MappedByteBuffer segment = segments.get(sequence);
+    if (segment == null || position + RECORD_HEADER_BYTES > segmentBytes) {
+      return null;
+    }
+    int payload = segment.getInt(position);
+    if (payload < 6 || position + RECORD_HEADER_BYTES + payload > segmentBytes) {
+      return null;
+    }
+    int crc = segment.getInt(position + 4);
+    segment.position(position + RECORD_HEADER_BYTES);
+    int events = segment.getInt();
+    int urlLength = segment.getShort();
+    if (urlLength < 0 || 6 + urlLength > payload) {
+      return null;
+    }
+    byte[] urlBytes = new byte[urlLength];
+    segment.get(urlBytes);
+    byte[] body = new byte[payload - 6 - urlLength];
+    segment.get(body);
+
+    CRC32 check = new CRC32();
+    check.update(intBytes(events));
+    check.update(urlBytes);
+    check.update(body);
+    if ((int) check.getValue() != crc) {
+      return null;
+    }
+    try {
+      return new Record(new String(urlBytes, "UTF-8"), events, body, sequence, position + RECORD_HEADER_BYTES + payload);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void saveOffset() {
+    offset.putLong(0, readSegment);
+    offset.putInt(8, readPosition);
+    offset.putInt(12, offsetChecksum(readSegment, readPosition));
+  }
+
+  private static int offsetChecksum(long segment, int position) {
+    CRC32 crc = new CRC32();
+    crc.update(intBytes((int) (segment >>> 32)));
+    crc.update(intBytes((int) segment));
+    crc.update(intBytes(position));
+    return (int) crc.getValue();
+  }
+
+  private MappedByteBuffer map(long sequence) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segmentFile(sequence), "rw");
+    try {
+      file.setLength(segmentBytes);
+      // the mapping stays valid once the file is closed
+      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    } finally {
+      file.close();
+    }
+  }
+
+  private void deleteSegment(long sequence) {
+    unmap(segments.remove(sequence));
+    File file = segmentFile(sequence);
+    if (!file.delete()) {
+      log.warn("Could not delete the search log spool segment " + file);
+    }
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(dir, SEGMENT_PREFIX + String.format(Locale.ROOT, "%020d", sequence) + SEGMENT_SUFFIX);
+  }
+
+  private static byte[] intBytes(int value) {
+    return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+  }
+
+  private static byte[] utf8(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The bytes of the batches not replayed yet.
+   */
+  public synchronized long getPendingBytes() {
+    if (readSegment == writeSegment) {
+      return writePosition - readPosition;
+    }
+    return (long) (writeSegment - readSegment) * segmentBytes - readPosition + writePosition;
+  }
+
+  public synchronized long getSpooled() {
+    return spooled;
+  }
+
+  public synchronized long getReplayed() {
+    return replayed;
+  }
+
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  public synchronized NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("dir", dir.getAbsolutePath());
+    stats.add("segments", segments.size());
+    stats.add("pendingBytes", getPendingBytes());
+    stats.add("spooled", spooled);
+    stats.add("replayed", replayed);
+    stats.add("dropped", dropped);
+    return stats;
+  }
+
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (MappedByteBuffer segment : segments.values()) {
+      segment.force();
+      unmap(segment);
+    }
+    segments.clear();
+    offset.force();
+    unmap(offset);
+    try {
+      offsetFile.close();
+    } catch (IOException e) {
+      log.warn("Exception " + e + " when closing the search log spool " + dir);
+    }
+  }
+
+  /**
+   * Release the mapping of a buffer that is not used any more. Until then the OS keeps the blocks of the
+   * deleted file, and Windows does not delete it at all. Java has no API for it, so like Lucene's
+   * MMapDirectory this goes through the cleaner of the buffer; if the JVM does not allow it, the buffer is
+   * left to the garbage collector.
+   */
+  private static void unmap(ByteBuffer buffer) {
+    if (buffer == null || UNMAPPER == null) {
+      return;
+    }
+    try {
+      UNMAPPER.unmap(buffer);
+    } catch (Exception e) {
+      log.warn("Could not unmap a search log spool buffer, leaving it to the garbage collector: " + e);
+    }
+  }
+
+  private static final class Unmapper {
+    private final Object unsafe;
+    // sun.misc.Unsafe#invokeCleaner from Java 9, DirectByteBuffer#cleaner before
+    private final Method method;
+    // the Cleaner#clean to call on the result of 'method', before Java 9
+    private final Method clean;
+
+    private Unmapper(Object unsafe, Method method, Method clean) {
+      this.unsafe = unsafe;
+      this.method = method;
+      this.clean = clean;
+    }
+
+    static Unmapper lookup() {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        return new Unmapper(theUnsafe.get(null), invokeCleaner, null);
+      } catch (Exception e) {
+        // before Java 9
+      }
+      try {
+        Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+        cleaner.setAccessible(true);
+        return new Unmapper(null, cleaner, cleaner.getReturnType().getMethod("clean"));
+      } catch (Exception e) {
+        log.warn("Cannot unmap the search log spool segments, deleted segments use the disk until they are " +
+          "garbage collected: " + e);
+        return null;
+      }
+    }
+
+    void unmap(ByteBuffer buffer) throws Exception {
+      if (clean == null) {
+        method.invoke(unsafe, buffer);
+        return;
+      }
+      Object cleaner = method.invoke(buffer);
+      if (cleaner != null) {
+        clean.invoke(cleaner);
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class {@code SingleFlight} de-duplicates identical concurrent calls: the first caller
+ * for a key (the leader) runs the call on its own thread, and callers arriving with the same
+ * key while the call is in flight wait for the leader and share its result.
+ *
+ * Waiters give up after the wait timeout. A failed call, a timed out wait or an
+ * interrupted wait all return null, so callers can fall back to their original data.
+ */
+public class SingleFlight<V> {
+
+  protected static Logger log = LoggerFactory.getLogger(SingleFlight.class);
+
+  private final ConcurrentHashMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+  private final long waitTimeoutMs;
+
+  private final AtomicLong leaders = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong waitTimeouts = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  public SingleFlight(long waitTimeoutMs) {
+    this.waitTimeoutMs = waitTimeoutMs;
+  }
+
+  public V execute(String key, Callable<V> call) {
+    FutureTask<V> task = new FutureTask<V>(call);
+    FutureTask<V> leader = inFlight.putIfAbsent(key, task);
+    if (leader == null) {
+      leaders.incrementAndGet();
+      try {
+        task.run();
+        return getResult(task);
+      } finally {
+        inFlight.remove(key, task);
+      }
+    }
+
+    coalesced.incrementAndGet();
+    try {
+      return leader.get(waitTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      waitTimeouts.incrementAndGet();
+      log.warn("Timed out after " + waitTimeoutMs + "ms waiting for an identical in-flight call");
+    } catch (ExecutionException e) {
+      // the failure is counted and logged by the leader
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  private V getResult(FutureTask<V> task) {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      failures.incrementAndGet();
+      log.warn("Exception in call shared by identical in-flight requests", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  public int getInFlight() {
+    return inFlight.size();
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new NamedList<Object>();
+    stats.add("inFlight", inFlight.size());
+    stats.add("leaders", leaders.get());
+    stats.add("coalesced", coalesced.get());
+    stats.add("waitTimeouts", waitTimeouts.get());
+    stats.add("failures", failures.get());
+    return stats;
+  }
+}
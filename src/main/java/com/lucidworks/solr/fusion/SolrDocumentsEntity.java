@@ -0,0 +1,54 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * An {@link org.apache.http.HttpEntity} that encodes Solr documents with a {@link FusionDocumentCodec}
+ * straight to the connection's output stream, without building the request body in memory first.
+ */
+public class SolrDocumentsEntity extends AbstractHttpEntity {
+
+  private final List<SolrInputDocument> docs;
+  private final FusionDocumentCodec codec;
+
+  public SolrDocumentsEntity(List<SolrInputDocument> docs, FusionDocumentCodec codec) {
+    this.docs = docs;
+    this.codec = codec;
+    setChunked(true);
+  }
+
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  public long getContentLength() {
+    return -1;
+  }
+
+  /**
+   * Only meant for debugging, this is the one place the body is materialized.
+   */
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeTo(out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  public void writeTo(OutputStream outstream) throws IOException {
+    // the codecs flush, but leave closing the stream to the connection
+    codec.write(docs, outstream);
+  }
+
+  public boolean isStreaming() {
+    return false;
+  }
+}
@@ -0,0 +1,93 @@
+package com.lucidworks.solr.fusion;
+
+
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.handler.loader.XMLLoader;
+import org.apache.solr.util.EmptyEntityResolver;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Solr's XML document format ({@code application/vnd.solr-document}): a {@code <doc>} element,
+ * or several of them wrapped in a {@code <docs>} element. Always encoded as UTF-8.
+ */
+public class XmlDocumentCodec extends FusionDocumentCodec {
+
+  public static final String SOLR_XML_DOCUMENT = "application/vnd.solr-document";
+
+  // both are thread-safe once configured
+  private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+  private static final XMLLoader xmlLoader = new XMLLoader();
+
+  static {
+    EmptyEntityResolver.configureXMLInputFactory(inputFactory);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+  }
+
+  @Override
+  public String getName() {
+    return XML;
+  }
+
+  @Override
+  public String getContentType() {
+    return SOLR_XML_DOCUMENT;
+  }
+
+  @Override
+  public String getAccept() {
+    return SOLR_XML_DOCUMENT;
+  }
+
+  @Override
+  public void write(List<SolrInputDocument> docs, OutputStream out) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+    if (docs.size() == 1) {
+      ClientUtils.writeXML(docs.get(0), writer);
+    } else {
+      writer.write("<docs>");
+      for (SolrInputDocument doc : docs) {
+        ClientUtils.writeXML(doc, writer);
+      }
+      writer.write("</docs>");
+    }
+    writer.flush();
+  }
+
+  /**
+   * Read every top-level {@code <doc>} element, whether it is a single document
+   * or a list of documents wrapped in another element.
+   */
+  @Override
+  public List<SolrInputDocument> read(InputStream in) throws IOException {
+    List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+    try {
+      XMLStreamReader parser = inputFactory.createXMLStreamReader(in);
+      try {
+        while (parser.hasNext()) {
+          int event = parser.next();
+          if (event == XMLStreamConstants.START_ELEMENT && "doc".equals(parser.getLocalName())) {
+            docs.add(xmlLoader.readDoc(parser));
+          }
+        }
+      } finally {
+        parser.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Invalid XML documents in the Fusion response", e);
+    }
+    return docs;
+  }
+}
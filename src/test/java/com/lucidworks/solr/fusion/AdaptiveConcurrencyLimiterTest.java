@@ -0,0 +1,89 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+
+public class AdaptiveConcurrencyLimiterTest extends TestCase {
+
+  private static final long MS = 1000000L;
+
+  public void testLimitGrowsWhileFusionKeepsUp() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 4, 2.0, 0.5);
+    for (int i = 0; i < 20; i++) {
+      // every call uses the full limit
+      int limit = limiter.getLimit();
+      for (int j = 0; j < limit; j++) {
+        assertTrue(limiter.acquire(0));
+      }
+      limiter.onSuccess(10 * MS, 1);
+      for (int j = 0; j < limit; j++) {
+        limiter.release();
+      }
+    }
+    assertEquals(4, limiter.getLimit());
+  }
+
+  public void testLimitDoesNotGrowWhenUnused() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 4, 2.0, 0.5);
+    for (int i = 0; i < 20; i++) {
+      assertTrue(limiter.acquire(0));
+      limiter.onSuccess(10 * MS, 1);
+      limiter.release();
+    }
+    assertEquals(2, limiter.getLimit());
+  }
+
+  public void testLimitShrinksOnFailuresAndSlowCalls() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 4, 2.0, 0.5);
+    limiter.onFailure();
+    assertEquals(2, limiter.getLimit());
+
+    limiter.onSuccess(1, 1);
+    // the no-load latency is 1ns, so the round trip since the last decrease is over
+    limiter.onSuccess(10 * MS, 1);
+    assertEquals(1, limiter.getLimit());
+    limiter.onFailure();
+    assertEquals("never below the minimum", 1, limiter.getLimit());
+  }
+
+  public void testSmallCallsDoNotMakeFullBatchesLookSlow() throws Exception {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 4, 2.0, 0.5);
+    // the remainder of a batch, flushed on finish
+    limiter.onSuccess(2 * MS, 3);
+    for (int i = 0; i < 20; i++) {
+      limiter.onSuccess(10 * MS, 100);
+    }
+    assertEquals(4, limiter.getLimit());
+    assertEquals(10.0, limiter.getStatistics().get("noLoadLatencyMs"));
+
+    // a full batch that is really slower
+    Thread.sleep(20);
+    limiter.onSuccess(30 * MS, 100);
+    assertEquals(2, limiter.getLimit());
+  }
+
+  public void testAcquireTimesOutAtTheLimit() throws Exception {
+    final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 2.0, 0.9);
+    assertTrue(limiter.acquire(0));
+    assertFalse(limiter.acquire(0));
+    long start = System.currentTimeMillis();
+    assertFalse(limiter.acquire(50));
+    assertTrue(System.currentTimeMillis() - start >= 50);
+
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        limiter.release();
+      }
+    };
+    releaser.start();
+    assertTrue(limiter.acquire(5000));
+    releaser.join();
+    assertEquals(1, limiter.getInFlight());
+    assertEquals(2L, limiter.getStatistics().get("timedOut"));
+  }
+}
@@ -0,0 +1,68 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.zip.GZIPInputStream;
+
+public class FormBodyTest extends TestCase {
+
+  public void testEncodingMatchesUrlEncoder() throws Exception {
+    String[] values = {"ipod nano", "a&b=c+d%", "caf\u00e9 \u20ac", "\ud83d\ude00 emoji", "broken \ud83d surrogate",
+      "~!*()'._-"};
+    for (String value : values) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      FormBody.encode(value, out);
+      assertEquals(URLEncoder.encode(value, "UTF-8"), out.toString("US-ASCII"));
+    }
+  }
+
+  public void testFilteredParamsAreLeftOut() throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "ipod");
+    params.add("fq", "type:a", "type:b");
+    params.add("debugQuery", "true");
+    params.add("debug", "timing");
+    FusionParamFilter filter = new FusionParamFilter(null, "debug*");
+
+    ByteArrayEntity entity = FormBody.encode(params, filter, -1, "isFusionPluginQuery", "true");
+    String body = EntityUtils.toString(entity);
+    assertEquals("q=ipod&fq=type%3Aa&fq=type%3Ab&isFusionPluginQuery=true", body);
+    assertNull(entity.getContentEncoding());
+
+    filter = new FusionParamFilter("q,f*", "fl");
+    assertTrue(filter.accept("fq"));
+    assertFalse(filter.accept("fl"));
+    assertFalse(filter.accept("rows"));
+    assertTrue(new FusionParamFilter(" ", null).isEmpty());
+  }
+
+  public void testLargeBodiesAreGzipped() throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    for (int i = 0; i < 500; i++) {
+      params.add("fq", "category:c" + i);
+    }
+    String plain = EntityUtils.toString(FormBody.encode(params, null, -1));
+
+    ByteArrayEntity entity = FormBody.encode(params, null, 1024);
+    assertEquals("gzip", entity.getContentEncoding().getValue());
+    assertTrue(entity.getContentLength() < plain.length() / 4);
+    InputStream in = new GZIPInputStream(entity.getContent());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0; ) {
+      out.write(buffer, 0, n);
+    }
+    assertEquals(plain, out.toString("UTF-8"));
+
+    // small bodies are not worth it
+    params = new ModifiableSolrParams();
+    params.add("q", "ipod");
+    assertNull(FormBody.encode(params, null, 1024).getContentEncoding());
+  }
+}
@@ -0,0 +1,122 @@
+package com.lucidworks.solr.fusion;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicResponseHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+public class FusionCircuitBreakerTest extends TestCase {
+
+  public void testOpensOnFailureRateAndRecovers() throws Exception {
+    FusionCircuitBreaker breaker = new FusionCircuitBreaker("test", 0.5, 0, 10, 4, 50, 2);
+
+    for (int i = 0; i < 3; i++) {
+      FusionCircuitBreaker.Permit permit = breaker.allowRequest();
+      assertNotNull(permit);
+      breaker.record(permit, i != 0, 1);
+    }
+    // 1 failure out of 3 calls, below the minimum number of calls anyway
+    assertEquals(FusionCircuitBreaker.State.CLOSED, breaker.getState());
+
+    breaker.record(breaker.allowRequest(), false, 1);
+    assertEquals(FusionCircuitBreaker.State.OPEN, breaker.getState());
+    assertNull(breaker.allowRequest());
+
+    Thread.sleep(60);
+    // half-open: only the probes are let through
+    FusionCircuitBreaker.Permit probe1 = breaker.allowRequest();
+    FusionCircuitBreaker.Permit probe2 = breaker.allowRequest();
+    assertNotNull(probe1);
+    assertNotNull(probe2);
+    assertNull(breaker.allowRequest());
+    assertEquals(FusionCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+    breaker.record(probe1, true, 1);
+    breaker.record(probe2, true, 1);
+    assertEquals(FusionCircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  public void testSlowCallsCountAsFailures() {
+    FusionCircuitBreaker breaker = new FusionCircuitBreaker("test", 0.5, 100, 4, 4, 1000, 1);
+    for (int i = 0; i < 4; i++) {
+      FusionCircuitBreaker.Permit permit = breaker.allowRequest();
+      assertNotNull(permit);
+      breaker.record(permit, true, 150);
+    }
+    assertEquals(FusionCircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  public void testFailedProbeReopens() throws Exception {
+    FusionCircuitBreaker breaker = new FusionCircuitBreaker("test", 0.5, 0, 1, 1, 10, 1);
+    breaker.record(breaker.allowRequest(), false, 1);
+    Thread.sleep(20);
+    FusionCircuitBreaker.Permit probe = breaker.allowRequest();
+    assertNotNull(probe);
+    breaker.record(probe, false, 1);
+    assertEquals(FusionCircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(2L, breaker.getStatistics().get("timesOpened"));
+  }
+
+  public void testLateOutcomesDoNotCountAsProbes() throws Exception {
+    FusionCircuitBreaker breaker = new FusionCircuitBreaker("test", 0.5, 0, 2, 2, 10, 1);
+    // started while closed, answered after the breaker opened
+    FusionCircuitBreaker.Permit slow = breaker.allowRequest();
+    breaker.record(breaker.allowRequest(), false, 1);
+    breaker.record(breaker.allowRequest(), false, 1);
+    assertEquals(FusionCircuitBreaker.State.OPEN, breaker.getState());
+    Thread.sleep(20);
+    FusionCircuitBreaker.Permit probe = breaker.allowRequest();
+    assertNotNull(probe);
+    assertEquals(FusionCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+    breaker.record(slow, true, 1);
+    assertEquals("a late success is not a probe", FusionCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.record(probe, true, 1);
+    assertEquals(FusionCircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  public void testDeadlineAbortsSlowCall() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/slow", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          Thread.sleep(2000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+
+    FusionCircuitBreaker breaker = new FusionCircuitBreaker("test", 0.5, 0, 1, 1, 60000, 1);
+    FusionClient client = new FusionClient(FusionClient.createHttpClient(10, 10, 0, 0), breaker, 100);
+    try {
+      long start = System.currentTimeMillis();
+      try {
+        client.execute(new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/slow"), new BasicResponseHandler());
+        fail("the call should have been aborted");
+      } catch (SocketTimeoutException e) {
+        assertTrue(System.currentTimeMillis() - start < 1500);
+      }
+
+      // the timed out call opened the breaker, the next call fails fast
+      try {
+        client.execute(new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/slow"), new BasicResponseHandler());
+        fail("the breaker should be open");
+      } catch (FusionCircuitBreaker.CircuitBreakerOpenException e) {
+        // expected
+      }
+    } finally {
+      client.close();
+      server.stop(0);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.lucidworks.solr.fusion;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FusionEndpointsTest extends TestCase {
+
+  private static final String FUSION_BASE_URL = "http://fusion:8764/api";
+
+  /**
+   * A Fusion node answering its name after 'delayMs', and its health check with 'pingStatus'.
+   */
+  private static class StubNode {
+    final HttpServer server;
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicInteger pingStatus = new AtomicInteger(200);
+    volatile long delayMs = 0;
+
+    StubNode(final String name) throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/api/collections", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          calls.incrementAndGet();
+          try {
+            Thread.sleep(delayMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          byte[] body = name.getBytes("UTF-8");
+          try {
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+          } catch (IOException e) {
+            // the hedge won and the client went away
+          }
+          exchange.close();
+        }
+      });
+      server.createContext("/api/system/ping", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          exchange.sendResponseHeaders(pingStatus.get(), -1);
+          exchange.close();
+        }
+      });
+      server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+      server.start();
+    }
+
+    String baseUrl() {
+      return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+  }
+
+  private StubNode a;
+  private StubNode b;
+  private HttpClient httpClient;
+
+  @Override
+  protected void setUp() throws Exception {
+    a = new StubNode("a");
+    b = new StubNode("b");
+    httpClient = FusionClient.createHttpClient(100, 20, 5000, 1000);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    a.server.stop(0);
+    b.server.stop(0);
+  }
+
+  private FusionClient client(String... baseUrls) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    StringBuilder list = new StringBuilder();
+    for (String baseUrl : baseUrls) {
+      list.append(list.length() > 0 ? "," : "").append(baseUrl);
+    }
+    params.set(FusionEndpoints.FUSION_ENDPOINTS_PARAM, list.toString());
+    params.set(FusionEndpoints.HEALTH_CHECK_INTERVAL_MS_PARAM, 0);
+    params.set(FusionEndpoints.EJECT_FAILURES_PARAM, 2);
+    return new FusionClient(httpClient, null, 5000,
+      FusionEndpoints.create("test", params, FUSION_BASE_URL, httpClient));
+  }
+
+  private static String call(FusionClient fusionClient) throws IOException {
+    return fusionClient.execute(new HttpGet(FUSION_BASE_URL + "/collections/c/select?q=x"), new BasicResponseHandler());
+  }
+
+  public void testCallsAreSpreadOverTheNodes() throws Exception {
+    FusionClient fusionClient = client(a.baseUrl(), b.baseUrl());
+    try {
+      for (int i = 0; i < 20; i++) {
+        call(fusionClient);
+      }
+      // sequential calls have no outstanding requests, the rotation spreads them evenly
+      assertEquals(10, a.calls.get());
+      assertEquals(10, b.calls.get());
+      // requests to another url are not rewritten
+      assertEquals("a", fusionClient.execute(new HttpGet(a.baseUrl() + "/collections/c/select"),
+        new BasicResponseHandler()));
+    } finally {
+      fusionClient.close();
+    }
+  }
+
+  public void testUnreachableNodeIsRetriedElsewhereAndEjected() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    String dead = "http://127.0.0.1:" + socket.getLocalPort() + "/api";
+    socket.close();
+
+    FusionClient fusionClient = client(dead, a.baseUrl());
+    try {
+      for (int i = 0; i < 10; i++) {
+        assertEquals("a", call(fusionClient));
+      }
+      FusionEndpoints.Endpoint deadEndpoint = fusionClient.getEndpoints().getEndpoints().get(0);
+      assertEquals(1, deadEndpoint.ejections.get());
+      // once ejected, the dead node is not tried anymore
+      assertEquals(2, deadEndpoint.calls.get());
+      assertEquals(2, fusionClient.getRetries());
+    } finally {
+      fusionClient.close();
+    }
+  }
+
+  public void testHealthCheck() throws Exception {
+    FusionEndpoints endpoints = new FusionEndpoints("test", FUSION_BASE_URL,
+      Arrays.asList(a.baseUrl(), b.baseUrl()), 5, 30000, "/system/ping", 1000);
+    FusionEndpoints.Endpoint endpointA = endpoints.getEndpoints().get(0);
+    a.pingStatus.set(503);
+    endpoints.checkHealth(httpClient, endpointA);
+    assertFalse(endpointA.healthy);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(b.baseUrl(), endpoints.select(null).getBaseUrl());
+    }
+    a.pingStatus.set(200);
+    endpoints.checkHealth(httpClient, endpointA);
+    assertTrue(endpointA.healthy);
+  }
+
+  public void testHealthChecksGoOnAfterAnUnexpectedError() throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    // not a valid url, the health check of this one throws an IllegalArgumentException
+    params.set(FusionEndpoints.FUSION_ENDPOINTS_PARAM, "http://bad host/api," + a.baseUrl());
+    params.set(FusionEndpoints.HEALTH_CHECK_INTERVAL_MS_PARAM, 20);
+    a.pingStatus.set(503);
+    FusionEndpoints endpoints = FusionEndpoints.create("test", params, FUSION_BASE_URL, httpClient);
+    try {
+      FusionEndpoints.Endpoint endpointA = endpoints.getEndpoints().get(1);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (endpointA.healthy && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertFalse(endpointA.healthy);
+      a.pingStatus.set(200);
+      deadline = System.currentTimeMillis() + 5000;
+      while (!endpointA.healthy && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(endpointA.healthy);
+    } finally {
+      endpoints.close();
+    }
+  }
+
+  public void testSlowNodeIsHedged() throws Exception {
+    a.delayMs = 2000;
+    FusionClient fusionClient = client(a.baseUrl(), b.baseUrl());
+    fusionClient.enableHedging(50, 1.0, 10);
+    try {
+      for (int i = 0; i < 6; i++) {
+        long start = System.currentTimeMillis();
+        assertEquals("b", call(fusionClient));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+      }
+      // the calls first sent to the slow node were hedged, and won by the hedge
+      assertTrue(fusionClient.getHedgeWins() > 0);
+      // the calls that lost to their hedge are neither successes nor failures, they end once aborted
+      long deadline = System.currentTimeMillis() + 1000;
+      while (fusionClient.getMetrics().getCancelled() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(fusionClient.getMetrics().getCancelled() > 0);
+      assertEquals(0, fusionClient.getMetrics().getErrors());
+    } finally {
+      fusionClient.close();
+    }
+  }
+
+  public void testHedgedCallsDoNotShareTheBodyBufferOfTheThread() throws Exception {
+    FusionClient fusionClient = client(a.baseUrl(), b.baseUrl());
+    fusionClient.enableHedging(50, 1.0, 10);
+    try {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.set("q", "first");
+      HttpPost post = new HttpPost(FUSION_BASE_URL + "/collections/c/select");
+      post.setEntity(FormBody.encode(params, null, -1));
+      fusionClient.execute(post, new BasicResponseHandler());
+
+      // the losing attempt may still be sending its body while the thread builds the next one
+      params.set("q", "other");
+      FormBody.encode(params, null, -1);
+      assertEquals("q=first", EntityUtils.toString(post.getEntity()));
+    } finally {
+      fusionClient.close();
+    }
+  }
+}
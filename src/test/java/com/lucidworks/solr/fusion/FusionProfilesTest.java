@@ -0,0 +1,188 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class FusionProfilesTest extends TestCase {
+
+  private File file;
+
+  static class TestProfile implements FusionProfiles.Profile {
+    final String name;
+    final long deadlineMs;
+    volatile boolean closed = false;
+
+    TestProfile(String name, SolrParams params) {
+      this.name = name;
+      this.deadlineMs = params.getLong("deadline_ms", 5000);
+      if (deadlineMs < 0) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "config 'deadline_ms' must not be negative");
+      }
+    }
+
+    public void close() {
+      if (closed) {
+        throw new IllegalStateException("closed twice");
+      }
+      closed = true;
+    }
+  }
+
+  private static final FusionProfiles.Builder<TestProfile> BUILDER = new FusionProfiles.Builder<TestProfile>() {
+    public TestProfile build(String name, SolrParams params) {
+      return new TestProfile(name, params);
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("fusion-profiles", ".properties");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  private NamedList<Object> args() {
+    NamedList<Object> experimental = new NamedList<Object>();
+    experimental.add("deadline_ms", "500");
+    NamedList<Object> profiles = new NamedList<Object>();
+    profiles.add("experimental", experimental);
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("deadline_ms", "2000");
+    args.add(FusionProfiles.PROFILES_PARAM, profiles);
+    return args;
+  }
+
+  private void write(String properties) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    out.write(properties.getBytes("UTF-8"));
+    out.close();
+  }
+
+  private static NamedList<Object> request(String profile) {
+    NamedList<Object> params = new NamedList<Object>();
+    if (profile != null) {
+      params.add(FusionProfiles.PROFILE_PARAM, profile);
+    }
+    return params;
+  }
+
+  public void testRequestsPickTheirProfile() throws Exception {
+    FusionProfiles<TestProfile> profiles = new FusionProfiles<TestProfile>("test", args(), BUILDER);
+    FusionProfiles.Lease<TestProfile> lease = profiles.select(new LocalSolrQueryRequest(null, request(null)).getParams());
+    assertEquals(2000, lease.get().deadlineMs);
+    lease.release();
+    lease = profiles.select(new LocalSolrQueryRequest(null, request("experimental")).getParams());
+    assertEquals(500, lease.get().deadlineMs);
+    lease.release();
+    try {
+      profiles.select(new LocalSolrQueryRequest(null, request("missing")).getParams());
+      fail("an unknown profile should be rejected");
+    } catch (SolrException e) {
+      assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+    }
+    profiles.close();
+    assertTrue(profiles.getDefault().closed);
+    assertTrue(profiles.get("experimental").closed);
+  }
+
+  public void testOnlyTheChangedProfilesAreRebuilt() throws Exception {
+    FusionProfiles<TestProfile> profiles = new FusionProfiles<TestProfile>("test", args(), BUILDER);
+    TestProfile defaultProfile = profiles.getDefault();
+    TestProfile experimental = profiles.get("experimental");
+
+    write("experimental.deadline_ms=100\ncanary.deadline_ms=50\n");
+    profiles.watch(file, 0);
+    assertSame(defaultProfile, profiles.getDefault());
+    assertNotSame(experimental, profiles.get("experimental"));
+    assertEquals(100, profiles.get("experimental").deadlineMs);
+    assertEquals(50, profiles.get("canary").deadlineMs);
+    // nothing holds the replaced profile
+    assertTrue(experimental.closed);
+
+    // an invalid profile keeps the current ones
+    write("experimental.deadline_ms=-1\n");
+    assertFalse(profiles.reload());
+    assertEquals(100, profiles.get("experimental").deadlineMs);
+    assertNotNull(profiles.get("canary"));
+
+    file.delete();
+    assertTrue(profiles.reload());
+    assertEquals(500, profiles.get("experimental").deadlineMs);
+    assertNull(profiles.get("canary"));
+
+    profiles.close();
+    assertTrue(defaultProfile.closed);
+    assertTrue(profiles.get("experimental").closed);
+  }
+
+  public void testReplacedProfileIsClosedWhenItsLastRequestIsDone() throws Exception {
+    FusionProfiles<TestProfile> profiles = new FusionProfiles<TestProfile>("test", args(), BUILDER);
+    // two long requests picked the profile before the reload
+    FusionProfiles.Lease<TestProfile> first = profiles.acquire("experimental");
+    FusionProfiles.Lease<TestProfile> second = profiles.select(new LocalSolrQueryRequest(null, request("experimental")).getParams());
+    TestProfile experimental = first.get();
+
+    write("experimental.deadline_ms=100\n");
+    profiles.watch(file, 0);
+    FusionProfiles.Lease<TestProfile> next = profiles.acquire("experimental");
+    assertEquals(100, next.get().deadlineMs);
+    next.release();
+
+    // however long they run, the requests keep the profile they picked
+    assertFalse(experimental.closed);
+    first.release();
+    assertFalse(experimental.closed);
+    second.release();
+    assertTrue(experimental.closed);
+
+    // the current one stays open without requests
+    assertFalse(profiles.get("experimental").closed);
+    profiles.close();
+    assertTrue(profiles.get("experimental").closed);
+  }
+
+  public void testLeasedProfilesAreClosedWithTheCore() throws Exception {
+    FusionProfiles<TestProfile> profiles = new FusionProfiles<TestProfile>("test", args(), BUILDER);
+    FusionProfiles.Lease<TestProfile> lease = profiles.acquire("experimental");
+    write("experimental.deadline_ms=100\n");
+    profiles.watch(file, 0);
+    profiles.close();
+    assertTrue(lease.get().closed);
+    // a late release does not close it twice
+    lease.release();
+  }
+
+  public void testNoThreadIsStartedUnlessTheFileIsReloaded() throws Exception {
+    FusionProfiles<TestProfile> profiles = new FusionProfiles<TestProfile>("unwatched", args(), BUILDER);
+    write("experimental.deadline_ms=100\n");
+    profiles.watch(file, 0);
+    assertFalse(hasThread("fusion-profiles-unwatched"));
+    profiles.close();
+
+    profiles = new FusionProfiles<TestProfile>("watched", args(), BUILDER);
+    profiles.watch(file, 60000);
+    assertTrue(hasThread("fusion-profiles-watched"));
+    profiles.close();
+  }
+
+  private static boolean hasThread(String name) {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals(name) && thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
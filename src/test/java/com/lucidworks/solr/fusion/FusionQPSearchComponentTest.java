@@ -1,13 +1,31 @@
 package com.lucidworks.solr.fusion;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import junit.framework.TestCase;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
 
 public class FusionQPSearchComponentTest extends TestCase {
   public void testFusionResponseProcessing() throws Exception {
@@ -41,4 +59,316 @@ public class FusionQPSearchComponentTest extends TestCase {
     assertNotNull(landingPages);
     assertEquals("www.lucidworks.com", landingPages.get(0));
   }
+
+  public void testFusionResponseStreamProcessing() throws Exception {
+    String fusionResponse = "{\"responseHeader\": {\"status\": 0}, \"fusion\": {" +
+        "\"rules\": {\"filters\": [\"type:a\"]}, " +
+        "\"query-params\": {\"q\": [\"ipod\"], \"rows\": 10}}}";
+
+    FusionPipelineResult result = FusionPipelineResult.parse(new ByteArrayInputStream(fusionResponse.getBytes("UTF-8")));
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    FusionQPSearchComponent.overlayFusionData(result, req, rsp);
+
+    assertEquals("ipod", req.getParams().get("q"));
+    assertEquals("10", req.getParams().get("rows"));
+    NamedList fusion = (NamedList) rsp.getValues().get("fusion");
+    assertEquals(1, fusion.size());
+    assertNotNull(fusion.get("rules"));
+    assertEquals(fusionResponse.length(), result.getWeight());
+  }
+
+  public void testParamsNotSentToThePipelineAreKept() throws Exception {
+    FusionPipelineResult result = FusionPipelineResult.parse(
+      "{\"fusion\": {\"query-params\": {\"q\": [\"ipod\"], \"wt\": [\"json\"]}}}");
+    NamedList<Object> original = new NamedList<Object>();
+    original.add("q", "IPod");
+    original.add("debugQuery", "true");
+    original.add("wt", "xml");
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, original);
+    result.apply(req, new SolrQueryResponse(), new FusionParamFilter(null, "debugQuery,wt"));
+
+    assertEquals("ipod", req.getParams().get("q"));
+    assertEquals("true", req.getParams().get("debugQuery"));
+    // what the pipeline returned wins
+    assertEquals("json", req.getParams().get("wt"));
+  }
+
+  public void testDeltaIsLayeredOverTheRequestParams() throws Exception {
+    FusionPipelineResult result = FusionPipelineResult.parse("{\"fusion\": {" +
+      "\"query-params\": {\"q\": \"ipod\"}, " +
+      "\"add-params\": {\"fq\": [\"type:a\"], \"boost\": \"popularity\"}, " +
+      "\"remove-params\": [\"debugQuery\"], \"landing-pages\": []}}");
+    NamedList<Object> original = new NamedList<Object>();
+    original.add("q", "IPod");
+    original.add("fq", "inStock:true");
+    original.add("debugQuery", "true");
+    original.add("rows", "10");
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, original);
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    result.applyDelta(req, rsp);
+
+    SolrParams p = req.getParams();
+    assertEquals("ipod", p.get("q"));
+    assertEquals(1, p.getParams("q").length);
+    assertEquals(Arrays.asList("inStock:true", "type:a"), Arrays.asList(p.getParams("fq")));
+    assertNull(p.get("debugQuery"));
+    assertEquals("10", p.get("rows"));
+    assertEquals("popularity", p.get("boost"));
+    List<String> names = new ArrayList<String>();
+    for (Iterator<String> it = p.getParameterNamesIterator(); it.hasNext(); ) {
+      names.add(it.next());
+    }
+    assertEquals(Arrays.asList("q", "fq", "rows", "boost"), names);
+    assertNotNull(((NamedList) rsp.getValues().get("fusion")).get("landing-pages"));
+    assertNull(((NamedList) rsp.getValues().get("fusion")).get("remove-params"));
+
+    // a response with only a delta keeps the request params in replace mode too
+    req = new LocalSolrQueryRequest(null, original);
+    FusionPipelineResult.parse("{\"fusion\": {\"remove-params\": \"debugQuery\"}}").apply(req, new SolrQueryResponse());
+    assertEquals("IPod", req.getParams().get("q"));
+    assertNull(req.getParams().get("debugQuery"));
+  }
+
+  public void testSlowFusionIsNotWaitedForPastTheSoftDeadline() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/api/collections", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        EntityUtils.consume(new InputStreamEntity(exchange.getRequestBody(), -1));
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        byte[] body = "{\"fusion\": {\"query-params\": {\"q\": [\"ipod\"]}}}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    FusionQPSearchComponent component = new FusionQPSearchComponent();
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("fusion_base_url", "http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+    args.add("collection_name", "c");
+    args.add(FusionQPSearchComponent.SOFT_DEADLINE_MS_PARAM, "100");
+    args.add(FusionQPSearchComponent.CACHE_SIZE_PARAM, "10");
+    component.init(args);
+    try {
+      long start = System.currentTimeMillis();
+      ResponseBuilder rb = search("IPod");
+      component.prepare(rb);
+      assertTrue(System.currentTimeMillis() - start < 400);
+      assertEquals("IPod", rb.req.getParams().get("q"));
+      assertEquals(FusionQPSearchComponent.PATH_ORIGINAL, rb.rsp.getResponseHeader().get(FusionQPSearchComponent.FUSION_PATH));
+
+      // the late answer still made it to the cache
+      NamedList speculation = (NamedList) component.getStatistics().get("speculation");
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!Long.valueOf(1).equals(speculation.get("lateAnswers")) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+        speculation = (NamedList) component.getStatistics().get("speculation");
+      }
+      rb = search("IPod");
+      component.prepare(rb);
+      assertEquals("ipod", rb.req.getParams().get("q"));
+      assertEquals(FusionQPSearchComponent.PATH_CACHE, rb.rsp.getResponseHeader().get(FusionQPSearchComponent.FUSION_PATH));
+      assertEquals(1L, speculation.get("abandoned"));
+      assertEquals(1L, speculation.get("lateAnswers"));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  public void testMoreConcurrentQueriesThanConnectionsAllWaitForFusion() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/api/collections", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        EntityUtils.consume(new InputStreamEntity(exchange.getRequestBody(), -1));
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        byte[] body = "{\"fusion\": {\"query-params\": {\"q\": [\"ipod\"]}}}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    final FusionQPSearchComponent component = new FusionQPSearchComponent();
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("fusion_base_url", "http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+    args.add("collection_name", "c");
+    args.add(FusionQPSearchComponent.SOFT_DEADLINE_MS_PARAM, "5000");
+    args.add(FusionUpdateProcessorFactory.MAX_CONNECTIONS_PER_HOST_PARAM, "2");
+    component.init(args);
+    try {
+      final List<Object> paths = new CopyOnWriteArrayList<Object>();
+      Thread[] queries = new Thread[8];
+      for (int i = 0; i < queries.length; i++) {
+        final String q = "ipod " + i;
+        queries[i] = new Thread() {
+          public void run() {
+            try {
+              ResponseBuilder rb = search(q);
+              component.prepare(rb);
+              paths.add(rb.rsp.getResponseHeader().get(FusionQPSearchComponent.FUSION_PATH));
+            } catch (Exception e) {
+              paths.add(e);
+            }
+          }
+        };
+        queries[i].start();
+      }
+      for (Thread query : queries) {
+        query.join();
+      }
+      assertEquals(Collections.nCopies(8, FusionQPSearchComponent.PATH_FUSION), paths);
+      NamedList speculation = (NamedList) component.getStatistics().get("speculation");
+      assertEquals(0L, speculation.get("saturated"));
+      assertEquals(0L, speculation.get("abandoned"));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  public void testRequestsAreRoutedToTheirProfile() throws Exception {
+    final List<String> paths = new ArrayList<String>();
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/api/collections", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        EntityUtils.consume(new InputStreamEntity(exchange.getRequestBody(), -1));
+        synchronized (paths) {
+          paths.add(exchange.getRequestURI().getPath());
+        }
+        byte[] body = "{\"fusion\": {\"query-params\": {\"q\": [\"ipod\"]}}}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    NamedList<Object> experimental = new NamedList<Object>();
+    experimental.add(FusionQPSearchComponent.QUERY_PROFILE_PARAM, "experimental");
+    experimental.add(FusionQPSearchComponent.CACHE_SIZE_PARAM, "0");
+    NamedList<Object> profiles = new NamedList<Object>();
+    profiles.add("experimental", experimental);
+    FusionQPSearchComponent component = new FusionQPSearchComponent();
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("fusion_base_url", "http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+    args.add("collection_name", "c");
+    args.add(FusionQPSearchComponent.CACHE_SIZE_PARAM, "10");
+    args.add(FusionProfiles.PROFILES_PARAM, profiles);
+    component.init(args);
+    try {
+      component.prepare(search("IPod"));
+      ResponseBuilder rb = search("IPod");
+      rb.req.setParams(SolrParams.toSolrParams(params("IPod", FusionProfiles.PROFILE_PARAM, "experimental")));
+      component.prepare(rb);
+      assertEquals("ipod", rb.req.getParams().get("q"));
+      assertEquals(Arrays.asList("/api/collections/c/query-profiles/default/select",
+        "/api/collections/c/query-profiles/experimental/select"), paths);
+
+      // each profile has its own client and cache
+      FusionQPSearchComponent.QueryProfile defaultProfile = component.getProfiles().getDefault();
+      FusionQPSearchComponent.QueryProfile experimentalProfile = component.getProfiles().get("experimental");
+      assertNotSame(defaultProfile.fusionClient, experimentalProfile.fusionClient);
+      assertNotNull(defaultProfile.cache);
+      assertNull(experimentalProfile.cache);
+
+      // a base url given by a request is used by that request only
+      rb = search("IPod");
+      rb.req.setParams(SolrParams.toSolrParams(params("shoes", "fusion_base_url", "http://127.0.0.1:1/api")));
+      component.prepare(rb);
+      assertEquals(FusionQPSearchComponent.PATH_ORIGINAL, rb.rsp.getResponseHeader().get(FusionQPSearchComponent.FUSION_PATH));
+      rb = search("boots");
+      component.prepare(rb);
+      assertEquals(FusionQPSearchComponent.PATH_FUSION, rb.rsp.getResponseHeader().get(FusionQPSearchComponent.FUSION_PATH));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  public void testSnapshottedPipelineRunsLocally() throws Exception {
+    final List<String> paths = new ArrayList<String>();
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/api", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        EntityUtils.consume(new InputStreamEntity(exchange.getRequestBody(), -1));
+        String path = exchange.getRequestURI().getPath();
+        synchronized (paths) {
+          paths.add(path);
+        }
+        byte[] body = (path.endsWith("/query-pipelines/products") ? LocalPipelineTest.PIPELINE :
+          "{\"fusion\": {\"query-params\": {\"q\": [\"ipod\"]}}}").getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    FusionQPSearchComponent component = new FusionQPSearchComponent();
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("fusion_base_url", "http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+    args.add("collection_name", "c");
+    args.add(FusionQPSearchComponent.LOCAL_PIPELINE_PARAM, "products");
+    args.add(FusionQPSearchComponent.LOCAL_VERIFY_RATE_PARAM, "0");
+    component.init(args);
+    try {
+      LocalPipeline pipeline = component.getProfiles().getDefault().localPipeline;
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!pipeline.isActive() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(pipeline.isActive());
+
+      ResponseBuilder rb = search("IPod");
+      component.prepare(rb);
+      assertEquals(FusionQPSearchComponent.PATH_LOCAL, rb.rsp.getResponseHeader().get(FusionQPSearchComponent.FUSION_PATH));
+      assertEquals("IPod", rb.req.getParams().get("q"));
+      assertEquals("name^2.0 text", rb.req.getParams().get("qf"));
+      assertEquals(Arrays.asList("/api/query-pipelines/products"), paths);
+    } finally {
+      component.getProfiles().close();
+      server.stop(0);
+    }
+  }
+
+  private static NamedList<Object> params(String q, String name, String value) {
+    NamedList<Object> params = new NamedList<Object>();
+    params.add("q", q);
+    params.add(name, value);
+    return params;
+  }
+
+  private static ResponseBuilder search(String q) {
+    NamedList<Object> params = new NamedList<Object>();
+    params.add("q", q);
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    rsp.add("responseHeader", new SimpleOrderedMap<Object>());
+    return new ResponseBuilder(new LocalSolrQueryRequest(null, params), rsp, new ArrayList<SearchComponent>());
+  }
+
+  public void testResponseWithoutQueryParamsIsRejected() throws Exception {
+    try {
+      FusionPipelineResult.parse("{\"fusion\": {\"landing-pages\": []}}");
+      fail("a response without query-params should not be applied");
+    } catch (IOException e) {
+      // expected
+    }
+  }
 }
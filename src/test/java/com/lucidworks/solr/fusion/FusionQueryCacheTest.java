@@ -0,0 +1,95 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class FusionQueryCacheTest extends TestCase {
+
+  public void testCanonicalKey() {
+    Set<String> ignored = new HashSet<String>(Collections.singletonList("_"));
+
+    ModifiableSolrParams a = new ModifiableSolrParams();
+    a.add("q", "ipod");
+    a.add("fq", "type:a", "type:b");
+    a.add("_", "12345");
+
+    ModifiableSolrParams b = new ModifiableSolrParams();
+    b.add("fq", "type:a", "type:b");
+    b.add("q", "ipod");
+
+    ModifiableSolrParams c = new ModifiableSolrParams();
+    c.add("fq", "type:b", "type:a");
+    c.add("q", "ipod");
+
+    assertEquals(FusionQueryCache.canonicalKey(a, ignored), FusionQueryCache.canonicalKey(b, ignored));
+    assertFalse(FusionQueryCache.canonicalKey(b, ignored).equals(FusionQueryCache.canonicalKey(c, ignored)));
+
+    // separators in values must not make different params collide
+    ModifiableSolrParams d = new ModifiableSolrParams();
+    d.add("q", "a&fq=b");
+    ModifiableSolrParams e = new ModifiableSolrParams();
+    e.add("q", "a");
+    e.add("fq", "b");
+    assertFalse(FusionQueryCache.canonicalKey(d, ignored).equals(FusionQueryCache.canonicalKey(e, ignored)));
+  }
+
+  public void testCanonicalKeyIsReversible() {
+    Set<String> ignored = Collections.emptySet();
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "a&fq=b\\c");
+    params.add("fq", "type:a", "type:b");
+    String key = FusionQueryCache.canonicalKey(params, ignored);
+    ModifiableSolrParams parsed = FusionQueryCache.parseCanonicalKey(key);
+    assertEquals("a&fq=b\\c", parsed.get("q"));
+    assertEquals(2, parsed.getParams("fq").length);
+    assertEquals(key, FusionQueryCache.canonicalKey(parsed, ignored));
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    FusionQueryCache cache = new FusionQueryCache(2, 0, 0);
+    cache.put("a", result(1));
+    cache.put("b", result(1));
+    assertNotNull(cache.get("a"));
+    cache.put("c", result(1));
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+
+    NamedList stats = cache.getStatistics();
+    assertEquals(3L, stats.get("hits"));
+    assertEquals(1L, stats.get("misses"));
+    assertEquals(1L, stats.get("evictions"));
+  }
+
+  public void testWeightBound() {
+    FusionQueryCache cache = new FusionQueryCache(100, 10, 0);
+    cache.put("a", result(4));
+    cache.put("b", result(4));
+    cache.put("c", result(4));
+    assertEquals(2, cache.size());
+    assertNull(cache.get("a"));
+
+    // too heavy to be cached at all
+    cache.put("d", result(11));
+    assertNull(cache.get("d"));
+    assertEquals(8L, cache.getStatistics().get("weight"));
+  }
+
+  public void testExpiredEntriesAreNotServed() throws Exception {
+    FusionQueryCache cache = new FusionQueryCache(10, 0, 1);
+    cache.put("a", result(1));
+    Thread.sleep(10);
+    assertNull(cache.get("a"));
+    assertEquals(1L, cache.getStatistics().get("expirations"));
+  }
+
+  private static FusionPipelineResult result(long weight) {
+    return new FusionPipelineResult(new ModifiableSolrParams(), new NamedList(), weight);
+  }
+}
@@ -0,0 +1,73 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class FusionQueryWarmerTest extends TestCase {
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("fusion-warm-queries", ".txt");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  private static String key(String q) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", q);
+    params.add("fq", "type:a");
+    return FusionQueryCache.canonicalKey(params, Collections.<String>emptySet());
+  }
+
+  public void testTheMostFrequentRequestsAreSavedAndWarmed() throws Exception {
+    final Set<String> warmed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    FusionQueryWarmer.Target target = new FusionQueryWarmer.Target() {
+      public boolean warm(SolrParams params) {
+        return warmed.add(FusionQueryCache.canonicalKey(params, Collections.<String>emptySet()));
+      }
+    };
+
+    FusionQueryWarmer warmer = new FusionQueryWarmer(file, 2, 2, true, false, target);
+    // nothing captured nor saved yet
+    assertTrue(warmer.warm().await(5, TimeUnit.SECONDS));
+    assertTrue(warmed.isEmpty());
+    for (int i = 0; i < 10; i++) {
+      warmer.record(key("ipod & nano"));
+    }
+    for (int i = 0; i < 5; i++) {
+      warmer.record(key("shoes"));
+    }
+    warmer.record(key("rare"));
+    warmer.close();
+
+    List<String> saved = new FusionQueryWarmer(file, 10, 1, false, false, target).read();
+    assertEquals(2, saved.size());
+    assertTrue(saved.get(0).contains("ipod"));
+
+    // the next core warms its cache with them
+    warmer = new FusionQueryWarmer(file, 2, 2, true, false, target);
+    assertTrue(warmer.warm().await(5, TimeUnit.SECONDS));
+    assertEquals(2, warmed.size());
+    assertTrue(warmed.contains(key("ipod & nano")));
+    assertTrue(warmed.contains(key("shoes")));
+
+    // the saved queries are kept by a save that comes before any request
+    warmer.save();
+    assertEquals(saved, warmer.read());
+    warmer.close();
+  }
+}
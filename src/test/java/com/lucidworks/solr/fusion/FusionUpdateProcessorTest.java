@@ -0,0 +1,580 @@
+package com.lucidworks.solr.fusion;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.UpdateCommand;
+import org.apache.solr.update.processor.DistributedUpdateProcessor.DistribPhase;
+import org.apache.solr.update.processor.DistributingUpdateProcessorFactory;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FusionUpdateProcessorTest extends TestCase {
+
+  private HttpServer server;
+  private final AtomicInteger fusionCalls = new AtomicInteger();
+  private final AtomicInteger activeCalls = new AtomicInteger();
+  private final AtomicInteger maxActiveCalls = new AtomicInteger();
+  private FusionUpdateProcessorFactory factory;
+  // the formats the stand-in can answer with, anything else is answered with XML
+  private final List<String> responseFormats = new ArrayList<String>();
+  private volatile String requestContentType;
+
+  @Override
+  protected void setUp() throws Exception {
+    responseFormats.add(FusionDocumentCodec.XML);
+    responseFormats.add(FusionDocumentCodec.JAVABIN);
+    responseFormats.add(FusionDocumentCodec.JSON);
+    // a stand-in for the Fusion index-profile: adds an 'enriched' field to every document
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/api/collections/test/index-profiles/default/index", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        fusionCalls.incrementAndGet();
+        int concurrent = activeCalls.incrementAndGet();
+        while (concurrent > maxActiveCalls.get()) {
+          maxActiveCalls.compareAndSet(maxActiveCalls.get(), concurrent);
+        }
+        try {
+          // read the format we were sent and answer in the first format the client accepts
+          FusionDocumentCodec requestCodec =
+            FusionDocumentCodec.forContentType(exchange.getRequestHeaders().getFirst("Content-Type"));
+          requestContentType = requestCodec.getContentType();
+          List<SolrInputDocument> docs = requestCodec.read(exchange.getRequestBody());
+          FusionDocumentCodec responseCodec =
+            FusionDocumentCodec.forContentType(exchange.getRequestHeaders().getFirst("Accept").split(",")[0]);
+          if (!responseFormats.contains(responseCodec.getName())) {
+            responseCodec = FusionDocumentCodec.forName(FusionDocumentCodec.XML);
+          }
+          for (SolrInputDocument doc : docs) {
+            // documents can ask the stand-in to be slow or to fail
+            if (doc.getFieldValue("sleep_ms") != null) {
+              Thread.sleep(Long.parseLong(doc.getFieldValue("sleep_ms").toString()));
+            }
+            if (doc.getFieldValue("fail") != null) {
+              throw new IOException("failing on purpose");
+            }
+            doc.addField("enriched", "true");
+          }
+          ByteArrayOutputStream body = new ByteArrayOutputStream();
+          responseCodec.write(docs, body);
+          exchange.getResponseHeaders().add("Content-Type", responseCodec.getContentType());
+          exchange.sendResponseHeaders(200, body.size());
+          OutputStream out = exchange.getResponseBody();
+          body.writeTo(out);
+          out.close();
+        } catch (Exception e) {
+          exchange.sendResponseHeaders(500, -1);
+          exchange.close();
+        } finally {
+          activeCalls.decrementAndGet();
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (factory != null) {
+      factory.close();
+    }
+    server.stop(0);
+  }
+
+  public void testBatchedDocumentsKeepOrder() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.BATCH_SIZE_PARAM, "3");
+
+    CollectingProcessor next = new CollectingProcessor();
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    UpdateRequestProcessor processor = newProcessor(args, req, next);
+
+    // the same command instance is re-used, like the update loaders do
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    for (int i = 0; i < 5; i++) {
+      cmd.clear();
+      cmd.solrDoc = new SolrInputDocument();
+      cmd.solrDoc.addField("id", "doc" + i);
+      processor.processAdd(cmd);
+    }
+    assertEquals(1, fusionCalls.get());
+    assertEquals(3, next.docs.size());
+
+    processor.processCommit(new CommitUpdateCommand(req, false));
+    assertEquals(2, fusionCalls.get());
+    assertEquals(5, next.docs.size());
+    assertTrue(next.committed);
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals("doc" + i, next.docs.get(i).getFieldValue("id"));
+      assertEquals("true", next.docs.get(i).getFieldValue("enriched"));
+    }
+  }
+
+  public void testSingleDocumentMode() throws Exception {
+    CollectingProcessor next = new CollectingProcessor();
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    UpdateRequestProcessor processor = newProcessor(baseArgs(), req, next);
+
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    cmd.solrDoc = new SolrInputDocument();
+    cmd.solrDoc.addField("id", "doc1");
+    processor.processAdd(cmd);
+
+    assertEquals(1, fusionCalls.get());
+    assertEquals(1, next.docs.size());
+    assertEquals("true", next.docs.get(0).getFieldValue("enriched"));
+
+    FusionCallMetrics metrics = factory.getFusionClient().getMetrics();
+    assertEquals(1, metrics.getCalls());
+    assertEquals(1, metrics.getSuccesses());
+    assertEquals(0, metrics.getInFlight());
+    assertTrue(metrics.getBytesSent() > 0);
+    assertTrue(metrics.getBytesReceived() > metrics.getBytesSent());
+    assertEquals(1, metrics.getTotal().getCount());
+    assertEquals(1, metrics.getParse().getCount());
+    assertNotNull(factory.getFusionClient().getStatistics().get("pool"));
+  }
+
+  public void testJavaBinWireFormat() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.BATCH_SIZE_PARAM, "2");
+    args.add(FusionUpdateProcessor.WIRE_FORMAT_PARAM, "javabin");
+    List<SolrInputDocument> docs = addTypedDocs(args);
+
+    assertEquals(JavaBinDocumentCodec.JAVABIN, requestContentType);
+    assertTypedDocs(docs);
+    // javabin keeps the types of the values
+    assertEquals(Long.valueOf(42), docs.get(0).getFieldValue("count_l"));
+    assertTrue(docs.get(0).getFieldValue("date_dt") instanceof Date);
+  }
+
+  public void testJsonWireFormat() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.BATCH_SIZE_PARAM, "2");
+    args.add(FusionUpdateProcessor.WIRE_FORMAT_PARAM, "json");
+    List<SolrInputDocument> docs = addTypedDocs(args);
+
+    assertEquals(JsonDocumentCodec.JSON, requestContentType);
+    assertTypedDocs(docs);
+    assertEquals(42, ((Number) docs.get(0).getFieldValue("count_l")).intValue());
+  }
+
+  public void testFallsBackToTheFormatOfTheResponse() throws Exception {
+    // a Fusion that only answers in XML, whatever it is sent
+    responseFormats.remove(FusionDocumentCodec.JAVABIN);
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.BATCH_SIZE_PARAM, "2");
+    args.add(FusionUpdateProcessor.WIRE_FORMAT_PARAM, "javabin");
+    List<SolrInputDocument> docs = addTypedDocs(args);
+
+    assertEquals(JavaBinDocumentCodec.JAVABIN, requestContentType);
+    assertTypedDocs(docs);
+  }
+
+  public void testPipelinedCallsKeepOrder() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.MAX_IN_FLIGHT_PARAM, "4");
+
+    CollectingProcessor next = new CollectingProcessor();
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    UpdateRequestProcessor processor = newProcessor(args, req, next);
+
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    for (int i = 0; i < 8; i++) {
+      cmd.clear();
+      cmd.solrDoc = new SolrInputDocument();
+      cmd.solrDoc.addField("id", "doc" + i);
+      // the first documents of each window come back last
+      cmd.solrDoc.addField("sleep_ms", String.valueOf(100 - (i % 4) * 30));
+      processor.processAdd(cmd);
+    }
+    processor.finish();
+
+    assertEquals(8, fusionCalls.get());
+    assertTrue("calls were not made concurrently", maxActiveCalls.get() > 1);
+    assertTrue(maxActiveCalls.get() <= 4);
+    assertEquals(8, next.docs.size());
+    for (int i = 0; i < 8; i++) {
+      assertEquals("doc" + i, next.docs.get(i).getFieldValue("id"));
+      assertEquals("true", next.docs.get(i).getFieldValue("enriched"));
+    }
+  }
+
+  public void testFailurePolicy() throws Exception {
+    // by default the original document is indexed
+    CollectingProcessor next = new CollectingProcessor();
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    UpdateRequestProcessor processor = newProcessor(baseArgs(), req, next);
+    processor.processAdd(failingAdd(req));
+    assertEquals(1, next.docs.size());
+    assertNull(next.docs.get(0).getFieldValue("enriched"));
+    factory.close();
+
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.MAX_IN_FLIGHT_PARAM, "2");
+    args.add(FusionUpdateProcessor.FAILURE_POLICY_PARAM, "fail");
+    next = new CollectingProcessor();
+    processor = newProcessor(args, req, next);
+    try {
+      processor.processAdd(failingAdd(req));
+      processor.finish();
+      fail("the update request should fail");
+    } catch (SolrException e) {
+      // expected
+    }
+    assertTrue(next.docs.isEmpty());
+  }
+
+  public void testSkipCacheReusesThePipelineOutput() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessorFactory.SKIP_CACHE_PARAM, "heap");
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+
+    // the nightly feed sends the same documents, one of them changed
+    for (int night = 0; night < 2; night++) {
+      CollectingProcessor next = new CollectingProcessor();
+      UpdateRequestProcessor processor = night == 0 ? newProcessor(args, req, next) : factory.getInstance(req, null, next);
+      AddUpdateCommand cmd = new AddUpdateCommand(req);
+      for (int i = 0; i < 3; i++) {
+        cmd.clear();
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.addField("id", "doc" + i);
+        cmd.solrDoc.addField("price_d", night == 1 && i == 2 ? 9.99 : 19.99);
+        processor.processAdd(cmd);
+      }
+      processor.finish();
+
+      assertEquals(3, next.docs.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals("doc" + i, next.docs.get(i).getFieldValue("id"));
+        assertEquals("true", next.docs.get(i).getFieldValue("enriched"));
+      }
+    }
+    // only the changed document was sent again
+    assertEquals(4, fusionCalls.get());
+    assertEquals(2, factory.getSkipCache().getHits());
+  }
+
+  public void testLeaderSkipsUnchangedDocumentsWithANewVersion() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.DISTRIB_MODE_PARAM, "leader");
+    args.add(FusionUpdateProcessorFactory.SKIP_CACHE_PARAM, "heap");
+    NamedList leaderParams = new NamedList();
+    leaderParams.add(DistributingUpdateProcessorFactory.DISTRIB_UPDATE_PARAM, DistribPhase.TOLEADER.toString());
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, leaderParams);
+
+    // the leader assigns a new version to every update of the same document
+    for (long version = 1; version <= 2; version++) {
+      CollectingProcessor next = new CollectingProcessor();
+      UpdateRequestProcessor processor = version == 1 ? newProcessor(args, req, next) : factory.getInstance(req, null, next);
+      AddUpdateCommand cmd = new AddUpdateCommand(req);
+      cmd.solrDoc = new SolrInputDocument();
+      cmd.solrDoc.addField("id", "doc1");
+      cmd.solrDoc.addField("price_d", 19.99);
+      cmd.solrDoc.addField("_version_", version);
+      processor.processAdd(cmd);
+      processor.finish();
+
+      assertEquals("true", cmd.solrDoc.getFieldValue("enriched"));
+      assertEquals(String.valueOf(version), String.valueOf(cmd.solrDoc.getFieldValue("_version_")));
+    }
+    assertEquals(1, fusionCalls.get());
+    assertEquals(1, factory.getSkipCache().getHits());
+  }
+
+  public void testChildDocumentsOfAVersionedDocumentAreKept() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.DISTRIB_MODE_PARAM, "leader");
+    NamedList leaderParams = new NamedList();
+    leaderParams.add(DistributingUpdateProcessorFactory.DISTRIB_UPDATE_PARAM, DistribPhase.TOLEADER.toString());
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, leaderParams);
+    UpdateRequestProcessor processor = newProcessor(args, req, new CollectingProcessor());
+
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    cmd.solrDoc = new SolrInputDocument();
+    cmd.solrDoc.addField("id", "parent");
+    cmd.solrDoc.addField("_version_", 7L);
+    SolrInputDocument child = new SolrInputDocument();
+    child.addField("id", "child");
+    cmd.solrDoc.addChildDocument(child);
+    processor.processAdd(cmd);
+    processor.finish();
+
+    assertEquals("true", cmd.solrDoc.getFieldValue("enriched"));
+    assertEquals("7", String.valueOf(cmd.solrDoc.getFieldValue("_version_")));
+    assertTrue(cmd.solrDoc.hasChildDocuments());
+    assertEquals(1, cmd.solrDoc.getChildDocuments().size());
+    assertEquals("child", cmd.solrDoc.getChildDocuments().get(0).getFieldValue("id"));
+  }
+
+  public void testMappedSkipCacheFileIsOpenedOnce() throws Exception {
+    File path = File.createTempFile("fusion-skip-cache", ".bin");
+    path.delete();
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessorFactory.SKIP_CACHE_PARAM, "mmap");
+    args.add(FusionUpdateProcessorFactory.SKIP_CACHE_PATH_PARAM, path.getAbsolutePath());
+    args.add(FusionUpdateProcessorFactory.SKIP_CACHE_SIZE_PARAM, "1024");
+    args.add(FusionUpdateProcessorFactory.SKIP_CACHE_DATA_BYTES_PARAM, "65536");
+    args.add(FusionUpdateProcessorFactory.SKIP_CACHE_VERSION_PARAM, "1");
+    factory = new FusionUpdateProcessorFactory();
+    factory.init(args);
+
+    // the reloaded core comes up before the old one is closed, with other sizes and a new version
+    NamedList reloadedArgs = baseArgs();
+    reloadedArgs.add(FusionUpdateProcessorFactory.SKIP_CACHE_PARAM, "mmap");
+    reloadedArgs.add(FusionUpdateProcessorFactory.SKIP_CACHE_PATH_PARAM, path.getAbsolutePath());
+    reloadedArgs.add(FusionUpdateProcessorFactory.SKIP_CACHE_SIZE_PARAM, "512");
+    reloadedArgs.add(FusionUpdateProcessorFactory.SKIP_CACHE_DATA_BYTES_PARAM, "32768");
+    reloadedArgs.add(FusionUpdateProcessorFactory.SKIP_CACHE_VERSION_PARAM, "2");
+    FusionUpdateProcessorFactory reloaded = new FusionUpdateProcessorFactory();
+    reloaded.init(reloadedArgs);
+    try {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", "doc1");
+      DocumentSkipCache cache = factory.getSkipCache();
+      cache.put(cache.key(doc), doc);
+      assertNotNull(cache.get(cache.key(doc)));
+      // the same store, the entries of the old version are not used
+      DocumentSkipCache reloadedCache = reloaded.getSkipCache();
+      assertNull(reloadedCache.get(reloadedCache.key(doc)));
+      reloadedCache.put(reloadedCache.key(doc), doc);
+
+      factory.close();
+      factory = null;
+      assertNotNull(reloadedCache.get(reloadedCache.key(doc)));
+      try {
+        new MappedResultStore(path, 1024, 65536);
+        fail("the file is open");
+      } catch (IOException e) {
+        // expected
+      }
+    } finally {
+      reloaded.close();
+    }
+    // closed with the last core using it
+    new MappedResultStore(path, 1024, 65536).close();
+    path.delete();
+  }
+
+  public void testOnlyTheProjectedFieldsGoToFusion() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.BATCH_SIZE_PARAM, "2");
+    args.add(FusionUpdateProcessor.EXCLUDE_FIELDS_PARAM, "body_*,fail");
+    CollectingProcessor next = new CollectingProcessor();
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    UpdateRequestProcessor processor = newProcessor(args, req, next);
+
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    for (int i = 0; i < 2; i++) {
+      cmd.clear();
+      cmd.solrDoc = new SolrInputDocument();
+      cmd.solrDoc.addField("id", "doc" + i);
+      cmd.solrDoc.addField("title_t", "title " + i);
+      cmd.solrDoc.addField("body_t", "a long body that the pipeline never reads");
+      // the stand-in fails the documents that reach it with this field
+      cmd.solrDoc.addField("fail", "true");
+      processor.processAdd(cmd);
+    }
+    processor.finish();
+
+    assertEquals(1, factory.getFusionClient().getMetrics().getSuccesses());
+    assertEquals(2, next.docs.size());
+    for (int i = 0; i < 2; i++) {
+      SolrInputDocument doc = next.docs.get(i);
+      assertEquals("doc" + i, doc.getFieldValue("id"));
+      assertEquals("title " + i, doc.getFieldValue("title_t"));
+      assertEquals("true", doc.getFieldValue("enriched"));
+      assertEquals("a long body that the pipeline never reads", doc.getFieldValue("body_t"));
+      assertEquals("true", doc.getFieldValue("fail"));
+    }
+  }
+
+  public void testConcurrencyLimitPushesBack() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.MAX_IN_FLIGHT_PARAM, "4");
+    args.add(FusionUpdateProcessorFactory.ADAPTIVE_CONCURRENCY_PARAM, "true");
+    args.add(FusionUpdateProcessorFactory.CONCURRENCY_INITIAL_LIMIT_PARAM, "2");
+    args.add(FusionUpdateProcessorFactory.CONCURRENCY_MAX_LIMIT_PARAM, "2");
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+
+    // by default the update request waits for a permit
+    CollectingProcessor next = new CollectingProcessor();
+    UpdateRequestProcessor processor = newProcessor(args, req, next);
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    for (int i = 0; i < 6; i++) {
+      cmd.clear();
+      cmd.solrDoc = new SolrInputDocument();
+      cmd.solrDoc.addField("id", "doc" + i);
+      cmd.solrDoc.addField("sleep_ms", "50");
+      processor.processAdd(cmd);
+    }
+    processor.finish();
+    assertEquals(6, next.docs.size());
+    for (int i = 0; i < 6; i++) {
+      assertEquals("true", next.docs.get(i).getFieldValue("enriched"));
+    }
+    assertTrue(maxActiveCalls.get() <= 2);
+    assertEquals(0, factory.getLimiter().getInFlight());
+    factory.close();
+
+    // with 'reject' it fails right away instead of indexing documents without the pipeline
+    args.add(FusionUpdateProcessor.BACKPRESSURE_PARAM, "reject");
+    next = new CollectingProcessor();
+    processor = newProcessor(args, req, next);
+    try {
+      for (int i = 0; i < 3; i++) {
+        cmd.clear();
+        cmd.solrDoc = new SolrInputDocument();
+        cmd.solrDoc.addField("id", "doc" + i);
+        cmd.solrDoc.addField("sleep_ms", "200");
+        processor.processAdd(cmd);
+      }
+      fail("the third call should be rejected");
+    } catch (SolrException e) {
+      assertEquals(SolrException.ErrorCode.SERVICE_UNAVAILABLE.code, e.code());
+    }
+    processor.finish();
+    assertTrue(next.docs.isEmpty());
+    // the permits of the abandoned calls are given back
+    long deadline = System.currentTimeMillis() + 5000;
+    while (factory.getLimiter().getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, factory.getLimiter().getInFlight());
+  }
+
+  public void testLeaderEnrichesOnceForItsReplicas() throws Exception {
+    NamedList args = baseArgs();
+    args.add(FusionUpdateProcessor.DISTRIB_MODE_PARAM, "leader");
+    args.add(FusionUpdateProcessor.BATCH_SIZE_PARAM, "10");
+
+    // the leader enriches the command in place, before the distributed processor forwards it
+    NamedList leaderParams = new NamedList();
+    leaderParams.add(DistributingUpdateProcessorFactory.DISTRIB_UPDATE_PARAM, DistribPhase.TOLEADER.toString());
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, leaderParams);
+    CollectingProcessor next = new CollectingProcessor();
+    UpdateRequestProcessor processor = newProcessor(args, req, next);
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    cmd.solrDoc = new SolrInputDocument();
+    cmd.solrDoc.addField("id", "doc1");
+    cmd.solrDoc.addField("_version_", 42L);
+    processor.processAdd(cmd);
+    assertEquals(1, fusionCalls.get());
+    assertEquals("true", cmd.solrDoc.getFieldValue("enriched"));
+    assertEquals("42", String.valueOf(cmd.solrDoc.getFieldValue("_version_")));
+    processor.finish();
+
+    // the replicas get the enriched copy from the leader
+    NamedList replicaParams = new NamedList();
+    replicaParams.add(DistributingUpdateProcessorFactory.DISTRIB_UPDATE_PARAM, DistribPhase.FROMLEADER.toString());
+    SolrQueryRequest replicaReq = new LocalSolrQueryRequest(null, replicaParams);
+    next = new CollectingProcessor();
+    processor = factory.getInstance(replicaReq, null, next);
+    processor.processAdd(cmd);
+    processor.finish();
+    assertEquals(1, fusionCalls.get());
+    assertSame(cmd.solrDoc, next.docs.get(0));
+
+    // and so does a replay of the transaction log
+    processor = factory.getInstance(new LocalSolrQueryRequest(null, new NamedList()), null, next);
+    AddUpdateCommand replayed = new AddUpdateCommand(req);
+    replayed.solrDoc = new SolrInputDocument();
+    replayed.solrDoc.addField("id", "doc2");
+    replayed.setFlags(UpdateCommand.REPLAY);
+    processor.processAdd(replayed);
+    processor.finish();
+    assertEquals(1, fusionCalls.get());
+    assertEquals(2, next.docs.size());
+  }
+
+  private AddUpdateCommand failingAdd(SolrQueryRequest req) {
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    cmd.solrDoc = new SolrInputDocument();
+    cmd.solrDoc.addField("id", "bad");
+    cmd.solrDoc.addField("fail", "true");
+    return cmd;
+  }
+
+  private List<SolrInputDocument> addTypedDocs(NamedList args) throws IOException {
+    CollectingProcessor next = new CollectingProcessor();
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, new NamedList());
+    UpdateRequestProcessor processor = newProcessor(args, req, next);
+
+    AddUpdateCommand cmd = new AddUpdateCommand(req);
+    for (int i = 0; i < 2; i++) {
+      cmd.clear();
+      cmd.solrDoc = new SolrInputDocument();
+      cmd.solrDoc.addField("id", "doc" + i);
+      cmd.solrDoc.addField("count_l", 42L);
+      cmd.solrDoc.addField("date_dt", new Date(0));
+      cmd.solrDoc.addField("tags_ss", Arrays.asList("a", "b", "c"));
+      processor.processAdd(cmd);
+    }
+    processor.finish();
+    assertEquals(1, fusionCalls.get());
+    return next.docs;
+  }
+
+  private void assertTypedDocs(List<SolrInputDocument> docs) {
+    assertEquals(2, docs.size());
+    for (int i = 0; i < 2; i++) {
+      SolrInputDocument doc = docs.get(i);
+      assertEquals("doc" + i, doc.getFieldValue("id"));
+      assertEquals("true", doc.getFieldValue("enriched"));
+      assertEquals(Arrays.<Object>asList("a", "b", "c"), new ArrayList<Object>(doc.getFieldValues("tags_ss")));
+    }
+  }
+
+  private NamedList baseArgs() {
+    NamedList args = new NamedList();
+    args.add("fusion_base_url", "http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+    args.add("collection_name", "test");
+    return args;
+  }
+
+  private UpdateRequestProcessor newProcessor(NamedList args, SolrQueryRequest req, UpdateRequestProcessor next) {
+    factory = new FusionUpdateProcessorFactory();
+    factory.init(args);
+    return factory.getInstance(req, null, next);
+  }
+
+  static class CollectingProcessor extends UpdateRequestProcessor {
+    final List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+    boolean committed = false;
+
+    CollectingProcessor() {
+      super(null);
+    }
+
+    @Override
+    public void processAdd(AddUpdateCommand cmd) throws IOException {
+      docs.add(cmd.getSolrInputDocument());
+    }
+
+    @Override
+    public void processCommit(CommitUpdateCommand cmd) throws IOException {
+      committed = true;
+    }
+  }
+}
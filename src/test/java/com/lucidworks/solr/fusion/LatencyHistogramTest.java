@@ -0,0 +1,35 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest extends TestCase {
+
+  public void testPercentilesAreWithinTheBucketError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // 1ms to 100ms, once each
+    for (int ms = 1; ms <= 100; ms++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(50.5, histogram.getMean(), 0.001);
+    assertEquals(100.0, histogram.getMax(), 0.001);
+    assertBetween(50, 50 * 1.2, histogram.getPercentile(50));
+    assertBetween(95, 95 * 1.2, histogram.getPercentile(95));
+    assertBetween(99, 100, histogram.getPercentile(99));
+  }
+
+  public void testEmptyAndOutOfRange() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0.0, histogram.getPercentile(99), 0.0);
+
+    histogram.record(TimeUnit.MINUTES.toNanos(10));
+    assertEquals(TimeUnit.MINUTES.toMillis(10), (long) histogram.getPercentile(50));
+  }
+
+  private static void assertBetween(double low, double high, double actual) {
+    assertTrue(actual + " is not between " + low + " and " + high, actual >= low && actual <= high);
+  }
+}
@@ -0,0 +1,133 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class LocalPipelineTest extends TestCase {
+
+  static final String PIPELINE = "{\"id\": \"products\", \"stages\": [" +
+    "{\"type\": \"search-fields\", \"rows\": 20, \"queryFields\": [{\"field\": \"name\", \"boost\": 2.0}, {\"field\": \"text\"}]," +
+    " \"returnFields\": [\"id\", \"name\"]}," +
+    "{\"type\": \"facet\", \"fieldFacets\": [{\"field\": \"cat\", \"minCount\": 1, \"limit\": 10}]}," +
+    "{\"type\": \"set-params\", \"params\": [{\"key\": \"fq\", \"value\": \"inStock:true\", \"policy\": \"append\"}," +
+    " {\"key\": \"debugQuery\", \"policy\": \"remove\"}, {\"key\": \"defType\", \"value\": \"edismax\", \"policy\": \"default\"}]}," +
+    "{\"type\": \"landing-pages\", \"skip\": true}]}";
+
+  private static SolrParams request() {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", "ipod");
+    params.set("rows", "5");
+    params.set("fq", "type:a");
+    params.set("debugQuery", "true");
+    params.set("defType", "lucene");
+    return params;
+  }
+
+  private static SolrParams run(FusionPipelineResult result, SolrParams params) {
+    SolrQueryRequest req = new LocalSolrQueryRequest(null, params);
+    result.applyDelta(req, new SolrQueryResponse());
+    return req.getParams();
+  }
+
+  public void testDeterministicStagesRunLocally() throws Exception {
+    PipelineSnapshot snapshot = PipelineSnapshot.parse(PIPELINE.getBytes("UTF-8"));
+    assertTrue(snapshot.getNotLocalReason(), snapshot.isLocal());
+    assertEquals(3, snapshot.getStageCount());
+
+    SolrParams params = run(snapshot.execute(request()), request());
+    assertEquals("ipod", params.get("q"));
+    assertEquals("20", params.get("rows"));
+    assertEquals("name^2.0 text", params.get("qf"));
+    assertEquals("id,name", params.get("fl"));
+    assertEquals("true", params.get("facet"));
+    assertEquals("cat", params.get("facet.field"));
+    assertEquals("1", params.get("f.cat.facet.mincount"));
+    assertEquals("10", params.get("f.cat.facet.limit"));
+    assertEquals(Arrays.asList("type:a", "inStock:true"), Arrays.asList(params.getParams("fq")));
+    assertNull(params.get("debugQuery"));
+    assertEquals("lucene", params.get("defType"));
+
+    // another definition is another version
+    assertFalse(snapshot.getVersion().equals(PipelineSnapshot.parse(PIPELINE.replace("20", "30").getBytes("UTF-8")).getVersion()));
+  }
+
+  public void testPipelinesWithOtherStagesRunInFusion() throws Exception {
+    PipelineSnapshot snapshot = PipelineSnapshot.parse(
+      "{\"stages\": [{\"type\": \"search-fields\", \"rows\": 10}, {\"type\": \"recommendation\"}]}".getBytes("UTF-8"));
+    assertFalse(snapshot.isLocal());
+    snapshot = PipelineSnapshot.parse(
+      "{\"stages\": [{\"type\": \"search-fields\", \"rows\": 10, \"condition\": \"request.hasParam('q')\"}]}".getBytes("UTF-8"));
+    assertFalse(snapshot.isLocal());
+
+    LocalPipeline pipeline = new LocalPipeline("p", new LocalPipeline.Source() {
+      public byte[] load() throws IOException {
+        return "{\"stages\": [{\"type\": \"query-rewrite\"}]}".getBytes("UTF-8");
+      }
+    }, null, 0);
+    assertNull(pipeline.execute(request()));
+    assertTrue(pipeline.refresh());
+    assertNull(pipeline.execute(request()));
+    assertFalse(pipeline.isActive());
+    pipeline.close();
+  }
+
+  public void testMismatchSendsTheQueriesToFusionUntilThePipelineChanges() throws Exception {
+    final String[] definition = {PIPELINE};
+    final String[] fusionRows = {"30"};
+    LocalPipeline pipeline = new LocalPipeline("p", new LocalPipeline.Source() {
+      public byte[] load() throws IOException {
+        return definition[0].getBytes("UTF-8");
+      }
+    }, new LocalPipeline.Verifier() {
+      public SolrParams verify(SolrParams params) {
+        ModifiableSolrParams fusion = new ModifiableSolrParams(run(snapshot(definition[0]).execute(params), params));
+        fusion.set("rows", fusionRows[0]);
+        return fusion;
+      }
+    }, 1.0);
+    try {
+      assertTrue(pipeline.refresh());
+      assertNotNull(pipeline.execute(request()));
+      waitFor(pipeline, 1);
+      assertFalse(pipeline.isActive());
+      assertNull(pipeline.execute(request()));
+
+      // the same definition again is still not used
+      assertTrue(pipeline.refresh());
+      assertNull(pipeline.execute(request()));
+
+      // the pipeline was fixed in Fusion
+      definition[0] = PIPELINE.replace("20", "30");
+      assertTrue(pipeline.refresh());
+      assertEquals("30", run(pipeline.execute(request()), request()).get("rows"));
+      waitFor(pipeline, 2);
+      assertTrue(pipeline.isActive());
+      assertEquals(1L, pipeline.getStatistics().get("mismatches"));
+    } finally {
+      pipeline.close();
+    }
+  }
+
+  private static void waitFor(LocalPipeline pipeline, long verified) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((Long) pipeline.getStatistics().get("verified") < verified && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(verified, pipeline.getStatistics().get("verified"));
+  }
+
+  private static PipelineSnapshot snapshot(String definition) {
+    try {
+      return PipelineSnapshot.parse(definition.getBytes("UTF-8"));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
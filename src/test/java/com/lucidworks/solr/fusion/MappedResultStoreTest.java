@@ -0,0 +1,90 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class MappedResultStoreTest extends TestCase {
+
+  private File path;
+
+  @Override
+  protected void setUp() throws Exception {
+    path = File.createTempFile("fusion-skip-cache", ".bin");
+    path.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    path.delete();
+  }
+
+  public void testEntriesSurviveReopening() throws Exception {
+    MappedResultStore store = new MappedResultStore(path, 1024, 64 * 1024);
+    store.put(key(1), value(1, 100));
+    store.put(key(2), value(2, 200));
+    assertTrue(Arrays.equals(value(1, 100), store.get(key(1))));
+    assertNull(store.get(key(3)));
+    store.close();
+
+    store = new MappedResultStore(path, 1024, 64 * 1024);
+    assertTrue(Arrays.equals(value(1, 100), store.get(key(1))));
+    assertTrue(Arrays.equals(value(2, 200), store.get(key(2))));
+    store.close();
+
+    // a store with another layout starts empty
+    store = new MappedResultStore(path, 512, 64 * 1024);
+    assertNull(store.get(key(1)));
+    store.close();
+  }
+
+  public void testFileIsLockedWhileOpen() throws Exception {
+    MappedResultStore store = new MappedResultStore(path, 1024, 64 * 1024);
+    try {
+      new MappedResultStore(path, 512, 32 * 1024);
+      fail("a second store would resize the file under the first one");
+    } catch (IOException e) {
+      // expected
+    }
+    store.put(key(1), value(1, 100));
+    assertTrue(Arrays.equals(value(1, 100), store.get(key(1))));
+    store.close();
+    new MappedResultStore(path, 1024, 64 * 1024).close();
+  }
+
+  public void testRingOverwritesTheOldestEntries() throws Exception {
+    // 4 segments of 1000 bytes, records of 24 + 200 bytes: 4 records per segment
+    MappedResultStore store = new MappedResultStore(path, 1024, 4000, 1000);
+    for (int i = 0; i < 40; i++) {
+      store.put(key(i), value(i, 200));
+    }
+    // the ring holds the last 16 records
+    for (int i = 0; i < 24; i++) {
+      assertNull("entry " + i + " should have been overwritten", store.get(key(i)));
+    }
+    for (int i = 24; i < 40; i++) {
+      assertTrue("entry " + i + " is missing", Arrays.equals(value(i, 200), store.get(key(i))));
+    }
+
+    // updating a key replaces its value
+    store.put(key(39), value(99, 50));
+    assertTrue(Arrays.equals(value(99, 50), store.get(key(39))));
+    store.close();
+  }
+
+  private static byte[] key(int i) {
+    byte[] key = new byte[16];
+    for (int j = 0; j < key.length; j++) {
+      key[j] = (byte) (i * 31 + j * 7);
+    }
+    return key;
+  }
+
+  private static byte[] value(int i, int length) {
+    byte[] value = new byte[length];
+    Arrays.fill(value, (byte) i);
+    return value;
+  }
+}
@@ -0,0 +1,96 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class SearchLogAggregatorTest extends TestCase {
+
+  public void testNormalize() {
+    assertEquals("ipod nano", SearchLogAggregator.normalize("  iPod \t NANO "));
+    assertEquals("", SearchLogAggregator.normalize(null));
+    StringBuilder huge = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      huge.append('x');
+    }
+    assertEquals(SearchLogAggregator.MAX_QUERY_LENGTH, SearchLogAggregator.normalize(huge.toString()).length());
+  }
+
+  public void testSketchesFindTheHeavyHitters() {
+    CountMinSketch sketch = new CountMinSketch(4, 512);
+    HeavyHitters heavyHitters = new HeavyHitters(50);
+    Random random = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      // a third of the stream is 'popular', the rest a long tail
+      String key = i % 3 == 0 ? "popular" : "tail-" + random.nextInt(5000);
+      sketch.add(key, 1);
+      heavyHitters.add(key);
+    }
+    long popular = 6667;
+    assertTrue(sketch.estimate("popular") >= popular);
+    assertTrue(sketch.estimate("popular") <= popular + 20000 * Math.E / 512);
+    HeavyHitters.Counter top = heavyHitters.top(1).get(0);
+    assertEquals("popular", top.key);
+    assertTrue(top.count >= popular && top.count - top.error <= popular);
+  }
+
+  public void testHeavyHittersBoundTheTrueCounts() {
+    HeavyHitters heavyHitters = new HeavyHitters(8);
+    Map<String, Long> counts = new HashMap<String, Long>();
+    Random random = new Random(7);
+    for (int i = 0; i < 5000; i++) {
+      // skewed towards the low keys
+      String key = "q" + Math.min(random.nextInt(40), random.nextInt(40));
+      heavyHitters.add(key);
+      Long count = counts.get(key);
+      counts.put(key, count == null ? 1L : count + 1);
+    }
+    List<HeavyHitters.Counter> top = heavyHitters.top(8);
+    assertEquals(8, top.size());
+    long total = 0;
+    for (int i = 0; i < top.size(); i++) {
+      HeavyHitters.Counter counter = top.get(i);
+      long count = counts.containsKey(counter.key) ? counts.get(counter.key) : 0;
+      assertTrue(counter.count >= count && counter.count - counter.error <= count);
+      if (i > 0) {
+        assertTrue(top.get(i - 1).count >= counter.count);
+      }
+      total += counter.count;
+    }
+    // every occurrence is counted once, by the counter of its key or of the key it took over
+    assertEquals(5000, total);
+  }
+
+  public void testWindowSummary() {
+    SearchLogAggregator aggregator = new SearchLogAggregator(null, 60000, 2, 4, 256);
+    for (int i = 0; i < 10; i++) {
+      aggregator.record("url1", "Shoes", 10, 5);
+    }
+    for (int i = 0; i < 3; i++) {
+      aggregator.record("url1", "sandals ", 0, 50);
+    }
+    aggregator.record("url1", "hats", 1, 5);
+    aggregator.record("url2", "shoes", 1, 5);
+
+    Map<String, Map<String, Object>> summaries = aggregator.roll();
+    assertEquals(2, summaries.size());
+    Map<String, Object> summary = summaries.get("url1");
+    assertEquals(14L, summary.get("numQueries"));
+    assertEquals(3L, summary.get("numZeroResults"));
+    assertEquals(50.0, ((Map) summary.get("QTime")).get("max"));
+
+    List<Map> top = (List<Map>) summary.get("topQueries");
+    assertEquals(2, top.size());
+    assertEquals("shoes", top.get(0).get("query"));
+    assertEquals(10L, top.get(0).get("count"));
+    assertEquals("sandals", top.get(1).get("query"));
+    assertEquals("sandals", ((List<Map>) summary.get("topZeroResultQueries")).get(0).get("query"));
+
+    // the next window starts empty
+    assertTrue(aggregator.roll().isEmpty());
+    assertEquals(15, aggregator.getAggregated());
+  }
+}
@@ -0,0 +1,242 @@
+package com.lucidworks.solr.fusion;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SearchLogShipperTest extends TestCase {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public void testDropNewestKeepsQueuedEvents() {
+    // no workers, so nothing is drained
+    SearchLogShipper shipper = new SearchLogShipper(null, objectMapper, 2,
+      SearchLogShipper.OverflowPolicy.DROP_NEWEST, 0, 10, 0, 10);
+    assertTrue(shipper.offer("url", event(1)));
+    assertTrue(shipper.offer("url", event(2)));
+    assertFalse(shipper.offer("url", event(3)));
+    assertEquals(2, shipper.getQueueSize());
+    assertEquals(1, shipper.getDropped());
+  }
+
+  public void testDropOldestMakesRoom() {
+    SearchLogShipper shipper = new SearchLogShipper(null, objectMapper, 2,
+      SearchLogShipper.OverflowPolicy.DROP_OLDEST, 0, 10, 0, 10);
+    assertTrue(shipper.offer("url", event(1)));
+    assertTrue(shipper.offer("url", event(2)));
+    assertTrue(shipper.offer("url", event(3)));
+    assertEquals(2, shipper.getQueueSize());
+    assertEquals(1, shipper.getDropped());
+  }
+
+  public void testDropOldestNeverDropsTheNewEvent() throws Exception {
+    final SearchLogShipper shipper = new SearchLogShipper(null, objectMapper, 4,
+      SearchLogShipper.OverflowPolicy.DROP_OLDEST, 0, 10, 0, 10);
+    final AtomicBoolean refused = new AtomicBoolean();
+    Thread[] producers = new Thread[8];
+    for (int t = 0; t < producers.length; t++) {
+      producers[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 2000; i++) {
+            if (!shipper.offer("url", event(i))) {
+              refused.set(true);
+            }
+          }
+        }
+      };
+      producers[t].start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertFalse(refused.get());
+    assertEquals(4, shipper.getQueueSize());
+    assertEquals(16000, shipper.getEnqueued());
+    // one drop per event that was actually discarded
+    assertEquals(16000 - 4, shipper.getDropped());
+  }
+
+  public void testSampleAboveHalfCapacity() {
+    SearchLogShipper shipper = new SearchLogShipper(null, objectMapper, 100,
+      SearchLogShipper.OverflowPolicy.SAMPLE, 0.5, 10, 0, 10);
+    for (int i = 0; i < 50; i++) {
+      assertTrue(shipper.offer("url", event(i)));
+    }
+    for (int i = 0; i < 20; i++) {
+      shipper.offer("url", event(i));
+    }
+    assertEquals(60, shipper.getQueueSize());
+    assertEquals(10, shipper.getDropped());
+  }
+
+  public void testEventsArePostedAsJsonArray() throws Exception {
+    final List<List> received = new CopyOnWriteArrayList<List>();
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/searchlog", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        received.add(objectMapper.readValue(exchange.getRequestBody(), List.class));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+
+    FusionClient fusionClient = new FusionClient(HttpClientUtil.createClient(new ModifiableSolrParams()), null, 5000);
+    SearchLogShipper shipper = new SearchLogShipper(fusionClient, objectMapper, 100,
+      SearchLogShipper.OverflowPolicy.DROP_OLDEST, 0, 10, 1, 10);
+    try {
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/searchlog";
+      for (int i = 0; i < 5; i++) {
+        shipper.offer(url, event(i));
+      }
+      shipper.close(5000);
+
+      int events = 0;
+      for (List batch : received) {
+        events += batch.size();
+      }
+      assertEquals(5, events);
+      assertEquals(5, shipper.getSent());
+      assertEquals(0, ((Map) received.get(0).get(0)).get("QTime"));
+    } finally {
+      fusionClient.close();
+      server.stop(0);
+    }
+  }
+
+  public void testFailedBatchesAreSpooledAndReplayed() throws Exception {
+    final List<List> received = new CopyOnWriteArrayList<List>();
+    final AtomicBoolean fusionDown = new AtomicBoolean(true);
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/searchlog", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        List batch = objectMapper.readValue(exchange.getRequestBody(), List.class);
+        if (fusionDown.get()) {
+          exchange.sendResponseHeaders(503, -1);
+        } else {
+          received.add(batch);
+          exchange.sendResponseHeaders(200, -1);
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+
+    File dir = File.createTempFile("searchlog-spool", "");
+    dir.delete();
+    FusionClient fusionClient = new FusionClient(HttpClientUtil.createClient(new ModifiableSolrParams()), null, 5000);
+    SearchLogSpool spool = new SearchLogSpool(dir, 64 * 1024, 1024 * 1024);
+    SearchLogShipper shipper = new SearchLogShipper(fusionClient, objectMapper, 100,
+      SearchLogShipper.OverflowPolicy.DROP_OLDEST, 0, 10, 1, 10);
+    shipper.setSpool(spool);
+    SearchLogReplayer replayer = null;
+    try {
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/searchlog";
+      for (int i = 0; i < 5; i++) {
+        shipper.offer(url, event(i));
+      }
+      shipper.close(5000);
+      assertEquals(5, shipper.getFailed());
+      assertEquals(5, spool.getSpooled());
+      assertTrue(received.isEmpty());
+
+      fusionDown.set(false);
+      replayer = new SearchLogReplayer(fusionClient, spool, 0, 10, 10);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (spool.getReplayed() < 5 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(5, spool.getReplayed());
+      int events = 0;
+      for (List batch : received) {
+        events += batch.size();
+      }
+      assertEquals(5, events);
+    } finally {
+      if (replayer != null) {
+        replayer.close(5000);
+      }
+      spool.close();
+      fusionClient.close();
+      server.stop(0);
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  public void testRejectedBatchesAreNotRetried() throws Exception {
+    final List<List> received = new CopyOnWriteArrayList<List>();
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/searchlog", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        List batch = objectMapper.readValue(exchange.getRequestBody(), List.class);
+        if (exchange.getRequestURI().getPath().endsWith("/deleted")) {
+          exchange.sendResponseHeaders(404, -1);
+        } else {
+          received.add(batch);
+          exchange.sendResponseHeaders(200, -1);
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+
+    File dir = File.createTempFile("searchlog-spool", "");
+    dir.delete();
+    FusionClient fusionClient = new FusionClient(HttpClientUtil.createClient(new ModifiableSolrParams()), null, 5000);
+    SearchLogSpool spool = new SearchLogSpool(dir, 64 * 1024, 1024 * 1024);
+    SearchLogShipper shipper = new SearchLogShipper(fusionClient, objectMapper, 100,
+      SearchLogShipper.OverflowPolicy.DROP_OLDEST, 0, 10, 1, 10);
+    shipper.setSpool(spool);
+    SearchLogReplayer replayer = null;
+    try {
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/searchlog";
+      shipper.offer(url + "/deleted", event(1));
+      shipper.close(5000);
+      assertEquals(1, shipper.getFailed());
+      assertEquals("a rejected batch is not spooled", 0, spool.getSpooled());
+
+      // spooled before the collection was deleted
+      assertTrue(spool.append(url + "/deleted", 2, "[{\"QTime\": 1}, {\"QTime\": 2}]".getBytes("UTF-8")));
+      assertTrue(spool.append(url, 1, "[{\"QTime\": 3}]".getBytes("UTF-8")));
+      replayer = new SearchLogReplayer(fusionClient, spool, 0, 10, 10);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (received.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, received.size());
+      assertEquals(2, replayer.getRejected());
+      assertEquals(0, replayer.getFailures());
+    } finally {
+      if (replayer != null) {
+        replayer.close(5000);
+      }
+      spool.close();
+      fusionClient.close();
+      server.stop(0);
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  private static Map<String, Object> event(int qtime) {
+    return Collections.<String, Object>singletonMap("QTime", qtime);
+  }
+}
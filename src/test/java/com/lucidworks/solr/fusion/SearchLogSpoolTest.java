@@ -0,0 +1,107 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class SearchLogSpoolTest extends TestCase {
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("searchlog-spool", "");
+    dir.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  public void testRecordsAreReadInOrder() throws Exception {
+    SearchLogSpool spool = new SearchLogSpool(dir, 4096, 64 * 1024);
+    assertNull(spool.peek());
+    assertTrue(spool.append("http://fusion/a", 2, body("[1,2]")));
+    assertTrue(spool.append("http://fusion/b", 1, body("[3]")));
+
+    SearchLogSpool.Record record = spool.peek();
+    assertEquals("http://fusion/a", record.url);
+    assertEquals(2, record.events);
+    assertEquals("[1,2]", new String(record.body, "UTF-8"));
+    // not committed, so read again
+    assertEquals("http://fusion/a", spool.peek().url);
+    spool.commit(record);
+    record = spool.peek();
+    assertEquals("http://fusion/b", record.url);
+    spool.commit(record);
+    assertNull(spool.peek());
+    assertEquals(3, spool.getSpooled());
+    assertEquals(3, spool.getReplayed());
+    assertEquals(0, spool.getPendingBytes());
+    spool.close();
+    // the segments are unmapped once closed
+    assertFalse(spool.append("http://fusion/a", 1, body("[4]")));
+    assertNull(spool.peek());
+    spool.close();
+  }
+
+  public void testReopeningResumesFromTheCommittedOffset() throws Exception {
+    SearchLogSpool spool = new SearchLogSpool(dir, 256, 64 * 1024);
+    for (int i = 0; i < 20; i++) {
+      assertTrue(spool.append("http://fusion/searchlog", 1, body("[" + i + "]")));
+    }
+    for (int i = 0; i < 7; i++) {
+      spool.commit(spool.peek());
+    }
+    spool.close();
+
+    spool = new SearchLogSpool(dir, 256, 64 * 1024);
+    assertEquals("[7]", new String(spool.peek().body, "UTF-8"));
+    // appends go after what was left
+    assertTrue(spool.append("http://fusion/searchlog", 1, body("[20]")));
+    int left = 0;
+    SearchLogSpool.Record record = null;
+    while ((record = spool.peek()) != null) {
+      spool.commit(record);
+      left++;
+    }
+    assertEquals(14, left);
+    spool.close();
+  }
+
+  public void testDiskUsageIsBounded() throws Exception {
+    // 2 segments of 128 bytes, about 3 records each
+    SearchLogSpool spool = new SearchLogSpool(dir, 128, 256);
+    for (int i = 0; i < 30; i++) {
+      assertTrue(spool.append("http://fusion/searchlog", 1, body("[" + i + "]")));
+    }
+    assertTrue(dir.listFiles().length <= 3);
+    assertTrue(spool.getDropped() > 0);
+    assertTrue(spool.getPendingBytes() <= 256);
+
+    // the newest records are kept
+    String last = null;
+    SearchLogSpool.Record record;
+    while ((record = spool.peek()) != null) {
+      last = new String(record.body, "UTF-8");
+      spool.commit(record);
+    }
+    assertEquals("[29]", last);
+    assertEquals(30, spool.getDropped() + spool.getReplayed());
+
+    // a batch larger than a segment is refused
+    assertFalse(spool.append("http://fusion/searchlog", 1, new byte[128]));
+    spool.close();
+  }
+
+  private static byte[] body(String json) throws Exception {
+    return json.getBytes("UTF-8");
+  }
+}
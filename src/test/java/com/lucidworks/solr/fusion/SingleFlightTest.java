@@ -0,0 +1,74 @@
+package com.lucidworks.solr.fusion;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest extends TestCase {
+
+  public void testIdenticalCallsShareOneExecution() throws Exception {
+    final SingleFlight<String> singleFlight = new SingleFlight<String>(5000);
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch leaderStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    final Callable<String> call = new Callable<String>() {
+      public String call() throws Exception {
+        calls.incrementAndGet();
+        leaderStarted.countDown();
+        release.await();
+        return "result";
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<String> leader = executor.submit(new Callable<String>() {
+        public String call() {
+          return singleFlight.execute("key", call);
+        }
+      });
+      assertTrue(leaderStarted.await(5, TimeUnit.SECONDS));
+
+      Future<String> waiter1 = executor.submit(new Callable<String>() {
+        public String call() {
+          return singleFlight.execute("key", call);
+        }
+      });
+      Future<String> waiter2 = executor.submit(new Callable<String>() {
+        public String call() {
+          return singleFlight.execute("key", call);
+        }
+      });
+      while ((Long) singleFlight.getStatistics().get("coalesced") < 2) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+
+      assertEquals("result", leader.get());
+      assertEquals("result", waiter1.get());
+      assertEquals("result", waiter2.get());
+      assertEquals(1, calls.get());
+      assertEquals(0, singleFlight.getInFlight());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testFailedCallReturnsNull() {
+    SingleFlight<String> singleFlight = new SingleFlight<String>(5000);
+    assertNull(singleFlight.execute("key", new Callable<String>() {
+      public String call() throws Exception {
+        throw new Exception("Fusion is down");
+      }
+    }));
+    assertEquals(1L, singleFlight.getStatistics().get("failures"));
+    assertEquals(0, singleFlight.getInFlight());
+  }
+}